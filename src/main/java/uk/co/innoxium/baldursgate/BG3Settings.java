@@ -10,6 +10,10 @@ import uk.co.innoxium.cybernize.setting.SettingsHolder;
 import java.io.File;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
 
 @SettingsHolder(id = "bg3", ext ="toml")
 public class BG3Settings {
@@ -19,6 +23,53 @@ public class BG3Settings {
     // This should not be relative, and should be absolute
     public static String playerProfile = "";
 
+    @Setting(category = "profile")
+    @Setting.Comment("Other player profiles to install mods to as well, separated by ;. Their modsettings.lsx gets the same changes as the player profile's")
+    public static String extraProfiles = "";
+
+    @Setting(category = "install")
+    @Setting.Comment("How paks are placed in the Mods folder: copy, hardlink, reflink or symlink. Falls back to copy if the mode is not supported. A hardlink shares its data with Candor's copy, so a tool editing the pak in place changes both")
+    public static String deployMode = "copy";
+
+    @Setting(category = "install")
+    @Setting.Comment("How many files of a loose file mod are extracted at once. Around 4 suits a hard drive, an SSD can take more")
+    public static int copyQueueDepth = 4;
+
+    @Setting(category = "install")
+    @Setting.Comment("Keep loose file mods extracted next to the game and place them in Data with the overlay mode, so disabling and enabling them copies nothing")
+    public static boolean looseOverlay = true;
+
+    @Setting(category = "install")
+    @Setting.Comment("How loose file mods are placed in Data from their overlay: hardlink, reflink, symlink or copy. Falls back to copy if the mode is not supported. The overlay is Candor's own extracted copy, so unlike a pak a hardlink shares nothing the user keeps")
+    // Separate from deployMode, whose default copy would make the overlay a second full copy, copied again on every enable
+    public static String overlayMode = "hardlink";
+
+    @Setting(category = "scratch")
+    @Setting.Comment("Where archives are extracted to while installing, empty for the system temp directory. A fast local drive is best")
+    public static String scratchDirectory = "";
+
+    @Setting(category = "scratch")
+    @Setting.Comment("The most space, in megabytes, extracted archives may take up at once. 0 for no limit")
+    public static int scratchLimit = 8192;
+
+    @Setting(category = "scratch")
+    @Setting.Comment("How many emptied extraction directories to keep for reuse")
+    public static int scratchPool = 2;
+
+    /**
+     * @return the player profile, then each of the extra profiles, without repeats
+     */
+    public static List<File> getPlayerProfiles() {
+
+        Set<File> ret = new LinkedHashSet<>();
+        ret.add(new File(playerProfile).getAbsoluteFile());
+        for(String profile : extraProfiles.split(";")) {
+
+            if(!profile.isBlank()) ret.add(new File(profile.trim()).getAbsoluteFile());
+        }
+        return new ArrayList<>(ret);
+    }
+
     public static void init() {
 
         SettingsHandler.addHolder(BG3Settings.class);
@@ -1,21 +1,19 @@
 package uk.co.innoxium.baldursgate;
 
 import org.apache.commons.math3.exception.NullArgumentException;
+import uk.co.innoxium.baldursgate.bg3m.archive.ArchiveClassifier;
+import uk.co.innoxium.baldursgate.bg3m.installer.LooseInstaller;
 import uk.co.innoxium.baldursgate.bg3m.installer.PAKInstaller;
+import uk.co.innoxium.baldursgate.bg3m.manifest.InstallManifest;
 import uk.co.innoxium.candor.mod.Mod;
 import uk.co.innoxium.candor.module.AbstractModInstaller;
 import uk.co.innoxium.candor.module.AbstractModule;
 import uk.co.innoxium.candor.util.NativeDialogs;
 import uk.co.innoxium.candor.util.Resources;
-import uk.co.innoxium.cybernize.archive.Archive;
-import uk.co.innoxium.cybernize.archive.ArchiveBuilder;
-import uk.co.innoxium.cybernize.zip.ZipUtils;
 
 import javax.swing.*;
 import java.io.IOException;
 import java.util.concurrent.CompletableFuture;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
 
 public class BaldursGateModInstaller extends AbstractModInstaller {
 
@@ -33,7 +31,9 @@ public class BaldursGateModInstaller extends AbstractModInstaller {
     @Override
     public CompletableFuture<Boolean> install(Mod mod) {
 
-        ModType modType = ModValidator.getTypeFromMod(mod);
+        // A mod being re-enabled already knows its type
+        InstallManifest manifest = InstallManifest.load(mod);
+        ModType modType = manifest != null && manifest.matches(mod.getFile()) ? ModType.valueOf(manifest.getType()) : ModValidator.getTypeFromMod(mod);
 
         // Should only be null if there was an error reading the file.
         if(modType == null) {
@@ -53,9 +53,7 @@ public class BaldursGateModInstaller extends AbstractModInstaller {
             }
             case DATA -> {
 
-                NativeDialogs.showErrorMessage("Loose File Mods are not supported in this version of the BG3 Module\nCheck our nexus page for updates.");
-                return CompletableFuture.completedFuture(false);
-//                return new LooseInstaller(module).installLoose(mod);
+                return new LooseInstaller(module).installLoose(mod);
             }
         }
         return CompletableFuture.completedFuture(false);
@@ -64,7 +62,9 @@ public class BaldursGateModInstaller extends AbstractModInstaller {
     @Override
     public boolean uninstall(Mod mod) {
 
-        ModType modType = ModValidator.getTypeFromMod(mod);
+        // The manifest has everything needed, even if the archive has been moved or deleted
+        InstallManifest manifest = InstallManifest.load(mod);
+        ModType modType = manifest != null && manifest.isInstalled() ? ModType.valueOf(manifest.getType()) : ModValidator.getTypeFromMod(mod);
 
         // Should be null if reading a file, OR if the mod is not valid currently.
         if(modType == null) {
@@ -87,10 +87,7 @@ public class BaldursGateModInstaller extends AbstractModInstaller {
             }
             case DATA -> {
 
-                // TODO: Implement
-                // Due to not being able to install a mod of this type, don't do anything here.
-//                return new LooseInstaller(module).uninstallLoose(mod);
-                return true;
+                return new LooseInstaller(module).uninstallLoose(mod);
             }
         }
 
@@ -103,33 +100,8 @@ public class BaldursGateModInstaller extends AbstractModInstaller {
 
             try {
 
-                if(ZipUtils.isZip(mod.getFile())) {
-
-                    ZipFile zip = new ZipFile(mod.getFile());
-                    ZipEntry info = zip.getEntry("info.json");
-                    if (info != null) {
-
-                        return ModType.PAK; // Mod contains both info.json and any amount of .pak files
-                    } else {
-
-                        if (zip.stream().anyMatch(ze -> ze.getName().contains(".pak"))) {
-
-                            return ModType.PAK_ONLY; // Mod only contains a .pak
-                        }
-                        return ModType.DATA; // Mod does not contain a .pak or info.json
-                    }
-                } else {
-
-                    Archive modArchive = new ArchiveBuilder(mod.getFile()).type(ArchiveBuilder.ArchiveType.SEVEN_ZIP).build();
-                    if(modArchive.getAllArchiveItems().stream().anyMatch(item -> item.getFilePath().contains("info.json"))) {
-
-                        return ModType.PAK;
-                    } else if(modArchive.getAllArchiveItems().stream().anyMatch(item -> item.getFilePath().contains(".pak"))) {
-
-                        return ModType.PAK_ONLY;
-                    }
-                    return ModType.DATA;
-                }
+                // Listed once, then cached until the archive changes
+                return ArchiveClassifier.classify(mod.getFile());
             } catch (IOException e) {
 
                 // Most likely a loose mod.
@@ -1,17 +1,37 @@
 package uk.co.innoxium.baldursgate;
 
+import uk.co.innoxium.baldursgate.bg3m.data.DataIndex;
+import uk.co.innoxium.baldursgate.bg3m.deploy.PakStore;
+import uk.co.innoxium.baldursgate.bg3m.installer.LooseInstaller;
+import uk.co.innoxium.baldursgate.bg3m.io.ScratchSpace;
+import uk.co.innoxium.baldursgate.bg3m.lsx.LSXNode;
+import uk.co.innoxium.baldursgate.bg3m.lsx.ModRegistry;
+import uk.co.innoxium.baldursgate.bg3m.lsx.ModSettingsJournal;
+import uk.co.innoxium.baldursgate.bg3m.modset.ModSetSnapshots;
+import uk.co.innoxium.baldursgate.bg3m.order.LoadOrderPins;
+import uk.co.innoxium.baldursgate.bg3m.task.InstallExecutor;
+import uk.co.innoxium.baldursgate.bg3m.task.InstallTask;
+import uk.co.innoxium.baldursgate.bg3m.verify.ModsVerifier;
 import uk.co.innoxium.candor.game.Game;
 import uk.co.innoxium.candor.module.AbstractModInstaller;
 import uk.co.innoxium.candor.module.AbstractModule;
 import uk.co.innoxium.candor.module.RunConfig;
 import uk.co.innoxium.candor.util.Logger;
+import uk.co.innoxium.candor.util.NativeDialogs;
 import uk.co.innoxium.candor.util.WindowUtils;
 import uk.co.innoxium.candor.window.dialog.SwingDialogs;
 
 import javax.swing.*;
 import javax.swing.filechooser.FileSystemView;
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 
 public class BaldursGateModule extends AbstractModule {
@@ -45,10 +65,28 @@ public class BaldursGateModule extends AbstractModule {
     public void setGame(File file) {
 
         BG3Settings.init();
+        // Clean up anything extracted by a session which did not close cleanly
+        ScratchSpace.sweep();
+        if(!BG3Settings.playerProfile.isEmpty()) {
+
+            // Finish any modsettings.lsx change that was interrupted last session, in every profile mods go to
+            BG3Settings.getPlayerProfiles().forEach(profile -> new ModSettingsJournal(profile).recover());
+        }
 
         this.game = file;
+        // Paks left by mods uninstalled last session, no mod links to them any more
+        PakStore.forModsFolder(getModsFolder()).collect();
         // Game home is BaldursGate3, game is /bin/bg3.exe
         this.gameHome = file.getParentFile().getParentFile();
+        // Bring the index of Data up to date before the first loose install needs it,
+        // and drop files replaced by loose mods, and overlays, which are no longer used
+        File data = new File(gameHome, "Data");
+        CompletableFuture.runAsync(() -> {
+
+            DataIndex.forDirectory(data).refresh();
+            PakStore.forDataFolder(data).collect();
+            LooseInstaller.collectOverlays(gameHome);
+        });
         if(!loaded && BG3Settings.playerProfile.isEmpty()) {
 
             PlayerProfileSelector profileSelector = new PlayerProfileSelector(playerProfiles);
@@ -172,6 +210,10 @@ public class BaldursGateModule extends AbstractModule {
         ArrayList<JMenuItem> list = new ArrayList<>();
         list.add(new InstallModFixer());
         list.add(new LSLib());
+        list.add(new VerifyMods(getModsFolder()));
+        list.add(new SaveModSet(getModsFolder()));
+        list.add(new SwitchModSet(getModsFolder()));
+        list.add(new PinLoadOrder());
 
         return list;
     }
@@ -192,6 +234,172 @@ public class BaldursGateModule extends AbstractModule {
         }
     }
 
+    public static class VerifyMods extends JMenuItem {
+
+        public VerifyMods(File modsFolder) {
+
+            this.setText("Verify Mods");
+            this.setToolTipText("Checks the Mods folder and modsettings.lsx still match the installed mods");
+            this.addActionListener(e -> {
+
+                if(BG3Settings.playerProfile.isEmpty()) {
+
+                    NativeDialogs.showErrorMessage("No player profile has been selected.");
+                    return;
+                }
+                ModsVerifier verifier = new ModsVerifier(modsFolder, new File(BG3Settings.playerProfile));
+                InstallTask task = new InstallTask("Verify mods");
+                ModsVerifier.Report report = InstallExecutor.await(InstallExecutor.submit(task, () -> verifier.verify(task)), null);
+                if(report == null) {
+
+                    NativeDialogs.showErrorMessage("The mods could not be verified, see the log for details.");
+                } else if(report.isClean()) {
+
+                    SwingDialogs.showConfirmDialog("BG3 Module", "Every mod is installed correctly.", JOptionPane.INFORMATION_MESSAGE, JOptionPane.DEFAULT_OPTION);
+                } else if(SwingDialogs.showConfirmDialog("BG3 Module", report + "\n\nRepair what can be repaired?", JOptionPane.WARNING_MESSAGE, JOptionPane.YES_NO_OPTION) == JOptionPane.YES_OPTION) {
+
+                    List<ModsVerifier.Problem> remaining = InstallExecutor.await(InstallExecutor.submit(task, () -> verifier.repair(report)), report.getProblems());
+                    if(!remaining.isEmpty()) {
+
+                        StringBuilder message = new StringBuilder("These mods need to be installed again:");
+                        remaining.forEach(problem -> message.append("\n- ").append(problem));
+                        NativeDialogs.showErrorMessage(message.toString());
+                    }
+                }
+            });
+        }
+    }
+
+    public static class SaveModSet extends JMenuItem {
+
+        public SaveModSet(File modsFolder) {
+
+            this.setText("Save Mod Set");
+            this.setToolTipText("Saves the mods installed for the player profile as a named set, to switch back to later");
+            this.addActionListener(e -> {
+
+                if(BG3Settings.playerProfile.isEmpty()) {
+
+                    NativeDialogs.showErrorMessage("No player profile has been selected.");
+                    return;
+                }
+                String name = JOptionPane.showInputDialog(WindowUtils.mainFrame, "Name of the mod set:", "BG3 Module", JOptionPane.QUESTION_MESSAGE);
+                if(name == null || name.isBlank()) return;
+                File playerProfile = new File(BG3Settings.playerProfile);
+                InstallTask task = new InstallTask("Save mod set");
+                boolean saved = InstallExecutor.await(InstallExecutor.submit(task, () -> {
+
+                    ModSetSnapshots.save(playerProfile, modsFolder, name.trim());
+                    return true;
+                }), false);
+                if(!saved) NativeDialogs.showErrorMessage("The mod set could not be saved, see the log for details.");
+            });
+        }
+    }
+
+    public static class SwitchModSet extends JMenuItem {
+
+        public SwitchModSet(File modsFolder) {
+
+            this.setText("Switch Mod Set");
+            this.setToolTipText("Switches the player profile to a saved mod set, only the paks which differ are changed");
+            this.addActionListener(e -> {
+
+                if(BG3Settings.playerProfile.isEmpty()) {
+
+                    NativeDialogs.showErrorMessage("No player profile has been selected.");
+                    return;
+                }
+                File playerProfile = new File(BG3Settings.playerProfile);
+                List<String> names = ModSetSnapshots.list(playerProfile);
+                if(names.isEmpty()) {
+
+                    NativeDialogs.showErrorMessage("No mod sets have been saved for this player profile.");
+                    return;
+                }
+                Object name = JOptionPane.showInputDialog(WindowUtils.mainFrame, "Mod set to switch to:", "BG3 Module", JOptionPane.QUESTION_MESSAGE, null, names.toArray(), names.get(0));
+                if(name == null) return;
+                InstallTask task = new InstallTask("Switch mod set");
+                List<String> problems = InstallExecutor.await(InstallExecutor.submit(task, () -> ModSetSnapshots.activate(playerProfile, modsFolder, name.toString())), null);
+                if(problems == null) {
+
+                    NativeDialogs.showErrorMessage("The mod set could not be switched to, see the log for details.");
+                } else if(!problems.isEmpty()) {
+
+                    StringBuilder message = new StringBuilder("These mods need to be installed again:");
+                    problems.forEach(problem -> message.append("\n- ").append(problem));
+                    NativeDialogs.showErrorMessage(message.toString());
+                }
+            });
+        }
+    }
+
+    public static class PinLoadOrder extends JMenuItem {
+
+        public PinLoadOrder() {
+
+            this.setText("Pin Load Order");
+            this.setToolTipText("Makes a mod always load after another, or removes such a pin");
+            this.addActionListener(e -> {
+
+                if(BG3Settings.playerProfile.isEmpty()) {
+
+                    NativeDialogs.showErrorMessage("No player profile has been selected.");
+                    return;
+                }
+                Map<String, String> mods = new LinkedHashMap<>();
+                try {
+
+                    for(LSXNode module : ModRegistry.load(new File(BG3Settings.playerProfile, "modsettings.lsx")).getModules()) {
+
+                        String uuid = module.getAttributeValue("UUID");
+                        if(uuid != null) mods.put(String.format("%s (%s)", module.getAttributeValue("Name"), uuid), uuid.toLowerCase(Locale.ROOT));
+                    }
+                } catch (IOException exception) {
+
+                    exception.printStackTrace();
+                    NativeDialogs.showErrorMessage("The modsettings.lsx of the player profile could not be read, see the log for details.");
+                    return;
+                }
+                if(mods.size() < 2) {
+
+                    NativeDialogs.showErrorMessage("At least two mods need to be installed to pin their order.");
+                    return;
+                }
+                Object mod = JOptionPane.showInputDialog(WindowUtils.mainFrame, "Mod to pin:", "BG3 Module", JOptionPane.QUESTION_MESSAGE, null, mods.keySet().toArray(), null);
+                if(mod == null) return;
+                String uuid = mods.get(mod.toString());
+                Set<String> pinned = LoadOrderPins.get().getOrDefault(uuid, Set.of());
+
+                // Mods it is already pinned after are offered again, choosing one of them removes the pin
+                List<String> options = new ArrayList<>();
+                mods.forEach((name, other) -> {
+
+                    if(!other.equals(uuid)) options.add(pinned.contains(other) ? name + " [pinned, choose to unpin]" : name);
+                });
+                Object after = JOptionPane.showInputDialog(WindowUtils.mainFrame, String.format("%s should load after:", mod), "BG3 Module", JOptionPane.QUESTION_MESSAGE, null, options.toArray(), null);
+                if(after == null) return;
+                String afterName = after.toString().replace(" [pinned, choose to unpin]", "");
+                try {
+
+                    if(pinned.contains(mods.get(afterName))) {
+
+                        LoadOrderPins.unpin(uuid, mods.get(afterName));
+                    } else {
+
+                        LoadOrderPins.pin(uuid, mods.get(afterName));
+                    }
+                } catch (IOException exception) {
+
+                    exception.printStackTrace();
+                    NativeDialogs.showErrorMessage("The pin could not be saved, see the log for details.");
+                    return;
+                }
+                JOptionPane.showMessageDialog(WindowUtils.mainFrame, "The load order will follow the pin the next time mods are installed or removed.", "BG3 Module", JOptionPane.INFORMATION_MESSAGE);
+            });
+        }
+    }
+
     public static class LSLib extends JMenuItem {
 
         public LSLib() {
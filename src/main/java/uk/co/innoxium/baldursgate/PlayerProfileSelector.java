@@ -13,6 +13,10 @@ import javax.swing.*;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+import java.util.stream.Collectors;
 
 
 /**
@@ -31,14 +35,42 @@ public class PlayerProfileSelector extends JDialog {
     // JFormDesigner - End of variables declaration  //GEN-END:variables
 
     private final File playerProfileFolder;
+    // Which of the selected profiles mods are installed for, the one manifests record
+    private final JComboBox<File> primaryBox = new JComboBox<>();
 
     private void okClicked(ActionEvent e) {
 
-        // We set the player profile of for the user.
-        BG3Settings.playerProfile = profileList.getSelectedValue().getAbsolutePath();
+        List<File> selected = profileList.getSelectedValuesList();
+        if(selected.isEmpty() || primaryBox.getSelectedItem() == null) {
+
+            JOptionPane.showMessageDialog(this, "Select at least one player profile.", "Baldur's Gate 3 Profile Selector", JOptionPane.WARNING_MESSAGE);
+            return;
+        }
+        // We set the player profile of for the user, any others get the same changes to their modsettings.lsx
+        File primary = (File)primaryBox.getSelectedItem();
+        BG3Settings.playerProfile = primary.getAbsolutePath();
+        BG3Settings.extraProfiles = selected.stream().filter(profile -> !profile.equals(primary)).map(File::getAbsolutePath).collect(Collectors.joining(";"));
         this.dispose();
     }
 
+    // Offers the selected profiles as the primary, keeping the one chosen if it is still selected, then the current one
+    private void selectionChanged() {
+
+        List<File> selected = profileList.getSelectedValuesList();
+        Object chosen = primaryBox.getSelectedItem();
+        File current = BG3Settings.playerProfile.isEmpty() ? null : new File(BG3Settings.playerProfile).getAbsoluteFile();
+        primaryBox.setModel(new DefaultComboBoxModel<>(selected.toArray(new File[0])));
+        if(chosen != null && selected.contains(chosen)) {
+
+            primaryBox.setSelectedItem(chosen);
+        } else if(current != null && selected.contains(current)) {
+
+            primaryBox.setSelectedItem(current);
+        }
+        primaryBox.setEnabled(selected.size() > 1);
+        okButton.setEnabled(!selected.isEmpty());
+    }
+
     private void initComponents() {
         // JFormDesigner - Component initialization - DO NOT MODIFY  //GEN-BEGIN:initComponents
         dialogPane = new JPanel();
@@ -77,7 +109,7 @@ public class PlayerProfileSelector extends JDialog {
 
                 //---- profileList ----
                 profileList.setBorder(null);
-                profileList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+                profileList.setSelectionMode(ListSelectionModel.MULTIPLE_INTERVAL_SELECTION);
                 listScrollPane.setViewportView(profileList);
             }
             dialogPane.add(listScrollPane, "cell 0 1");
@@ -99,7 +131,7 @@ public class PlayerProfileSelector extends JDialog {
                 infoPanel.add(label1, "cell 0 0,dock center");
 
                 //---- label2 ----
-                label2.setText("All Mods will be installed to this profile.");
+                label2.setText("All Mods will be installed to the selected profiles.");
                 label2.setHorizontalAlignment(SwingConstants.CENTER);
                 infoPanel.add(label2, "cell 0 1");
             }
@@ -134,7 +166,27 @@ public class PlayerProfileSelector extends JDialog {
             return ret;
         });
 
-        profileList.setListData(playerProfileFolder.listFiles(File::isDirectory));
+        File[] found = playerProfileFolder.listFiles(File::isDirectory);
+        File[] profiles = found == null ? new File[0] : Arrays.stream(found).map(File::getAbsoluteFile).toArray(File[]::new);
+        profileList.setListData(profiles);
+
+        primaryBox.setRenderer((list, value, index, isSelected, cellHasFocus) -> new JLabel(value == null ? "" : value.getName()));
+        JPanel primaryPanel = new JPanel(new MigLayout("insets 0,hidemode 3", "[][grow,fill]", "[]"));
+        primaryPanel.add(new JLabel("Install mods for:"), "cell 0 0");
+        primaryPanel.add(primaryBox, "cell 1 0");
+        primaryPanel.setToolTipText("The profile mods are installed for, the other selected profiles get the same changes to their modsettings.lsx");
+        dialogPane.add(primaryPanel, "cell 0 2");
+        profileList.addListSelectionListener(e -> {
+
+            if(!e.getValueIsAdjusting()) selectionChanged();
+        });
+
+        // The profiles already in use start selected
+        List<File> current = BG3Settings.playerProfile.isEmpty() ? List.of() : BG3Settings.getPlayerProfiles();
+        profileList.setSelectedIndices(IntStream.range(0, profiles.length).filter(i -> current.contains(profiles[i])).toArray());
+        selectionChanged();
+        pack();
+        setLocationRelativeTo(getOwner());
     }
 
     public PlayerProfileSelector(File playerProfileFolder) {
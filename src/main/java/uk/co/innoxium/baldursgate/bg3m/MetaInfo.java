@@ -1,9 +1,14 @@
 package uk.co.innoxium.baldursgate.bg3m;
 
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
-import org.dom4j.Element;
+import uk.co.innoxium.baldursgate.bg3m.lsx.LSXNode;
 import uk.co.innoxium.candor.util.NativeDialogs;
 
+import java.util.ArrayList;
+import java.util.List;
+
 public class MetaInfo {
 
     private String author;
@@ -12,6 +17,10 @@ public class MetaInfo {
     private String version;
     private String description;
     private String uuid;
+    // Of the pak the mod was installed from, once it has been deployed
+    private String md5 = "";
+    // The UUIDs of the mods it has to load after, from the Dependencies of its meta.lsx
+    private List<String> dependencies = new ArrayList<>();
 
     private final MetaType type;
 
@@ -50,6 +59,28 @@ public class MetaInfo {
         return uuid;
     }
 
+    public String getMd5() {
+
+        return md5;
+    }
+
+    public MetaInfo setMd5(String md5) {
+
+        this.md5 = md5 == null ? "" : md5;
+        return this;
+    }
+
+    public List<String> getDependencies() {
+
+        return dependencies;
+    }
+
+    public MetaInfo setDependencies(List<String> dependencies) {
+
+        this.dependencies = new ArrayList<>(dependencies);
+        return this;
+    }
+
     public MetaType getType() {
 
         return type;
@@ -75,7 +106,15 @@ public class MetaInfo {
                 case V3 -> ret = buildV3(obj);
                 default -> throw new IllegalStateException("Unexpected value: " + type);
             }
-        } catch(NullPointerException e) {
+            // Optional in every format
+            if(ret != null && obj.has("Dependencies")) {
+
+                for(JsonElement element : obj.getAsJsonArray("Dependencies")) {
+
+                    dependencies.add(element.getAsString());
+                }
+            }
+        } catch(NullPointerException | IllegalStateException e) {
 
             e.printStackTrace();
             NativeDialogs.showErrorMessage("The mod was formatted incorrectly, please report this to the mod author.");
@@ -116,88 +155,66 @@ public class MetaInfo {
         return this;
     }
 
-    public Element toModOrder(Element parent) {
+    /**
+     * Writes the mod in its own format, so new MetaInfo(getType()).fromJson(toJson()) reads it back
+     */
+    public JsonObject toJson() {
 
-        Element moduleNode = parent.addElement("node").addAttribute("id", "Module");
+        JsonObject ret = new JsonObject();
+        switch(type) {
 
-        return moduleNode
-                .addElement("attribute")
-                .addAttribute("id", "UUID")
-                .addAttribute("type", "FixedString")
-                .addAttribute("value", this.uuid);
-    }
+            case V1, V2 -> {
 
-    public Element toModuleShortDesc(Element parent) {
+                ret.addProperty("modName", this.name);
+                ret.addProperty("folderName", this.folder);
+                ret.addProperty("version", this.version);
+                ret.addProperty("UUID", this.uuid);
+            }
+            default -> {
+
+                ret.addProperty("Name", this.name);
+                ret.addProperty("Author", this.author);
+                ret.addProperty("Description", this.description);
+                ret.addProperty("Version", this.version);
+                ret.addProperty("Folder", this.folder);
+                ret.addProperty("UUID", this.uuid);
+            }
+        }
+        if(!dependencies.isEmpty()) {
 
-        Element moduleShortDesc = parent.addElement("node").addAttribute("id", "ModuleShortDesc");
-        addMSDAttribute(moduleShortDesc, "Folder", "LSWString", this.folder);
-        addMSDAttribute(moduleShortDesc, "MD5", "LSString", "");
-        addMSDAttribute(moduleShortDesc, "Name", "FixedString", this.name);
-        addMSDAttribute(moduleShortDesc, "UUID", "FixedString", this.uuid);
-        addMSDAttribute(moduleShortDesc, "Version", "int32", this.version);
-        return moduleShortDesc;
+            JsonArray array = new JsonArray();
+            dependencies.forEach(array::add);
+            ret.add("Dependencies", array);
+        }
+        return ret;
     }
 
-    // Adds an element to the <node id=ModuleShortDesc> node
-    private Element addMSDAttribute(Element moduleShortDesc, String id, String type, String value) {
+    public LSXNode toModOrder() {
 
-        return moduleShortDesc.addElement("attribute")
-                .addAttribute("id", id)
-                .addAttribute("type", type)
-                .addAttribute("value", value);
+        return new LSXNode("Module")
+                .addAttribute("UUID", "FixedString", this.uuid);
     }
 
-    public void removeModShortDesc(Element modChildren) {
-
-        modChildren.selectNodes("node").forEach(node -> {
-
-            Element element = (Element)node;
-            element.attributes().forEach(attr -> {
-
-                if(attr.getValue().equalsIgnoreCase("ModuleShortDesc")) {
-
-                    element.selectNodes("attribute").forEach(msdNode -> {
-
-                        Element msdElement = (Element)msdNode;
-                        msdElement.attributes().forEach(msdAttr -> {
-
-                            if(msdAttr.getValue().equalsIgnoreCase("Folder")) {
+    public LSXNode toModuleShortDesc() {
 
-                                if(msdElement.attribute("value").getValue().equalsIgnoreCase(this.folder)) {
-
-                                    modChildren.remove(node);
-                                }
-                            }
-                        });
-                    });
-                }
-            });
-        });
+        return new LSXNode("ModuleShortDesc")
+                .addAttribute("Folder", "LSWString", this.folder)
+                .addAttribute("MD5", "LSString", this.md5)
+                .addAttribute("Name", "FixedString", this.name)
+                .addAttribute("UUID", "FixedString", this.uuid)
+                .addAttribute(isVersion64(this.version) ? "Version64" : "Version", isVersion64(this.version) ? "int64" : "int32", this.version);
     }
 
-    public void removeModOrder(Element modOrderChildren) {
-
-        modOrderChildren.selectNodes("node").forEach(moduleNode -> {
-
-            Element moduleElement = (Element)moduleNode;
-
-            if(moduleElement.attribute("id").getValue().equalsIgnoreCase("Module")) {
+    // Versions read from a pak's meta.lsx may be too large for an int32
+    private static boolean isVersion64(String version) {
 
-                moduleElement.selectNodes("attribute").forEach(attrNode -> {
-
-                    Element attrElement = (Element)attrNode;
-                    attrElement.attributes().forEach(attr -> {
-
-                        if(attr.getValue().equalsIgnoreCase("UUID")) {
+        try {
 
-                            if(attrElement.attribute("value").getValue().equalsIgnoreCase(this.uuid)) {
+            long value = Long.parseLong(version);
+            return value > Integer.MAX_VALUE || value < Integer.MIN_VALUE;
+        } catch (NumberFormatException e) {
 
-                                modOrderChildren.remove(moduleNode);
-                            }
-                        }
-                    });
-                });
-            }
-        });
+            return false;
+        }
     }
 }
@@ -0,0 +1,150 @@
+package uk.co.innoxium.baldursgate.bg3m.archive;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import org.apache.commons.io.FileUtils;
+import uk.co.innoxium.baldursgate.BaldursGateModInstaller;
+import uk.co.innoxium.baldursgate.bg3m.io.AtomicFile;
+import uk.co.innoxium.candor.util.Resources;
+import uk.co.innoxium.cybernize.archive.Archive;
+import uk.co.innoxium.cybernize.archive.ArchiveBuilder;
+import uk.co.innoxium.cybernize.zip.ZipUtils;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Works out what kind of mod an archive holds, with a single pass over its directory.
+ * - PAK if it has an info.json
+ * - PAK_ONLY if it has paks but no info.json
+ * - DATA otherwise
+ *
+ * Results are cached by path, size and modified time, and persisted across sessions,
+ * so an archive is only listed again once it changes.
+ */
+public class ArchiveClassifier {
+
+    private static final int VERSION = 1;
+    private static final Map<String, JsonObject> cache = new ConcurrentHashMap<>();
+    private static boolean loaded = false;
+
+    /**
+     * @return the mod type of the archive, from the cache if it has not changed
+     * @throws IOException if the archive could not be listed
+     */
+    public static BaldursGateModInstaller.ModType classify(File file) throws IOException {
+
+        load();
+        String key = file.getAbsolutePath();
+        JsonObject cached = cache.get(key);
+        if(cached != null && cached.get("size").getAsLong() == file.length() && cached.get("modified").getAsLong() == file.lastModified()) {
+
+            return BaldursGateModInstaller.ModType.valueOf(cached.get("type").getAsString());
+        }
+
+        BaldursGateModInstaller.ModType ret = list(file);
+        JsonObject entry = new JsonObject();
+        entry.addProperty("type", ret.name());
+        entry.addProperty("size", file.length());
+        entry.addProperty("modified", file.lastModified());
+        cache.put(key, entry);
+        save();
+        return ret;
+    }
+
+    // Only the type is kept, the installers list the entries they need from the ModArchive
+    private static BaldursGateModInstaller.ModType list(File file) throws IOException {
+
+        boolean[] found = new boolean[2]; // info.json, any .pak
+        if(ZipUtils.isZip(file)) {
+
+            try(ZipFile zip = new ZipFile(file)) {
+
+                for(ZipEntry entry : Collections.list(zip.entries())) {
+
+                    if(entry.isDirectory()) continue;
+                    if(entry.getName().equals("info.json")) found[0] = true;
+                    if(entry.getName().contains(".pak")) found[1] = true;
+                }
+            }
+        } else {
+
+            Archive archive = new ArchiveBuilder(file).type(ArchiveBuilder.ArchiveType.SEVEN_ZIP).build();
+            archive.getAllArchiveItems().forEach(item -> {
+
+                if(item.isDirectory()) return;
+                if(item.getFilePath().contains("info.json")) found[0] = true;
+                if(item.getFilePath().contains(".pak")) found[1] = true;
+            });
+        }
+
+        if(found[0]) {
+
+            return BaldursGateModInstaller.ModType.PAK; // Mod contains both info.json and any amount of .pak files
+        } else if(found[1]) {
+
+            return BaldursGateModInstaller.ModType.PAK_ONLY; // Mod only contains a .pak
+        }
+        return BaldursGateModInstaller.ModType.DATA; // Mod does not contain a .pak or info.json
+    }
+
+    private static File getCacheFile() {
+
+        return new File(Resources.CONFIG_PATH, "bg3/classifications.json");
+    }
+
+    private static synchronized void load() {
+
+        if(loaded) return;
+        loaded = true;
+
+        File file = getCacheFile();
+        if(!file.isFile()) return;
+        try(Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+
+            JsonObject json = JsonParser.parseReader(reader).getAsJsonObject();
+            if(json.get("version").getAsInt() != VERSION) return;
+            json.getAsJsonObject("archives").entrySet().forEach(entry -> cache.put(entry.getKey(), entry.getValue().getAsJsonObject()));
+        } catch (IOException | JsonParseException | IllegalStateException | NullPointerException e) {
+
+            // Only a cache, everything will be classified again
+            e.printStackTrace();
+        }
+    }
+
+    private static synchronized void save() {
+
+        JsonObject archives = new JsonObject();
+        cache.forEach((key, value) -> {
+
+            // Forget archives which have been deleted
+            if(new File(key).exists()) archives.add(key, value);
+        });
+        JsonObject json = new JsonObject();
+        json.addProperty("version", VERSION);
+        json.add("archives", archives);
+
+        File file = getCacheFile();
+        File temp = null;
+        try {
+
+            FileUtils.forceMkdirParent(file);
+            temp = AtomicFile.createTemp(file);
+            Files.writeString(temp.toPath(), json.toString(), StandardCharsets.UTF_8);
+            AtomicFile.replace(temp, file);
+        } catch (IOException e) {
+
+            e.printStackTrace();
+        } finally {
+
+            FileUtils.deleteQuietly(temp);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package uk.co.innoxium.baldursgate.bg3m.archive;
+
+import org.apache.commons.io.FileUtils;
+import uk.co.innoxium.baldursgate.bg3m.hash.PakHasher;
+import uk.co.innoxium.baldursgate.bg3m.io.AtomicFile;
+import uk.co.innoxium.baldursgate.bg3m.io.ScratchSpace;
+import uk.co.innoxium.cybernize.archive.Archive;
+import uk.co.innoxium.cybernize.archive.ArchiveBuilder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * Reads 7z and rar archives through cybernize.
+ * Cybernize can only extract a whole archive, so it is extracted once to a
+ * {@link ScratchSpace} directory on first use, and entries are read and filtered from there.
+ */
+class ExtractedModArchive extends ModArchive {
+
+    private ScratchSpace.Scope extracted;
+
+    ExtractedModArchive(File file) {
+
+        super(file);
+    }
+
+    private synchronized File getExtracted() throws IOException {
+
+        if(extracted == null) {
+
+            extracted = ScratchSpace.open("extract");
+            Archive archive = new ArchiveBuilder(file).type(ArchiveBuilder.ArchiveType.SEVEN_ZIP).outputDirectory(extracted.getDirectory()).build();
+            archive.extract();
+        }
+        return extracted.getDirectory();
+    }
+
+    @Override
+    public List<String> getEntries() throws IOException {
+
+        List<String> ret = new ArrayList<>();
+        File root = getExtracted();
+        for(File found : FileUtils.listFiles(root, null, true)) {
+
+            ret.add(root.toPath().relativize(found.toPath()).toString().replace(File.separatorChar, '/'));
+        }
+        return ret;
+    }
+
+    @Override
+    public InputStream openEntry(String name) throws IOException {
+
+        File entry = resolve(getExtracted(), name);
+        return entry.isFile() ? new FileInputStream(entry) : null;
+    }
+
+    @Override
+    public List<File> extract(File outputDirectory, Predicate<String> filter) throws IOException {
+
+        List<File> ret = new ArrayList<>();
+        for(String name : getEntries()) {
+
+            if(!filter.test(name)) continue;
+
+            File output = resolve(outputDirectory, name);
+            FileUtils.copyFile(resolve(getExtracted(), name), output);
+            ret.add(output);
+        }
+        return ret;
+    }
+
+    @Override
+    public void extractTo(String name, File target, PakHasher hasher) throws IOException {
+
+        // Already on disk, move it next to the target rather than copying it again
+        File extractedEntry = resolve(getExtracted(), name);
+        if(!extractedEntry.isFile()) throw new FileNotFoundException(String.format("%s not found in %s", name, file.getName()));
+        FileUtils.forceMkdirParent(target);
+        File temp = AtomicFile.createTemp(target);
+        try {
+
+            Files.move(extractedEntry.toPath(), temp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            // Moving it did not read it, so this is still the only pass over the file
+            if(hasher != null) hasher.update(temp);
+            AtomicFile.replace(temp, target);
+        } finally {
+
+            FileUtils.deleteQuietly(temp);
+        }
+    }
+
+    @Override
+    public void close() {
+
+        if(extracted != null) extracted.close();
+    }
+}
@@ -0,0 +1,144 @@
+package uk.co.innoxium.baldursgate.bg3m.archive;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.apache.commons.io.FileUtils;
+import uk.co.innoxium.baldursgate.bg3m.hash.PakHasher;
+import uk.co.innoxium.baldursgate.bg3m.io.AtomicFile;
+import uk.co.innoxium.cybernize.zip.ZipUtils;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.Predicate;
+
+/**
+ * A mod's archive, which can list its entries and read or extract only the ones needed.
+ * Entry names always use '/' as the separator.
+ * Entries may be opened and extracted from several threads at once.
+ */
+public abstract class ModArchive implements Closeable {
+
+    protected final File file;
+
+    protected ModArchive(File file) {
+
+        this.file = file;
+    }
+
+    /**
+     * Opens the archive with the best reader for its format
+     * - zip archives are read entry by entry, so only the entries asked for are decompressed
+     * - anything else goes through cybernize, which has to extract the whole archive first
+     */
+    public static ModArchive open(File file) throws IOException {
+
+        if(ZipUtils.isZip(file)) {
+
+            return new ZipModArchive(file);
+        }
+        return new ExtractedModArchive(file);
+    }
+
+    public File getFile() {
+
+        return file;
+    }
+
+    /**
+     * @return the names of every file in the archive, excluding directories
+     */
+    public abstract List<String> getEntries() throws IOException;
+
+    /**
+     * @return a stream of the entry's contents, or null if the archive has no such entry
+     */
+    public abstract InputStream openEntry(String name) throws IOException;
+
+    /**
+     * Extracts the entries accepted by the filter, keeping their paths
+     * @param outputDirectory - The directory to extract into
+     * @param filter - Accepts the entry names to extract
+     * @return the extracted files
+     */
+    public abstract List<File> extract(File outputDirectory, Predicate<String> filter) throws IOException;
+
+    /**
+     * Streams a single entry to its final location. The entry is written under a temp
+     * name next to the target, and only renamed into place once it is complete.
+     * @param name - The entry to extract
+     * @param target - The file to create or replace
+     */
+    public void extractTo(String name, File target) throws IOException {
+
+        extractTo(name, target, null);
+    }
+
+    /**
+     * Streams a single entry to its final location, hashing it on the way
+     * @param hasher - Given every byte of the entry as it is written, or null
+     */
+    public void extractTo(String name, File target, PakHasher hasher) throws IOException {
+
+        FileUtils.forceMkdirParent(target);
+        File temp = AtomicFile.createTemp(target);
+        try {
+
+            try(InputStream in = openEntry(name)) {
+
+                if(in == null) throw new FileNotFoundException(String.format("%s not found in %s", name, file.getName()));
+                try(OutputStream out = hasher != null ? hasher.wrap(new FileOutputStream(temp)) : new FileOutputStream(temp)) {
+
+                    in.transferTo(out);
+                }
+            }
+            AtomicFile.replace(temp, target);
+        } finally {
+
+            FileUtils.deleteQuietly(temp);
+        }
+    }
+
+    /**
+     * Reads a json entry straight from the archive
+     * @return the parsed object, or null if the archive has no such entry
+     */
+    public JsonObject readJson(String name) throws IOException {
+
+        try(InputStream in = openEntry(name)) {
+
+            if(in == null) return null;
+            return JsonParser.parseReader(new InputStreamReader(in, StandardCharsets.UTF_8)).getAsJsonObject();
+        }
+    }
+
+    /**
+     * @return true for entries in the root of the archive
+     */
+    public static boolean isRootEntry(String name) {
+
+        return name.indexOf('/') < 0;
+    }
+
+    /**
+     * @return true for .pak files in the root of the archive
+     */
+    public static boolean isRootPak(String name) {
+
+        return isRootEntry(name) && name.toLowerCase(Locale.ROOT).endsWith(".pak");
+    }
+
+    /**
+     * @return the file an entry extracts to, refusing entries which would escape the output directory
+     */
+    protected static File resolve(File outputDirectory, String name) throws IOException {
+
+        File ret = new File(outputDirectory, name);
+        if(!ret.getCanonicalPath().startsWith(outputDirectory.getCanonicalPath() + File.separator)) {
+
+            throw new IOException(String.format("Archive entry %s is outside of the archive", name));
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,236 @@
+package uk.co.innoxium.baldursgate.bg3m.archive;
+
+import org.apache.commons.io.FileUtils;
+import uk.co.innoxium.baldursgate.bg3m.hash.PakHasher;
+import uk.co.innoxium.baldursgate.bg3m.io.AtomicFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.function.Predicate;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Reads zip archives directly, decompressing only the entries which are asked for.
+ * Stored (uncompressed) entries, which is how most paks are zipped, are copied from
+ * the archive to their destination with {@link FileChannel#transferTo}, without
+ * passing through the heap. When they are hashed, the copy is read back once it is written.
+ */
+class ZipModArchive extends ModArchive {
+
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+    private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int ZIP64_EOCD_SIGNATURE = 0x06064b50;
+    private static final int CENTRAL_SIGNATURE = 0x02014b50;
+    private static final int LOCAL_SIGNATURE = 0x04034b50;
+    private static final long MAX_32 = 0xFFFFFFFFL;
+
+    private final ZipFile zip;
+    // Local header offsets of the stored entries, read on first use
+    private Map<String, Long> storedOffsets;
+
+    ZipModArchive(File file) throws IOException {
+
+        super(file);
+        this.zip = new ZipFile(file);
+    }
+
+    @Override
+    public List<String> getEntries() {
+
+        List<String> ret = new ArrayList<>();
+        Collections.list(zip.entries()).forEach(entry -> {
+
+            if(!entry.isDirectory()) ret.add(entry.getName());
+        });
+        return ret;
+    }
+
+    @Override
+    public InputStream openEntry(String name) throws IOException {
+
+        ZipEntry entry = zip.getEntry(name);
+        return entry != null ? zip.getInputStream(entry) : null;
+    }
+
+    @Override
+    public List<File> extract(File outputDirectory, Predicate<String> filter) throws IOException {
+
+        List<File> ret = new ArrayList<>();
+        for(ZipEntry entry : Collections.list(zip.entries())) {
+
+            if(entry.isDirectory() || !filter.test(entry.getName())) continue;
+
+            File output = resolve(outputDirectory, entry.getName());
+            extractTo(entry.getName(), output);
+            ret.add(output);
+        }
+        return ret;
+    }
+
+    @Override
+    public void extractTo(String name, File target, PakHasher hasher) throws IOException {
+
+        ZipEntry entry = zip.getEntry(name);
+        if(entry == null) throw new IOException(String.format("%s not found in %s", name, file.getName()));
+        if(entry.getMethod() != ZipEntry.STORED) {
+
+            super.extractTo(name, target, hasher);
+            return;
+        }
+
+        Long localHeader = getStoredOffsets().get(name);
+        if(localHeader == null) {
+
+            super.extractTo(name, target, hasher);
+            return;
+        }
+
+        FileUtils.forceMkdirParent(target);
+        File temp = AtomicFile.createTemp(target);
+        try {
+
+            try(FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+                FileChannel out = FileChannel.open(temp.toPath(), StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+
+                long position = dataOffset(in, localHeader);
+                long size = entry.getSize();
+                long transferred = 0;
+                while(transferred < size) {
+
+                    long count = in.transferTo(position + transferred, size - transferred, out);
+                    if(count <= 0) throw new IOException(String.format("%s in %s is truncated", name, file.getName()));
+                    transferred += count;
+                }
+            }
+            // Hashed from the written copy, which is still in the page cache, so the copy itself stays in the kernel
+            if(hasher != null) hasher.update(temp);
+            AtomicFile.replace(temp, target);
+        } finally {
+
+            FileUtils.deleteQuietly(temp);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+
+        zip.close();
+    }
+
+    private synchronized Map<String, Long> getStoredOffsets() throws IOException {
+
+        if(storedOffsets == null) {
+
+            try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+
+                storedOffsets = readStoredOffsets(channel);
+            }
+        }
+        return storedOffsets;
+    }
+
+    // Reads the central directory for the local header offset of every stored entry
+    private static Map<String, Long> readStoredOffsets(FileChannel channel) throws IOException {
+
+        long size = channel.size();
+        int tailSize = (int)Math.min(size, 0xFFFF + 22);
+        ByteBuffer tail = read(channel, size - tailSize, tailSize);
+
+        int eocd = -1;
+        for(int i = tailSize - 22; i >= 0; i--) {
+
+            if(tail.getInt(i) == EOCD_SIGNATURE) {
+
+                eocd = i;
+                break;
+            }
+        }
+        if(eocd < 0) throw new IOException("Not a zip archive, no end of central directory");
+
+        long entries = tail.getShort(eocd + 10) & 0xFFFF;
+        long directorySize = tail.getInt(eocd + 12) & MAX_32;
+        long directoryOffset = tail.getInt(eocd + 16) & MAX_32;
+        if(directoryOffset == MAX_32 || entries == 0xFFFF || directorySize == MAX_32) {
+
+            long locator = size - tailSize + eocd - 20;
+            ByteBuffer locatorBuffer = read(channel, locator, 20);
+            if(locatorBuffer.getInt(0) != ZIP64_LOCATOR_SIGNATURE) throw new IOException("Zip64 archive without a locator");
+            ByteBuffer zip64 = read(channel, locatorBuffer.getLong(8), 56);
+            if(zip64.getInt(0) != ZIP64_EOCD_SIGNATURE) throw new IOException("Zip64 end of central directory not found");
+            entries = zip64.getLong(32);
+            directorySize = zip64.getLong(40);
+            directoryOffset = zip64.getLong(48);
+        }
+        if(directorySize > Integer.MAX_VALUE) throw new IOException("Zip central directory is too large");
+
+        Map<String, Long> ret = new HashMap<>();
+        ByteBuffer directory = read(channel, directoryOffset, (int)directorySize);
+        int position = 0;
+        for(long i = 0; i < entries && position + 46 <= directory.limit(); i++) {
+
+            if(directory.getInt(position) != CENTRAL_SIGNATURE) throw new IOException("Malformed zip central directory");
+            int method = directory.getShort(position + 10) & 0xFFFF;
+            long compressedSize = directory.getInt(position + 20) & MAX_32;
+            long uncompressedSize = directory.getInt(position + 24) & MAX_32;
+            int nameLength = directory.getShort(position + 28) & 0xFFFF;
+            int extraLength = directory.getShort(position + 30) & 0xFFFF;
+            int commentLength = directory.getShort(position + 32) & 0xFFFF;
+            long localHeader = directory.getInt(position + 42) & MAX_32;
+
+            byte[] nameBytes = new byte[nameLength];
+            directory.get(position + 46, nameBytes);
+            String name = new String(nameBytes, StandardCharsets.UTF_8);
+
+            if(localHeader == MAX_32) {
+
+                // The real offset is in the zip64 extra field, after any sizes which also overflowed
+                int extra = position + 46 + nameLength;
+                int extraEnd = extra + extraLength;
+                while(extra + 4 <= extraEnd) {
+
+                    int id = directory.getShort(extra) & 0xFFFF;
+                    int length = directory.getShort(extra + 2) & 0xFFFF;
+                    if(id == 0x0001) {
+
+                        int field = extra + 4;
+                        if(uncompressedSize == MAX_32) field += 8;
+                        if(compressedSize == MAX_32) field += 8;
+                        localHeader = directory.getLong(field);
+                        break;
+                    }
+                    extra += 4 + length;
+                }
+            }
+            if(method == ZipEntry.STORED) ret.put(name, localHeader);
+            position += 46 + nameLength + extraLength + commentLength;
+        }
+        return ret;
+    }
+
+    private static long dataOffset(FileChannel channel, long localHeader) throws IOException {
+
+        ByteBuffer header = read(channel, localHeader, 30);
+        if(header.getInt(0) != LOCAL_SIGNATURE) throw new IOException("Malformed zip local header");
+        int nameLength = header.getShort(26) & 0xFFFF;
+        int extraLength = header.getShort(28) & 0xFFFF;
+        return localHeader + 30 + nameLength + extraLength;
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while(buffer.hasRemaining()) {
+
+            if(channel.read(buffer, position + buffer.position()) < 0) throw new IOException("Unexpected end of zip archive");
+        }
+        return buffer.flip();
+    }
+}
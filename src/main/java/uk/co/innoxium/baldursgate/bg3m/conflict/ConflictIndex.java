@@ -0,0 +1,200 @@
+package uk.co.innoxium.baldursgate.bg3m.conflict;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import uk.co.innoxium.baldursgate.bg3m.manifest.InstallManifest;
+import uk.co.innoxium.baldursgate.bg3m.pak.LSPKReader;
+import uk.co.innoxium.baldursgate.bg3m.pak.PakEntry;
+import uk.co.innoxium.candor.util.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Maps every file provided by an installed mod, by its path inside the game's data, to
+ * the mods which provide it, in the order they were added. The last provider wins.
+ * - paths are lower case with '/' separators, and each is stored once, shared by every provider
+ * - paks contribute their file table, loose mods the files they install
+ * - providers are added and removed one at a time, the index is never rebuilt
+ *
+ * The index is built from the install manifests the first time it is used.
+ */
+public class ConflictIndex {
+
+    private static ConflictIndex instance;
+
+    // Path to its providers, in the order they were added
+    private final Map<String, Providers> providers = new HashMap<>();
+    // Provider to the paths it provides, the same instances as the keys above
+    private final Map<String, String[]> provided = new LinkedHashMap<>();
+
+    /**
+     * @return the index of every installed mod, built from the install manifests on first use
+     */
+    public static synchronized ConflictIndex get() {
+
+        if(instance == null) {
+
+            instance = new ConflictIndex();
+            for(InstallManifest manifest : InstallManifest.loadAll()) {
+
+                if(manifest.isInstalled()) instance.add(manifest.getId(), readDeployedPaths(manifest));
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Adds a provider's files, after every provider already in the index.
+     * A provider which is already indexed is replaced.
+     * @param provider - The id of the mod
+     * @param paths - The paths it provides
+     * @return the number of files this provider overrides, by the provider they are overridden from
+     */
+    public synchronized Map<String, Integer> add(String provider, Collection<String> paths) {
+
+        remove(provider);
+
+        List<String> keys = new ArrayList<>(paths.size());
+        Map<String, Integer> ret = new LinkedHashMap<>();
+        for(String path : paths) {
+
+            String key = key(path);
+            Providers entry = providers.get(key);
+            if(entry == null) {
+
+                entry = new Providers(key);
+                providers.put(key, entry);
+            } else {
+
+                if(entry.mods.contains(provider)) continue;
+                ret.merge(entry.mods.get(entry.mods.size() - 1), 1, Integer::sum);
+            }
+            entry.mods.add(provider);
+            // The instance already in the map, so each path is only held once
+            keys.add(entry.path);
+        }
+        provided.put(provider, keys.toArray(new String[0]));
+        return ret;
+    }
+
+    /**
+     * Removes a provider's files, the files it was overriding fall back to the provider before it
+     */
+    public synchronized void remove(String provider) {
+
+        String[] paths = provided.remove(provider);
+        if(paths == null) return;
+        for(String path : paths) {
+
+            Providers entry = providers.get(path);
+            if(entry == null) continue;
+            entry.mods.remove(provider);
+            if(entry.mods.isEmpty()) providers.remove(path);
+        }
+    }
+
+    /**
+     * @return the providers of the path, in order, the last is the one the game will use
+     */
+    public synchronized List<String> getProviders(String path) {
+
+        Providers entry = providers.get(key(path));
+        return entry == null ? List.of() : List.copyOf(entry.mods);
+    }
+
+    /**
+     * @return the paths which more than one provider provides
+     */
+    public synchronized Map<String, List<String>> getConflicts() {
+
+        Map<String, List<String>> ret = new TreeMap<>();
+        providers.forEach((path, entry) -> {
+
+            if(entry.mods.size() > 1) ret.put(path, List.copyOf(entry.mods));
+        });
+        return ret;
+    }
+
+    /**
+     * @return the number of files the provider overrides, by the provider they are overridden from
+     */
+    public synchronized Map<String, Integer> getOverridden(String provider) {
+
+        Map<String, Integer> ret = new LinkedHashMap<>();
+        String[] paths = provided.get(provider);
+        if(paths == null) return ret;
+        for(String path : paths) {
+
+            List<String> mods = providers.get(path).mods;
+            int index = mods.indexOf(provider);
+            if(index > 0) ret.merge(mods.get(index - 1), 1, Integer::sum);
+        }
+        return ret;
+    }
+
+    /**
+     * Logs each provider the mod overrides files from
+     */
+    public static void report(String provider, Map<String, Integer> overridden) {
+
+        overridden.forEach((other, count) -> Logger.info(String.format("%s overrides %d files from %s", provider, count, other)));
+    }
+
+    /**
+     * @return the paths inside every pak the manifest deployed, and every loose file it installed
+     */
+    public static List<String> readDeployedPaths(InstallManifest manifest) {
+
+        List<String> ret = new ArrayList<>();
+        for(JsonElement element : manifest.getFiles()) {
+
+            JsonObject record = element.getAsJsonObject();
+            // Loose files record their path inside Data
+            if(record.has("relative")) {
+
+                ret.add(record.get("relative").getAsString());
+                continue;
+            }
+            File pak = new File(record.get("path").getAsString());
+            if(pak.getName().toLowerCase(Locale.ROOT).endsWith(".pak")) ret.addAll(readPakPaths(pak));
+        }
+        return ret;
+    }
+
+    /**
+     * @return the paths of every file in the pak's file table, or nothing if it could not be read
+     */
+    public static List<String> readPakPaths(File pak) {
+
+        List<String> ret = new ArrayList<>();
+        try(LSPKReader reader = LSPKReader.open(pak)) {
+
+            for(PakEntry entry : reader.getEntries()) {
+
+                ret.add(entry.getName());
+            }
+        } catch (IOException e) {
+
+            e.printStackTrace();
+        }
+        return ret;
+    }
+
+    private static String key(String path) {
+
+        return path.replace('\\', '/').toLowerCase(Locale.ROOT);
+    }
+
+    private static class Providers {
+
+        private final String path;
+        private final List<String> mods = new ArrayList<>(1);
+
+        private Providers(String path) {
+
+            this.path = path;
+        }
+    }
+}
@@ -0,0 +1,451 @@
+package uk.co.innoxium.baldursgate.bg3m.data;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import org.apache.commons.io.FileUtils;
+import uk.co.innoxium.baldursgate.BaldursGateModInstaller;
+import uk.co.innoxium.baldursgate.bg3m.io.AtomicFile;
+import uk.co.innoxium.baldursgate.bg3m.manifest.InstallManifest;
+import uk.co.innoxium.candor.util.Logger;
+import uk.co.innoxium.candor.util.Resources;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+
+/**
+ * An index of every file in the game's Data folder: its path, size, modified time, and the
+ * loose mod which installed it, if any. Installs look files up here instead of walking the folder.
+ *
+ * The index is kept in bg3/data.idx, a compact binary file which is read in one go to load it:
+ * - "BG3D", the version, then the directories, each with its path and modified time
+ * - the owners, each mod id once
+ * - the files, each with the index of its directory, its name, size, modified time and the index of its owner
+ *
+ * {@link #refresh()} keeps it up to date by comparing the modified time of each directory,
+ * which changes whenever a file is added, removed or renamed in it. Only changed directories are listed again.
+ */
+public class DataIndex {
+
+    private static final int MAGIC = 0x44334742; // BG3D
+    private static final int VERSION = 1;
+    private static final Map<File, DataIndex> indexes = new HashMap<>();
+
+    private final File data;
+    private final File file;
+    // By relative path, '/' separated, as on disk
+    private final Map<String, Directory> directories = new HashMap<>();
+    // By lower case relative path
+    private final Map<String, Entry> files = new HashMap<>();
+    private boolean dirty = false;
+
+    private DataIndex(File data, File file) {
+
+        this.data = data;
+        this.file = file;
+    }
+
+    /**
+     * @return the index of the Data folder, loaded from disk on first use
+     */
+    public static synchronized DataIndex forDirectory(File data) {
+
+        return indexes.computeIfAbsent(data.getAbsoluteFile(), dir -> {
+
+            DataIndex ret = new DataIndex(dir, new File(Resources.CONFIG_PATH, "bg3/data.idx"));
+            ret.load();
+            return ret;
+        });
+    }
+
+    /**
+     * @return the file at the path inside Data, ignoring case, or null if there is none
+     */
+    public synchronized Entry get(String relative) {
+
+        return files.get(key(relative));
+    }
+
+    /**
+     * @return every indexed file which the mod installed
+     */
+    public synchronized List<Entry> getOwnedBy(String owner) {
+
+        List<Entry> ret = new ArrayList<>();
+        files.values().forEach(entry -> {
+
+            if(owner.equals(entry.owner)) ret.add(entry);
+        });
+        return ret;
+    }
+
+    public synchronized int size() {
+
+        return files.size();
+    }
+
+    /**
+     * Records the file at the path as it is now on disk, or removes it if it is gone.
+     * Its directory is left to be listed again by the next {@link #refresh()}.
+     * @param owner - The mod which installed it, or null for the game's own files
+     */
+    public synchronized void update(String relative, String owner) {
+
+        String path = relative.replace('\\', '/');
+        File found = new File(data, path);
+        if(found.isFile()) {
+
+            files.put(key(path), new Entry(path, found.length(), found.lastModified(), owner));
+            int slash = path.lastIndexOf('/');
+            directories.computeIfAbsent(slash < 0 ? "" : path.substring(0, slash), dir -> new Directory(0)).files.add(key(path));
+        } else {
+
+            files.remove(key(path));
+        }
+        dirty = true;
+    }
+
+    /**
+     * Lists again every directory whose modified time has changed, and forgets directories which are gone.
+     * The whole folder is walked only the first time.
+     */
+    public synchronized void refresh() {
+
+        long start = System.nanoTime();
+        if(directories.isEmpty()) {
+
+            walk("");
+        } else {
+
+            for(String dir : new ArrayList<>(directories.keySet())) {
+
+                Directory directory = directories.get(dir);
+                // Already removed with a parent
+                if(directory == null) continue;
+
+                File found = new File(data, dir);
+                if(!found.isDirectory()) {
+
+                    forget(dir);
+                } else if(found.lastModified() != directory.modified) {
+
+                    list(dir, directory);
+                }
+            }
+        }
+        if(dirty) {
+
+            Logger.info(String.format("Indexed %d files in %s in %dms", files.size(), data, (System.nanoTime() - start) / 1_000_000));
+            save();
+        }
+    }
+
+    /**
+     * Writes the index, if it has changed since it was loaded
+     */
+    public synchronized void save() {
+
+        if(!dirty) return;
+
+        List<String> dirs = new ArrayList<>(directories.keySet());
+        Map<String, Integer> dirIndexes = new HashMap<>();
+        List<String> owners = new ArrayList<>();
+        Map<String, Integer> ownerIndexes = new HashMap<>();
+        for(Entry entry : files.values()) {
+
+            if(entry.owner != null && !ownerIndexes.containsKey(entry.owner)) {
+
+                ownerIndexes.put(entry.owner, owners.size());
+                owners.add(entry.owner);
+            }
+        }
+
+        File temp = null;
+        try {
+
+            FileUtils.forceMkdirParent(file);
+            temp = AtomicFile.createTemp(file);
+            try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 1 << 16))) {
+
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                writeString(out, data.getAbsolutePath());
+                out.writeInt(dirs.size());
+                for(int i = 0; i < dirs.size(); i++) {
+
+                    dirIndexes.put(dirs.get(i), i);
+                    writeString(out, dirs.get(i));
+                    out.writeLong(directories.get(dirs.get(i)).modified);
+                }
+                out.writeInt(owners.size());
+                for(String owner : owners) writeString(out, owner);
+                out.writeInt(files.size());
+                for(Entry entry : files.values()) {
+
+                    int slash = entry.path.lastIndexOf('/');
+                    Integer dir = dirIndexes.get(slash < 0 ? "" : entry.path.substring(0, slash));
+                    out.writeInt(dir == null ? -1 : dir);
+                    writeString(out, dir == null ? entry.path : entry.path.substring(slash + 1));
+                    out.writeLong(entry.size);
+                    out.writeLong(entry.modified);
+                    out.writeInt(entry.owner == null ? -1 : ownerIndexes.get(entry.owner));
+                }
+            }
+            AtomicFile.replace(temp, file);
+            dirty = false;
+        } catch (IOException e) {
+
+            e.printStackTrace();
+        } finally {
+
+            FileUtils.deleteQuietly(temp);
+        }
+    }
+
+    private void load() {
+
+        if(!file.isFile()) {
+
+            restoreOwners();
+            return;
+        }
+        try {
+
+            // Read rather than mapped, on Windows a mapped file cannot be replaced by save() until the mapping is collected
+            ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+            // Written by another version, or indexed for another install of the game, so it is built again
+            if(in.getInt() != MAGIC || in.getInt() != VERSION || !readString(in).equals(data.getAbsolutePath())) {
+
+                restoreOwners();
+                return;
+            }
+
+            String[] dirs = new String[in.getInt()];
+            for(int i = 0; i < dirs.length; i++) {
+
+                dirs[i] = readString(in);
+                directories.put(dirs[i], new Directory(in.getLong()));
+            }
+            String[] owners = new String[in.getInt()];
+            for(int i = 0; i < owners.length; i++) owners[i] = readString(in);
+            int count = in.getInt();
+            for(int i = 0; i < count; i++) {
+
+                int dir = in.getInt();
+                String name = readString(in);
+                String path = dir < 0 || dirs[dir].isEmpty() ? name : dirs[dir] + "/" + name;
+                long size = in.getLong();
+                long modified = in.getLong();
+                int owner = in.getInt();
+                files.put(key(path), new Entry(path, size, modified, owner < 0 ? null : owners[owner]));
+                if(dir >= 0) directories.get(dirs[dir]).files.add(key(path));
+            }
+        } catch (IOException | RuntimeException e) {
+
+            // Only an index, it will be built again
+            e.printStackTrace();
+            directories.clear();
+            files.clear();
+            restoreOwners();
+        }
+    }
+
+    // Without an index, the owners of loose files come from the install manifests
+    private void restoreOwners() {
+
+        walk("");
+        for(InstallManifest manifest : InstallManifest.loadAll()) {
+
+            if(!manifest.isInstalled() || !manifest.getType().equals(BaldursGateModInstaller.ModType.DATA.name())) continue;
+            for(JsonElement element : manifest.getFiles()) {
+
+                JsonObject record = element.getAsJsonObject();
+                if(!record.has("relative")) continue;
+                Entry entry = files.get(key(record.get("relative").getAsString()));
+                if(entry != null) entry.owner = manifest.getId();
+            }
+        }
+    }
+
+    // Indexes the directory and everything below it
+    private void walk(String dir) {
+
+        Path root = new File(data, dir).toPath();
+        if(!Files.isDirectory(root)) return;
+        try {
+
+            Files.walkFileTree(root, new SimpleFileVisitor<>() {
+
+                @Override
+                public FileVisitResult preVisitDirectory(Path path, BasicFileAttributes attrs) {
+
+                    directories.put(relative(path), new Directory(attrs.lastModifiedTime().toMillis()));
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path path, BasicFileAttributes attrs) {
+
+                    if(!attrs.isRegularFile() && !attrs.isSymbolicLink()) return FileVisitResult.CONTINUE;
+                    // Loose mods may be linked into place, the link is indexed as the file it points to
+                    long size = attrs.size();
+                    long modified = attrs.lastModifiedTime().toMillis();
+                    if(attrs.isSymbolicLink()) {
+
+                        File found = path.toFile();
+                        if(!found.isFile()) return FileVisitResult.CONTINUE;
+                        size = found.length();
+                        modified = found.lastModified();
+                    }
+                    String relative = relative(path);
+                    Entry previous = files.get(key(relative));
+                    files.put(key(relative), new Entry(relative, size, modified, previous != null ? previous.owner : null));
+                    directories.get(relative(path.getParent())).files.add(key(relative));
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path path, IOException e) {
+
+                    e.printStackTrace();
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+
+            e.printStackTrace();
+        }
+        dirty = true;
+    }
+
+    // Lists a directory which has changed, new subdirectories are walked
+    private void list(String dir, Directory directory) {
+
+        File found = new File(data, dir);
+        File[] children = found.listFiles();
+        if(children == null) return;
+
+        Set<String> present = new HashSet<>();
+        for(File child : children) {
+
+            String relative = dir.isEmpty() ? child.getName() : dir + "/" + child.getName();
+            if(child.isDirectory()) {
+
+                if(!directories.containsKey(relative)) walk(relative);
+                continue;
+            }
+            String key = key(relative);
+            present.add(key);
+            Entry previous = files.get(key);
+            if(previous == null || previous.size != child.length() || previous.modified != child.lastModified()) {
+
+                files.put(key, new Entry(relative, child.length(), child.lastModified(), previous != null ? previous.owner : null));
+            }
+        }
+        for(String key : directory.files) {
+
+            if(!present.contains(key)) files.remove(key);
+        }
+        directory.files.clear();
+        directory.files.addAll(present);
+        directory.modified = found.lastModified();
+        dirty = true;
+    }
+
+    // Removes a directory which no longer exists, with everything below it
+    private void forget(String dir) {
+
+        String prefix = dir + "/";
+        directories.entrySet().removeIf(entry -> {
+
+            if(!entry.getKey().equals(dir) && !entry.getKey().startsWith(prefix)) return false;
+            entry.getValue().files.forEach(files::remove);
+            return true;
+        });
+        dirty = true;
+    }
+
+    private String relative(Path path) {
+
+        return data.toPath().relativize(path).toString().replace(File.separatorChar, '/');
+    }
+
+    private static String key(String path) {
+
+        return path.replace('\\', '/').toLowerCase(Locale.ROOT);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in) {
+
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static class Directory {
+
+        private long modified;
+        // Lower case paths of the files directly inside it
+        private final Set<String> files = new HashSet<>();
+
+        private Directory(long modified) {
+
+            this.modified = modified;
+        }
+    }
+
+    /**
+     * A file in the Data folder
+     */
+    public static class Entry {
+
+        private final String path;
+        private final long size;
+        private final long modified;
+        private String owner;
+
+        private Entry(String path, long size, long modified, String owner) {
+
+            this.path = path;
+            this.size = size;
+            this.modified = modified;
+            this.owner = owner;
+        }
+
+        /**
+         * @return the path inside Data, as it is on disk
+         */
+        public String getPath() {
+
+            return path;
+        }
+
+        public long getSize() {
+
+            return size;
+        }
+
+        public long getModified() {
+
+            return modified;
+        }
+
+        /**
+         * @return the id of the loose mod which installed the file, or null for the game's own files
+         */
+        public String getOwner() {
+
+            return owner;
+        }
+    }
+}
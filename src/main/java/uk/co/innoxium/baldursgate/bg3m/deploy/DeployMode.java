@@ -0,0 +1,31 @@
+package uk.co.innoxium.baldursgate.bg3m.deploy;
+
+import java.util.Locale;
+
+/**
+ * How a staged file is placed into the game's folders
+ */
+public enum DeployMode {
+
+    COPY, // A full copy, works everywhere
+    HARDLINK, // A second name for the same data, must be on the same volume
+    REFLINK, // A copy-on-write clone, needs a filesystem which supports block cloning
+    SYMLINK; // A link to the staged file, may need elevated permissions on Windows
+
+    public String getId() {
+
+        return name().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * @return the mode with the id, or COPY if it is not recognised
+     */
+    public static DeployMode fromId(String id) {
+
+        for(DeployMode mode : values()) {
+
+            if(mode.getId().equalsIgnoreCase(id)) return mode;
+        }
+        return COPY;
+    }
+}
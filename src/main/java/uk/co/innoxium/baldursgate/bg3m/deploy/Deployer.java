@@ -0,0 +1,255 @@
+package uk.co.innoxium.baldursgate.bg3m.deploy;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import org.apache.commons.io.FileUtils;
+import uk.co.innoxium.baldursgate.bg3m.archive.ModArchive;
+import uk.co.innoxium.baldursgate.bg3m.hash.PakHash;
+import uk.co.innoxium.baldursgate.bg3m.hash.PakHasher;
+import uk.co.innoxium.baldursgate.bg3m.io.AtomicFile;
+import uk.co.innoxium.candor.util.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Places files from a mod's archive into the game's folders.
+ * Unless the mode is COPY, entries are put in the {@link PakStore} on the same volume, once for
+ * each distinct content, and linked into place from there. Re-enabling a mod then only has to
+ * create the links again, instead of extracting every pak from its archive.
+ * A copy is extracted straight to its target, so it is written once. It is only stored when
+ * something has to keep it, such as a saved mod set, and is placed from the store from then on.
+ *
+ * If the mode is not supported by the filesystem, the file is copied instead.
+ * Each deployed file is recorded as a json object, see {@link #deploy(ModArchive, String, File, String)},
+ * so that {@link #undeploy(JsonElement)} removes it in the right way.
+ */
+public class Deployer {
+
+    private static final boolean WINDOWS = System.getProperty("os.name").toLowerCase(Locale.ROOT).startsWith("windows");
+    private static final boolean MAC = System.getProperty("os.name").toLowerCase(Locale.ROOT).startsWith("mac");
+
+    private final DeployMode mode;
+    private final PakStore store;
+
+    /**
+     * @param mode - The preferred mode
+     * @param store - The store to link entries from, this must be on the same volume as the targets for hard links
+     */
+    public Deployer(DeployMode mode, PakStore store) {
+
+        this.mode = mode;
+        this.store = store;
+    }
+
+    /**
+     * Deploys an entry of the archive to the target
+     * @param archive - The mod's archive
+     * @param name - The entry to deploy
+     * @param target - The file to create or replace
+     * @param owner - The id of the mod, which owns the entry if it is stored
+     * @return the record for the mod's associated files: path, mode, the stored source if it was linked, size, crc, md5 and tree hash, all from the single pass over the entry
+     */
+    public JsonObject deploy(ModArchive archive, String name, File target, String owner) throws IOException {
+
+        JsonObject ret;
+        PakHash hash;
+        if(mode == DeployMode.COPY) {
+
+            PakHasher hasher = new PakHasher();
+            archive.extractTo(name, target, hasher);
+            hash = hasher.finish();
+            ret = record(target, DeployMode.COPY, null);
+        } else {
+
+            // Owned by the mod even if it ends up copied, so it can be linked when re-enabled
+            hash = store.put(archive, name, owner);
+            File source = store.getObject(hash.getTree());
+            DeployMode used = link(source, target, mode);
+            ret = record(target, used, source);
+        }
+        PakHash.remember(target, hash);
+        ret.addProperty("size", target.length());
+        // From the hashing pass, the entry may no longer be in the archive once extracted
+        ret.addProperty("crc", hash.getCrc());
+        ret.addProperty("md5", hash.getMd5());
+        ret.addProperty("hash", hash.getTree());
+        return ret;
+    }
+
+    /**
+     * Releases every stored entry the mod owns, once its files have been undeployed
+     * @param owner - The id of the mod
+     */
+    public void release(String owner) {
+
+        store.release(owner);
+    }
+
+    /**
+     * Writes the owners of the stored entries, once the mods being installed or uninstalled are done
+     */
+    public void save() {
+
+        try {
+
+            store.save();
+        } catch (IOException e) {
+
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Places the source at the target with the mode, falling back to a copy if the mode fails
+     * @return the mode which was used
+     */
+    public static DeployMode link(File source, File target, DeployMode mode) throws IOException {
+
+        return link(source, target, mode, true);
+    }
+
+    /**
+     * Places the source at the target with the mode, falling back to a copy if the mode fails
+     * @param durable - False when placing many files, the caller then syncs their directories with {@link AtomicFile#syncDirectories(java.util.Collection)}
+     * @return the mode which was used
+     */
+    public static DeployMode link(File source, File target, DeployMode mode, boolean durable) throws IOException {
+
+        FileUtils.forceMkdirParent(target);
+        // A link is made in a single step, so with nothing to replace it needs no temp file
+        if((mode == DeployMode.HARDLINK || mode == DeployMode.SYMLINK) && !Files.exists(target.toPath(), LinkOption.NOFOLLOW_LINKS)) {
+
+            try {
+
+                if(mode == DeployMode.HARDLINK) Files.createLink(target.toPath(), source.toPath());
+                else Files.createSymbolicLink(target.toPath(), source.getAbsoluteFile().toPath());
+                if(durable) AtomicFile.syncDirectories(List.of(target.toPath().toAbsolutePath().getParent()));
+                return mode;
+            } catch (IOException | UnsupportedOperationException ignored) {
+
+                // Placed since, or the mode is not supported, either way tried again below
+            }
+        }
+        Path temp = AtomicFile.createTemp(target).toPath();
+        try {
+
+            if(mode != DeployMode.COPY) {
+
+                try {
+
+                    Files.delete(temp);
+                    switch(mode) {
+
+                        case HARDLINK -> Files.createLink(temp, source.toPath());
+                        case SYMLINK -> Files.createSymbolicLink(temp, source.getAbsoluteFile().toPath());
+                        default -> reflink(source.toPath(), temp);
+                    }
+                    if(durable) AtomicFile.rename(temp, target.toPath());
+                    else AtomicFile.move(temp, target.toPath());
+                    return mode;
+                } catch (IOException | UnsupportedOperationException e) {
+
+                    Logger.info(String.format("Could not %s %s, copying it instead: %s", mode.getId(), target.getName(), e.getMessage()));
+                }
+            }
+            Files.copy(source.toPath(), temp, StandardCopyOption.REPLACE_EXISTING);
+            if(durable) {
+
+                AtomicFile.replace(temp.toFile(), target);
+            } else {
+
+                AtomicFile.sync(temp);
+                AtomicFile.move(temp, target.toPath());
+            }
+            return DeployMode.COPY;
+        } finally {
+
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Removes a deployed file, given its record or the path of a copied file
+     */
+    public static void undeploy(JsonElement element) {
+
+        if(!element.isJsonObject()) {
+
+            // Recorded before deploy modes, always a copy
+            FileUtils.deleteQuietly(new File(element.getAsString()));
+            return;
+        }
+
+        JsonObject obj = element.getAsJsonObject();
+        Path path = new File(obj.get("path").getAsString()).toPath();
+        DeployMode recorded = obj.has("mode") ? DeployMode.fromId(obj.get("mode").getAsString()) : DeployMode.COPY;
+        try {
+
+            // A symlink which has since been replaced by a real file belongs to the user
+            if(recorded == DeployMode.SYMLINK && Files.exists(path) && !Files.isSymbolicLink(path)) return;
+            // Removes only the link, never what it points to
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Deploys a file again from the stored source in its record, without the archive.
+     * A copy is only stored if a mod set kept it, otherwise it has to be extracted again.
+     * @param owner - The name of the mod's archive, which owns the stored entry again
+     * @return true if the record had a stored source which could be deployed
+     */
+    public boolean redeploy(JsonObject record, String owner) throws IOException {
+
+        if(!record.has("hash") || !record.has("mode")) return false;
+
+        String hash = record.get("hash").getAsString();
+        File source = store.getObject(hash);
+        if(record.has("size") && source.length() != record.get("size").getAsLong()) return false;
+        if(!store.acquire(hash, owner)) return false;
+
+        // The preferred mode may have changed since it was installed
+        DeployMode used = link(source, new File(record.get("path").getAsString()), mode);
+        record.addProperty("mode", used.getId());
+        record.addProperty("source", source.getAbsolutePath());
+        return true;
+    }
+
+    private static JsonObject record(File target, DeployMode mode, File source) {
+
+        JsonObject ret = new JsonObject();
+        ret.addProperty("path", target.getAbsolutePath());
+        ret.addProperty("mode", mode.getId());
+        if(source != null) ret.addProperty("source", source.getAbsolutePath());
+        return ret;
+    }
+
+    // There is no reflink in the JDK, use the platform's cp which clones or fails
+    private static void reflink(Path source, Path target) throws IOException {
+
+        if(WINDOWS) throw new UnsupportedOperationException("Reflinks are not supported on Windows");
+
+        ProcessBuilder builder = MAC
+                ? new ProcessBuilder("cp", "-c", source.toString(), target.toString())
+                : new ProcessBuilder("cp", "--reflink=always", source.toString(), target.toString());
+        try {
+
+            Process process = builder.redirectErrorStream(true).start();
+            String output = new String(process.getInputStream().readAllBytes()).trim();
+            if(process.waitFor() != 0) throw new IOException(output);
+        } catch (InterruptedException e) {
+
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+    }
+}
@@ -0,0 +1,365 @@
+package uk.co.innoxium.baldursgate.bg3m.deploy;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import org.apache.commons.io.FileUtils;
+import uk.co.innoxium.baldursgate.bg3m.archive.ModArchive;
+import uk.co.innoxium.baldursgate.bg3m.hash.PakHash;
+import uk.co.innoxium.baldursgate.bg3m.hash.PakHasher;
+import uk.co.innoxium.baldursgate.bg3m.io.AtomicFile;
+import uk.co.innoxium.candor.util.Logger;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * A content addressed store of the files deployed by mods, each kept once under its tree hash,
+ * see {@link PakHash}, and linked into place by the {@link Deployer}. The same pak shipped in several archives,
+ * or installed again, is only stored once. Files in Data replaced by loose mods are kept in the same way,
+ * see {@link #putFile(File, String)}.
+ * - objects/ab/abcdef... holds the contents
+ * - store.json holds the owners of each object, and the hash of each archive entry already stored, it is written by {@link #save()} once per install, uninstall or switch
+ *
+ * An object is kept while any mod owns it. Once the last owner is uninstalled it is
+ * deleted by {@link #collect()}, which runs at startup, so a mod re-enabled in the same
+ * session still finds its paks.
+ */
+public class PakStore {
+
+    private static final Map<File, PakStore> stores = new HashMap<>();
+
+    private final File root;
+    private final File state;
+    // Hash to the ids of the mods which own it
+    private final Map<String, Set<String>> owners = new HashMap<>();
+    // Archive, size, modified time and entry to the hash of its contents
+    private final Map<String, String> entries = new HashMap<>();
+    // False if store.json could not be read, nothing is known to be unowned
+    private boolean loaded = true;
+    // True if owners or entries changed since store.json was written
+    private boolean dirty = false;
+
+    private PakStore(File root) {
+
+        this.root = root;
+        this.state = new File(root, "store.json");
+        load();
+    }
+
+    /**
+     * @return the store for the Mods folder, next to it so hard links stay on the same volume
+     */
+    public static synchronized PakStore forModsFolder(File modsFolder) {
+
+        return stores.computeIfAbsent(new File(modsFolder.getAbsoluteFile().getParentFile(), "CandorStore"), PakStore::new);
+    }
+
+    /**
+     * @return the store for the game's Data folder, next to it so files can be moved in without copying
+     */
+    public static synchronized PakStore forDataFolder(File data) {
+
+        return stores.computeIfAbsent(new File(data.getAbsoluteFile().getParentFile(), "CandorStore"), PakStore::new);
+    }
+
+    /**
+     * Stores a file which is about to be replaced. It is hard linked into the store where possible,
+     * so once it is replaced the store holds the only copy, without its data ever being copied.
+     * The caller has to {@link #save()} before replacing it, so the object is known to be owned.
+     * @param owner - The id of the mod which replaces it
+     * @return the hashes of the file's contents
+     */
+    public PakHash putFile(File file, String owner) throws IOException {
+
+        PakHasher hasher = new PakHasher();
+        hasher.update(file);
+        PakHash ret = hasher.finish();
+
+        File object = getObject(ret.getTree());
+        File temp = null;
+        try {
+
+            if(!object.isFile()) {
+
+                FileUtils.forceMkdirParent(object);
+                temp = AtomicFile.createTemp(object);
+                Files.delete(temp.toPath());
+                try {
+
+                    Files.createLink(temp.toPath(), file.toPath());
+                } catch (IOException | UnsupportedOperationException e) {
+
+                    Files.copy(file.toPath(), temp.toPath());
+                }
+            }
+            publish(temp, ret.getTree(), owner);
+        } finally {
+
+            FileUtils.deleteQuietly(temp);
+        }
+        return ret;
+    }
+
+    /**
+     * Stores a copy of a file which stays where it is, such as a copied pak kept by a mod set.
+     * The copy is hashed as it was written, and only kept if it still has the contents it was deployed with.
+     * @param hash - The tree hash recorded when the file was deployed
+     * @param owner - The id of the mod or set which keeps it
+     * @return false if the file has changed, it is not stored
+     */
+    public boolean putCopy(File file, String hash, String owner) throws IOException {
+
+        File temp = createTemp();
+        try {
+
+            Files.copy(file.toPath(), temp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            PakHasher hasher = new PakHasher();
+            hasher.update(temp);
+            PakHash copied = hasher.finish();
+            if(!copied.getTree().equals(hash)) {
+
+                Logger.info(String.format("%s has changed since it was deployed, it is not stored", file.getName()));
+                return false;
+            }
+            publish(temp, hash, owner);
+            return true;
+        } finally {
+
+            FileUtils.deleteQuietly(temp);
+        }
+    }
+
+    /**
+     * Stores an archive entry, hashing it as it is copied into the store.
+     * An entry stored before, from an unchanged archive, is found without reading it again.
+     * The entry is extracted without holding the store, so parallel installs only wait for each other to record it.
+     * @param owner - The id of the mod which owns the entry
+     * @return the hashes of the entry's contents, the tree hash names the object
+     */
+    public PakHash put(ModArchive archive, String name, String owner) throws IOException {
+
+        String key = entryKey(archive.getFile(), name);
+        File stored = null;
+        synchronized(this) {
+
+            String tree = entries.get(key);
+            if(tree != null && getObject(tree).isFile()) {
+
+                stored = getObject(tree);
+                owners.computeIfAbsent(tree, h -> new TreeSet<>()).add(owner);
+                dirty = true;
+            }
+        }
+        if(stored != null) return PakHash.of(stored);
+
+        File temp = createTemp();
+        try {
+
+            PakHasher hasher = new PakHasher();
+            archive.extractTo(name, temp, hasher);
+            PakHash ret = hasher.finish();
+            synchronized(this) {
+
+                publish(temp, ret.getTree(), owner);
+                entries.put(key, ret.getTree());
+            }
+            PakHash.remember(getObject(ret.getTree()), ret);
+            return ret;
+        } finally {
+
+            FileUtils.deleteQuietly(temp);
+        }
+    }
+
+    /**
+     * Marks the object as owned by the mod again, when it is re-enabled
+     * @return false if the object is no longer in the store
+     */
+    public synchronized boolean acquire(String hash, String owner) {
+
+        if(!getObject(hash).isFile()) return false;
+        dirty |= owners.computeIfAbsent(hash, h -> new TreeSet<>()).add(owner);
+        return true;
+    }
+
+    /**
+     * Marks the objects as owned by each mod again
+     * @param hashes - The objects each mod owns, by mod
+     * @return the objects which are no longer in the store, they are not owned
+     */
+    public synchronized Set<String> acquire(Map<String, ? extends Collection<String>> hashes) {
+
+        Set<String> ret = new HashSet<>();
+        for(Map.Entry<String, ? extends Collection<String>> entry : hashes.entrySet()) {
+
+            for(String hash : entry.getValue()) {
+
+                if(ret.contains(hash) || !getObject(hash).isFile()) {
+
+                    ret.add(hash);
+                    continue;
+                }
+                dirty |= owners.computeIfAbsent(hash, h -> new TreeSet<>()).add(entry.getKey());
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Drops every object the mod owns. Objects with no other owner are deleted by the next {@link #collect()}.
+     */
+    public synchronized void release(String owner) {
+
+        release(List.of(owner));
+    }
+
+    /**
+     * Drops every object each of the mods owns
+     */
+    public synchronized void release(Collection<String> owners) {
+
+        for(Set<String> set : this.owners.values()) {
+
+            dirty |= set.removeAll(owners);
+        }
+    }
+
+    /**
+     * Writes store.json, if any owners or entries changed since it was last written.
+     * Called once at the end of each install, uninstall or switch, rather than for every object.
+     */
+    public synchronized void save() throws IOException {
+
+        if(!dirty) return;
+
+        JsonObject ownersJson = new JsonObject();
+        owners.forEach((hash, set) -> {
+
+            if(set.isEmpty()) return;
+            JsonArray array = new JsonArray();
+            set.forEach(array::add);
+            ownersJson.add(hash, array);
+        });
+        JsonObject entriesJson = new JsonObject();
+        entries.forEach(entriesJson::addProperty);
+
+        JsonObject json = new JsonObject();
+        json.add("owners", ownersJson);
+        json.add("entries", entriesJson);
+
+        FileUtils.forceMkdir(root);
+        File temp = AtomicFile.createTemp(state);
+        try {
+
+            Files.writeString(temp.toPath(), json.toString(), StandardCharsets.UTF_8);
+            AtomicFile.replace(temp, state);
+            dirty = false;
+        } finally {
+
+            FileUtils.deleteQuietly(temp);
+        }
+    }
+
+    public File getObject(String hash) {
+
+        return new File(root, "objects/" + hash.substring(0, 2) + "/" + hash);
+    }
+
+    /**
+     * Deletes every object no mod owns
+     * @return the number of bytes freed
+     */
+    public synchronized long collect() {
+
+        if(!loaded) return 0;
+
+        long freed = 0;
+        // Left by a put which did not finish
+        File[] temps = new File(root, "objects").listFiles((dir, name) -> name.endsWith(".tmp"));
+        if(temps != null) for(File temp : temps) FileUtils.deleteQuietly(temp);
+
+        File[] buckets = new File(root, "objects").listFiles(File::isDirectory);
+        if(buckets == null) return 0;
+        for(File bucket : buckets) {
+
+            File[] objects = bucket.listFiles();
+            if(objects == null) continue;
+            for(File object : objects) {
+
+                Set<String> set = owners.get(object.getName());
+                if(set != null && !set.isEmpty()) continue;
+
+                long size = object.length();
+                if(FileUtils.deleteQuietly(object)) freed += size;
+                owners.remove(object.getName());
+            }
+        }
+        entries.values().removeIf(hash -> !getObject(hash).isFile());
+        dirty = true;
+        try {
+
+            save();
+        } catch (IOException e) {
+
+            e.printStackTrace();
+        }
+        if(freed > 0) Logger.info(String.format("Removed %s of stored files no longer used by any mod", FileUtils.byteCountToDisplaySize(freed)));
+        return freed;
+    }
+
+    // A temp file among the objects, so it can be renamed into place
+    private File createTemp() throws IOException {
+
+        File objects = new File(root, "objects");
+        FileUtils.forceMkdir(objects);
+        return File.createTempFile("object", ".tmp", objects);
+    }
+
+    // Renames the temp file into place, unless the object is already stored, and marks it as owned
+    private synchronized void publish(File temp, String hash, String owner) throws IOException {
+
+        File object = getObject(hash);
+        if(temp != null && !object.isFile()) {
+
+            FileUtils.forceMkdirParent(object);
+            AtomicFile.replace(temp, object);
+        }
+        owners.computeIfAbsent(hash, h -> new TreeSet<>()).add(owner);
+        dirty = true;
+    }
+
+    private void load() {
+
+        if(!state.isFile()) return;
+        try(Reader reader = new InputStreamReader(new FileInputStream(state), StandardCharsets.UTF_8)) {
+
+            JsonObject json = JsonParser.parseReader(reader).getAsJsonObject();
+            json.getAsJsonObject("owners").entrySet().forEach(entry -> {
+
+                Set<String> set = new TreeSet<>();
+                for(JsonElement element : entry.getValue().getAsJsonArray()) {
+
+                    set.add(element.getAsString());
+                }
+                owners.put(entry.getKey(), set);
+            });
+            json.getAsJsonObject("entries").entrySet().forEach(entry -> entries.put(entry.getKey(), entry.getValue().getAsString()));
+        } catch (IOException | JsonParseException | IllegalStateException | NullPointerException e) {
+
+            // Without owners nothing is collected, the objects themselves are still valid
+            loaded = false;
+            e.printStackTrace();
+        }
+    }
+
+    private static String entryKey(File archive, String name) {
+
+        return String.format("%s|%d|%d|%s", archive.getAbsolutePath(), archive.length(), archive.lastModified(), name);
+    }
+}
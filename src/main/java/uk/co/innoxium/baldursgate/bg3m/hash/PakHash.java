@@ -0,0 +1,160 @@
+package uk.co.innoxium.baldursgate.bg3m.hash;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import org.apache.commons.io.FileUtils;
+import uk.co.innoxium.baldursgate.bg3m.io.AtomicFile;
+import uk.co.innoxium.candor.util.Resources;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The hashes of a pak, as computed by a {@link PakHasher}.
+ * - md5 is what the game expects in ModuleShortDesc
+ * - crc is the CRC-32, recorded with each deployed file to check it quickly
+ * - tree is our own hash, a SHA-256 over the SHA-256 of each chunk, which can be checked in parallel
+ *
+ * Hashes of files on disk are cached by path, size and modified time, and persisted across
+ * sessions, so a pak which has not changed is never hashed again. The cache is written by
+ * {@link #save()}, once per install or verify rather than once per pak.
+ */
+public class PakHash {
+
+    private static final int VERSION = 1;
+    private static final Map<String, JsonObject> cache = new ConcurrentHashMap<>();
+    private static boolean loaded = false;
+    private static volatile boolean dirty = false;
+
+    private final String md5;
+    private final String tree;
+    private final long crc;
+
+    PakHash(String md5, String tree, long crc) {
+
+        this.md5 = md5;
+        this.tree = tree;
+        this.crc = crc;
+    }
+
+    public String getMd5() {
+
+        return md5;
+    }
+
+    public String getTree() {
+
+        return tree;
+    }
+
+    public long getCrc() {
+
+        return crc;
+    }
+
+    /**
+     * @return the hashes of the file, from the cache if it has not changed since it was last hashed
+     */
+    public static PakHash of(File file) throws IOException {
+
+        PakHash ret = getCached(file);
+        if(ret != null) return ret;
+
+        PakHasher hasher = new PakHasher();
+        hasher.update(file);
+        ret = hasher.finish();
+        remember(file, ret);
+        return ret;
+    }
+
+    /**
+     * @return the cached hashes of the file, or null if it has changed or was never hashed
+     */
+    public static PakHash getCached(File file) {
+
+        load();
+        JsonObject cached = cache.get(file.getAbsolutePath());
+        // Entries cached before the crc was kept are hashed again
+        if(cached == null || !cached.has("crc") || cached.get("size").getAsLong() != file.length() || cached.get("modified").getAsLong() != file.lastModified()) return null;
+        return new PakHash(cached.get("md5").getAsString(), cached.get("tree").getAsString(), cached.get("crc").getAsLong());
+    }
+
+    /**
+     * Caches the hashes of a file which was hashed as it was written, see {@link #save()}
+     */
+    public static void remember(File file, PakHash hash) {
+
+        load();
+        JsonObject entry = new JsonObject();
+        entry.addProperty("md5", hash.md5);
+        entry.addProperty("tree", hash.tree);
+        entry.addProperty("crc", hash.crc);
+        entry.addProperty("size", file.length());
+        entry.addProperty("modified", file.lastModified());
+        cache.put(file.getAbsolutePath(), entry);
+        dirty = true;
+    }
+
+    private static File getCacheFile() {
+
+        return new File(Resources.CONFIG_PATH, "bg3/hashes.json");
+    }
+
+    private static synchronized void load() {
+
+        if(loaded) return;
+        loaded = true;
+
+        File file = getCacheFile();
+        if(!file.isFile()) return;
+        try(Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+
+            JsonObject json = JsonParser.parseReader(reader).getAsJsonObject();
+            if(json.get("version").getAsInt() != VERSION) return;
+            json.getAsJsonObject("files").entrySet().forEach(entry -> cache.put(entry.getKey(), entry.getValue().getAsJsonObject()));
+        } catch (IOException | JsonParseException | IllegalStateException | NullPointerException e) {
+
+            // Only a cache, everything will be hashed again
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Writes the cache, if any hashes were remembered since it was last written
+     */
+    public static synchronized void save() {
+
+        if(!dirty) return;
+        dirty = false;
+
+        JsonObject files = new JsonObject();
+        cache.forEach((key, value) -> {
+
+            // Forget files which have been deleted
+            if(new File(key).exists()) files.add(key, value);
+        });
+        JsonObject json = new JsonObject();
+        json.addProperty("version", VERSION);
+        json.add("files", files);
+
+        File file = getCacheFile();
+        File temp = null;
+        try {
+
+            FileUtils.forceMkdirParent(file);
+            temp = AtomicFile.createTemp(file);
+            Files.writeString(temp.toPath(), json.toString(), StandardCharsets.UTF_8);
+            AtomicFile.replace(temp, file);
+        } catch (IOException e) {
+
+            e.printStackTrace();
+        } finally {
+
+            FileUtils.deleteQuietly(temp);
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package uk.co.innoxium.baldursgate.bg3m.hash;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.CRC32;
+
+/**
+ * Hashes a pak as it is streamed, so it never has to be read a second time.
+ * The MD5 and CRC-32 are updated on the calling thread, as they can only be computed in order.
+ * Each 4 MiB chunk is handed to the common pool for its SHA-256, so the tree hash
+ * of a large pak is computed in parallel while the copy carries on.
+ *
+ * At most one chunk per core is waiting to be hashed at once, so memory stays bounded
+ * however fast the source is.
+ */
+public class PakHasher {
+
+    public static final int CHUNK_SIZE = 4 << 20;
+    private static final int MAX_PENDING = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+    private final MessageDigest md5 = digest("MD5");
+    private final CRC32 crc = new CRC32();
+    private final List<CompletableFuture<byte[]>> chunks = new ArrayList<>();
+    // Grows up to CHUNK_SIZE, so small files do not allocate a whole chunk
+    private byte[] chunk = new byte[65536];
+    private int filled = 0;
+
+    public void update(byte[] bytes, int offset, int length) {
+
+        md5.update(bytes, offset, length);
+        crc.update(bytes, offset, length);
+        while(length > 0) {
+
+            if(filled == chunk.length && chunk.length < CHUNK_SIZE) chunk = Arrays.copyOf(chunk, Math.min(chunk.length * 2, CHUNK_SIZE));
+            int count = Math.min(length, chunk.length - filled);
+            System.arraycopy(bytes, offset, chunk, filled, count);
+            filled += count;
+            offset += count;
+            length -= count;
+            if(filled == CHUNK_SIZE) {
+
+                submit(chunk, filled);
+                chunk = new byte[CHUNK_SIZE];
+                filled = 0;
+            }
+        }
+    }
+
+    /**
+     * Hashes the whole of a file
+     */
+    public void update(File file) throws IOException {
+
+        try(InputStream in = new FileInputStream(file)) {
+
+            byte[] buffer = new byte[1 << 20];
+            int read;
+            while((read = in.read(buffer)) >= 0) {
+
+                update(buffer, 0, read);
+            }
+        }
+    }
+
+    /**
+     * @return a stream which hashes everything written to it before passing it on
+     */
+    public OutputStream wrap(OutputStream out) {
+
+        return new FilterOutputStream(out) {
+
+            @Override
+            public void write(int b) throws IOException {
+
+                update(new byte[] { (byte)b }, 0, 1);
+                out.write(b);
+            }
+
+            @Override
+            public void write(byte[] bytes, int offset, int length) throws IOException {
+
+                update(bytes, offset, length);
+                out.write(bytes, offset, length);
+            }
+        };
+    }
+
+    /**
+     * Waits for every chunk to be hashed, the hasher can not be used afterwards
+     */
+    public PakHash finish() {
+
+        if(filled > 0 || chunks.isEmpty()) submit(chunk, filled);
+        chunk = null;
+
+        MessageDigest tree = digest("SHA-256");
+        chunks.forEach(future -> tree.update(future.join()));
+        return new PakHash(hex(md5.digest()), hex(tree.digest()), crc.getValue());
+    }
+
+    private void submit(byte[] bytes, int length) {
+
+        chunks.add(CompletableFuture.supplyAsync(() -> {
+
+            MessageDigest sha256 = digest("SHA-256");
+            sha256.update(bytes, 0, length);
+            return sha256.digest();
+        }, ForkJoinPool.commonPool()));
+        // Wait for the oldest chunk still in flight before reading any further
+        int oldest = chunks.size() - 1 - MAX_PENDING;
+        if(oldest >= 0) chunks.get(oldest).join();
+    }
+
+    private static MessageDigest digest(String algorithm) {
+
+        try {
+
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+
+            // Every JVM is required to have MD5 and SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String hex(byte[] bytes) {
+
+        StringBuilder builder = new StringBuilder(bytes.length * 2);
+        for(byte b : bytes) {
+
+            builder.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return builder.toString();
+    }
+}
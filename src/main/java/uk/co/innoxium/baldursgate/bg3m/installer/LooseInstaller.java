@@ -1,20 +1,71 @@
 package uk.co.innoxium.baldursgate.bg3m.installer;
 
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
 import org.apache.commons.io.FileUtils;
+import uk.co.innoxium.baldursgate.BG3Settings;
+import uk.co.innoxium.baldursgate.BaldursGateModInstaller;
 import uk.co.innoxium.baldursgate.BaldursGateModule;
-import uk.co.innoxium.baldursgate.bg3m.visitor.LooseFileVisitor;
+import uk.co.innoxium.baldursgate.bg3m.archive.ModArchive;
+import uk.co.innoxium.baldursgate.bg3m.conflict.ConflictIndex;
+import uk.co.innoxium.baldursgate.bg3m.data.DataIndex;
+import uk.co.innoxium.baldursgate.bg3m.deploy.DeployMode;
+import uk.co.innoxium.baldursgate.bg3m.deploy.Deployer;
+import uk.co.innoxium.baldursgate.bg3m.deploy.PakStore;
+import uk.co.innoxium.baldursgate.bg3m.io.AtomicFile;
+import uk.co.innoxium.baldursgate.bg3m.io.ParallelCopier;
+import uk.co.innoxium.baldursgate.bg3m.manifest.InstallManifest;
+import uk.co.innoxium.baldursgate.bg3m.merge.MergedFiles;
+import uk.co.innoxium.baldursgate.bg3m.merge.MergerRegistry;
+import uk.co.innoxium.baldursgate.bg3m.task.InstallExecutor;
+import uk.co.innoxium.baldursgate.bg3m.task.InstallTask;
 import uk.co.innoxium.candor.mod.Mod;
 import uk.co.innoxium.candor.module.AbstractModule;
-import uk.co.innoxium.cybernize.archive.Archive;
-import uk.co.innoxium.cybernize.archive.ArchiveBuilder;
+import uk.co.innoxium.candor.util.Logger;
 
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.nio.file.Files;
-import java.util.concurrent.atomic.AtomicReference;
-
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Installs mods made of loose files, which go in the game's Data folder.
+ * - every file is extracted to a staging directory next to the game, several at once, see {@link ParallelCopier}
+ * - only once all of them are staged is anything in Data touched
+ * - a file it replaces is first kept in the {@link PakStore} next to Data, under the hash of its contents,
+ * unless it is linked from another mod's overlay
+ * - each staged file is then renamed into place, or with {@link BG3Settings#looseOverlay} linked from the mod's
+ * overlay in CandorOverlay with {@link BG3Settings#overlayMode}, which is kept so the mod can be disabled and enabled
+ * again without copying anything
+ * - if any fails, the ones already placed are undone and the replaced files put back
+ *
+ * Each record notes whether the file was created or replaced one, the hash of the original,
+ * and the mod which installed the original, so mods installed over each other can be removed in any order.
+ *
+ * The install manifest is written before the first file is placed, so an install interrupted
+ * by a crash can still be uninstalled.
+ *
+ * Whether a file would be replaced, and by whom it was installed, is looked up in the {@link DataIndex}
+ * rather than found by walking Data.
+ * Mods are extracted in parallel, but placed in and removed from a Data folder one at a time, so each sees
+ * the index, layers and merges as the last one left them.
+ *
+ * Files with a {@link MergerRegistry merger}, such as LSX and LSF, which another mod already installed are merged
+ * with that mod's version instead of replacing it. Every mod's version is kept in the store, see {@link MergedFiles}.
+ */
 public class LooseInstaller {
 
+    // Folders which sit directly in Data, an archive's top folder is only a wrapper if it is not one of these
+    private static final Set<String> DATA_ROOTS = Set.of("public", "mods", "localization", "generated", "game", "engine", "editor");
+    // Held while a mod is placed in or removed from a Data folder, by folder
+    private static final Map<File, Object> LOCKS = new ConcurrentHashMap<>();
+
     private final BaldursGateModule module;
 
     public LooseInstaller(AbstractModule module) {
@@ -22,74 +73,650 @@ public class LooseInstaller {
         this.module = (BaldursGateModule)module;
     }
 
-    public boolean installLoose(Mod mod) {
+    /**
+     * Installs the mod on the install executor
+     * @return a future completed with true if the mod was installed
+     */
+    public CompletableFuture<Boolean> installLoose(Mod mod) {
+
+        InstallTask task = new InstallTask(mod.getReadableName());
+        return InstallExecutor.submit(task, () -> installLoose(mod, task));
+    }
+
+    /**
+     * Installs the mod on the calling thread
+     * @throws CancellationException if the task was cancelled, before anything in Data was changed
+     */
+    public boolean installLoose(Mod mod, InstallTask task) throws IOException {
+
+        String id = InstallManifest.getId(mod);
+        File data = getDataDirectory();
+        boolean overlay = BG3Settings.looseOverlay;
+        File staging = overlay ? getOverlayDirectory(module.gameHome, id) : new File(module.gameHome, "CandorStaging/" + id);
+        DeployMode mode = overlay ? DeployMode.fromId(BG3Settings.overlayMode) : DeployMode.COPY;
+
+        task.phase(InstallTask.Phase.EXTRACT);
+        // Re-enabling a mod whose overlay is still complete only links it again
+        Collection<String> files = overlay ? findStaged(mod, staging) : null;
+        if(files == null) files = extract(mod, staging, task);
+
+        // One install or uninstall at a time per Data folder, from reading the index to writing it, so each sees what the others placed
+        synchronized(LOCKS.computeIfAbsent(data.getAbsoluteFile(), key -> new Object())) {
+
+            task.phase(InstallTask.Phase.INDEX);
+            DataIndex index = DataIndex.forDirectory(data);
+            PakStore store = PakStore.forDataFolder(data);
+            index.refresh();
+            Layers layers = new Layers(id);
+            List<JsonObject> records = new ArrayList<>();
+            // Paths which start being merged, by the mod whose file this one would have replaced
+            Map<String, String> merges = new HashMap<>();
+            try {
+
+                for(String relative : files) {
+
+                    File target = resolve(data, relative);
+                    File staged = resolve(staging, relative);
+                    DataIndex.Entry existing = index.get(relative);
+                    JsonObject record = new JsonObject();
+                    record.addProperty("path", target.getAbsolutePath());
+                    // A copy until it is deployed, so an interrupted install removes whatever was placed
+                    record.addProperty("mode", DeployMode.COPY.getId());
+                    if(overlay) record.addProperty("source", staged.getAbsolutePath());
+                    record.addProperty("relative", relative);
+                    record.addProperty("size", staged.length());
+                    if(MergerRegistry.get(relative) != null && (MergedFiles.contains(relative) || canMerge(existing, layers, relative))) {
+
+                        // Merged with the other mods' versions, so this one is kept in the store as well
+                        record.addProperty("merge", true);
+                        record.addProperty("content", store.putFile(staged, id).getTree());
+                        if(!MergedFiles.contains(relative)) merges.put(relative, existing.getOwner());
+                        records.add(record);
+                        continue;
+                    }
+                    record.addProperty("created", existing == null);
+                    if(existing != null) {
+
+                        // A file linked from another mod's overlay can be linked from there again, anything else is
+                        // kept before it is changed, so it is safe even if the install is interrupted
+                        JsonObject lower = layers.get(existing.getOwner(), relative);
+                        if(lower == null || !lower.has("source")) record.addProperty("original", store.putFile(target, id).getTree());
+                        if(existing.getOwner() != null) {
+
+                            record.addProperty("replaced", existing.getOwner());
+                            Logger.info(String.format("%s replaces %s from %s", id, existing.getPath(), existing.getOwner()));
+                        }
+                    }
+                    records.add(record);
+                }
+                // Each file kept is owned before anything in Data is changed, or the next startup would collect it
+                store.save();
+                // Last chance to cancel, nothing in Data has been changed yet
+                task.phase(InstallTask.Phase.DEPLOY);
+            } catch (IOException | CancellationException e) {
+
+                store.release(id);
+                if(!overlay) FileUtils.deleteQuietly(staging);
+                throw e;
+            }
+            JsonArray associatedFiles = new JsonArray();
+            records.forEach(associatedFiles::add);
+            InstallManifest manifest = InstallManifest.create(mod, BaldursGateModInstaller.ModType.DATA.name(), new File(BG3Settings.playerProfile)).setFiles(associatedFiles);
+
+            List<JsonObject> committed = Collections.synchronizedList(new ArrayList<>());
+            try {
+
+                manifest.save();
+                try(ParallelCopier copier = new ParallelCopier(BG3Settings.copyQueueDepth)) {
+
+                    try {
+
+                        for(int i = 0; i < records.size(); i++) {
+
+                            JsonObject record = records.get(i);
+                            if(record.has("merge")) continue;
+                            File staged = resolve(staging, record.get("relative").getAsString());
+                            copier.submit(() -> {
+
+                                deploy(staged, record, mode);
+                                committed.add(record);
+                            });
+                            task.progress(i + 1, records.size());
+                        }
+                    } finally {
+
+                        // Nothing is undone while a file is still being placed
+                        copier.await();
+                    }
+                }
+                // One at a time, as each reads and writes the whole file
+                for(JsonObject record : records) {
+
+                    if(!record.has("merge")) continue;
+                    String relative = record.get("relative").getAsString();
+                    File target = new File(record.get("path").getAsString());
+                    if(merges.containsKey(relative)) startMerge(relative, target, merges.get(relative), store, layers);
+                    MergedFiles.add(relative, id, record.get("content").getAsString());
+                    committed.add(record);
+                    MergedFiles.State state = MergedFiles.get(relative);
+                    writeMerged(relative, target, state.getBase(), state.getLayers().values(), data, store);
+                }
+                if(!merges.isEmpty()) layers.save();
+                MergedFiles.save();
+                AtomicFile.syncDirectories(records.stream().map(record -> Path.of(record.get("path").getAsString()).getParent()).toList());
+                // With the modes which were actually used
+                manifest.setFiles(associatedFiles).save();
+            } catch (IOException | RuntimeException e) {
+
+                Logger.info(String.format("Could not install %s, undoing %d files: %s", id, committed.size(), e.getMessage()));
+                for(JsonObject record : committed) {
+
+                    if(record.has("merge")) {
+
+                        unmerge(record, id, data, store, index);
+                        continue;
+                    }
+                    restore(record, data, store, layers);
+                    index.update(record.get("relative").getAsString(), getReplaced(record));
+                }
+                index.save();
+                layers.save();
+                saveMerges();
+                store.release(id);
+                manifest.delete();
+                throw e;
+            } finally {
+
+                if(!overlay) FileUtils.deleteQuietly(staging);
+            }
+
+            records.forEach(record -> index.update(record.get("relative").getAsString(), id));
+            index.save();
+            store.save();
+            mod.setAssociatedFiles(associatedFiles);
+            ConflictIndex.report(id, ConflictIndex.get().add(id, files));
+            return true;
+        }
+    }
+
+    /**
+     * Uninstalls the mod, waiting for it to finish
+     */
+    public boolean uninstallLoose(Mod mod) {
+
+        InstallTask task = new InstallTask(mod.getReadableName());
+        return InstallExecutor.await(InstallExecutor.submit(task, () -> uninstallLoose(mod, task)), false);
+    }
+
+    /**
+     * Uninstalls the mod on the calling thread, from its manifest alone, nothing is scanned or extracted again.
+     * Each path is restored as follows:
+     * - if another mod was installed over it since, that mod now replaces whatever this one replaced, and the path is left alone
+     * - otherwise the file it replaced is put back, linked again from the overlay of the mod underneath or copied from the store,
+     * or the file is removed if it created it
+     * - a merged file is merged again from the other mods' versions
+     *
+     * The mod's overlay is kept, so enabling it again only has to link it.
+     */
+    public boolean uninstallLoose(Mod mod, InstallTask task) {
+
+        if(mod.getState() == Mod.State.DISABLED) return true;
+
+        File data = getDataDirectory();
+        synchronized(LOCKS.computeIfAbsent(data.getAbsoluteFile(), key -> new Object())) {
+
+            InstallManifest manifest = InstallManifest.load(mod);
+            // Loose mods have only ever been installed with a manifest
+            if(manifest == null || !manifest.isInstalled()) return true;
+
+            task.phase(InstallTask.Phase.DEPLOY);
+            String id = manifest.getId();
+            DataIndex index = DataIndex.forDirectory(data);
+            PakStore store = PakStore.forDataFolder(data);
+            Layers layers = new Layers(id);
+
+            List<JsonObject> records = new ArrayList<>();
+            for(JsonElement element : manifest.getFiles()) {
+
+                records.add(element.getAsJsonObject());
+            }
+            Collections.reverse(records);
+            for(JsonObject record : records) {
+
+                String relative = record.get("relative").getAsString();
+                if(record.has("merge")) {
+
+                    unmerge(record, id, data, store, index);
+                    continue;
+                }
+                String above = layers.getAbove(id, relative);
+                if(above == null) {
+
+                    restore(record, data, store, layers);
+                    index.update(relative, getReplaced(record));
+                    continue;
+                }
+                JsonObject over = layers.get(above, relative);
+                for(String property : new String[] { "created", "original", "replaced" }) {
+
+                    over.remove(property);
+                    if(record.has(property)) over.add(property, record.get(property));
+                }
+                if(record.has("original") && !store.acquire(record.get("original").getAsString(), above)) {
+
+                    Logger.info(String.format("The file under %s in %s is no longer stored", relative, above));
+                }
+                layers.changed(above);
+            }
+            index.save();
+
+            boolean ret = layers.save() & saveMerges();
+            store.release(id);
+            ConflictIndex.get().remove(id);
+            deleteIfEmpty(new File(module.gameHome, "CandorBackup/" + id));
+            try {
+
+                store.save();
+                manifest.setInstalled(false).save();
+            } catch (IOException e) {
+
+                e.printStackTrace();
+                return false;
+            }
+            return ret;
+        }
+    }
+
+    /**
+     * Deletes the overlays of mods which are no longer installed and whose archive has gone or changed,
+     * they would be extracted again anyway
+     */
+    public static void collectOverlays(File gameHome) {
+
+        File[] overlays = new File(gameHome, "CandorOverlay").listFiles(File::isDirectory);
+        if(overlays == null) return;
+
+        Map<String, InstallManifest> manifests = new HashMap<>();
+        InstallManifest.loadAll().forEach(manifest -> manifests.put(manifest.getId(), manifest));
+        for(File overlay : overlays) {
+
+            InstallManifest manifest = manifests.get(overlay.getName());
+            if(manifest != null && (manifest.isInstalled() || (manifest.getArchive().exists() && manifest.matches(manifest.getArchive())))) continue;
+            Logger.info(String.format("Removing the overlay of %s, it is no longer used", overlay.getName()));
+            FileUtils.deleteQuietly(overlay);
+        }
+    }
+
+    /**
+     * Maps the archive's entries to their paths inside Data
+     * - if any entry is inside a Data folder, only those entries are installed, relative to it
+     * - otherwise folders wrapping every entry, such as the mod's name, are stripped
+     * - files left in the root, such as a readme, are not installed
+     * @return each entry to install, by its path inside Data
+     */
+    public static Map<String, String> toDataPaths(List<String> entries) {
+
+        Map<String, String> ret = new LinkedHashMap<>();
+        for(String entry : entries) {
+
+            String lower = "/" + entry.toLowerCase(Locale.ROOT);
+            int index = lower.indexOf("/data/");
+            if(index >= 0) ret.put(entry, entry.substring(index + "data/".length()));
+        }
+        if(!ret.isEmpty()) {
+
+            ret.values().removeIf(ModArchive::isRootEntry);
+            return ret;
+        }
+
+        entries.forEach(entry -> ret.put(entry, entry));
+        while(!ret.isEmpty()) {
+
+            String first = null;
+            boolean wrapped = true;
+            for(String path : ret.values()) {
+
+                int slash = path.indexOf('/');
+                String folder = slash < 0 ? null : path.substring(0, slash);
+                if(folder == null || (first != null && !first.equals(folder))) {
 
-        // Copy any loose files already found to temp directory
-        File modLooseTemp = null;
+                    wrapped = false;
+                    break;
+                }
+                first = folder;
+            }
+            if(!wrapped || DATA_ROOTS.contains(first.toLowerCase(Locale.ROOT))) break;
+            ret.replaceAll((entry, path) -> path.substring(path.indexOf('/') + 1));
+        }
+        ret.values().removeIf(ModArchive::isRootEntry);
+        return ret;
+    }
+
+    private File getDataDirectory() {
+
+        return new File(module.gameHome, "Data");
+    }
+
+    private static File getOverlayDirectory(File gameHome, String id) {
+
+        return new File(gameHome, "CandorOverlay/" + id);
+    }
+
+    // Extracts every file for Data to the directory, several at once
+    private static Collection<String> extract(Mod mod, File staging, InstallTask task) throws IOException {
+
+        FileUtils.deleteQuietly(staging);
+        try(ModArchive archive = ModArchive.open(mod.getFile())) {
+
+            Map<String, String> files = toDataPaths(archive.getEntries());
+            if(files.isEmpty()) throw new FileNotFoundException(String.format("No files for the Data folder found in %s", mod.getFile().getName()));
+
+            int done = 0;
+            try(ParallelCopier copier = new ParallelCopier(BG3Settings.copyQueueDepth)) {
+
+                for(Map.Entry<String, String> file : files.entrySet()) {
+
+                    File staged = resolve(staging, file.getValue());
+                    copier.submit(() -> archive.extractTo(file.getKey(), staged));
+                    task.progress(++done, files.size());
+                }
+                copier.await();
+            }
+            return files.values();
+        } catch (IOException | CancellationException e) {
+
+            FileUtils.deleteQuietly(staging);
+            throw e;
+        }
+    }
+
+    // The paths of the mod's last install if its overlay is still complete, or null if it has to be extracted
+    private static List<String> findStaged(Mod mod, File overlay) {
+
+        InstallManifest previous = InstallManifest.load(mod);
+        if(previous == null || previous.isInstalled() || !previous.matches(mod.getFile()) || !overlay.isDirectory()) return null;
+
+        List<String> ret = new ArrayList<>();
+        for(JsonElement element : previous.getFiles()) {
+
+            JsonObject record = element.getAsJsonObject();
+            if(!record.has("source") || !record.has("relative")) return null;
+            File staged = new File(overlay, record.get("relative").getAsString());
+            if(!staged.isFile() || staged.length() != record.get("size").getAsLong()) return null;
+            ret.add(record.get("relative").getAsString());
+        }
+        return ret.isEmpty() ? null : ret;
+    }
+
+    // Renames a staged file into place, or links it from the overlay, its directory is synced once every file is placed
+    private static void deploy(File staged, JsonObject record, DeployMode mode) throws IOException {
+
+        File target = new File(record.get("path").getAsString());
+        if(!record.has("source")) {
+
+            FileUtils.forceMkdirParent(target);
+            AtomicFile.move(staged.toPath(), target.toPath());
+            return;
+        }
+        record.addProperty("mode", Deployer.link(staged, target, mode, false).getId());
+    }
+
+    // Removes an installed file, puts back what it replaced, and removes any folders left empty
+    private static void restore(JsonObject record, File data, PakStore store, Layers layers) {
+
+        Deployer.undeploy(record);
+        File target = new File(record.get("path").getAsString());
+        String relative = record.get("relative").getAsString();
+        JsonObject lower = layers.get(getReplaced(record), relative);
         try {
 
-            modLooseTemp = Files.createTempDirectory("modLoose").toFile();
+            if(record.has("original")) {
 
-            System.out.println(modLooseTemp);
+                File original = store.getObject(record.get("original").getAsString());
+                if(original.isFile()) {
 
-            File dataDirectory = new File(module.gameHome, "data");
+                    Deployer.link(original, target, DeployMode.COPY);
+                } else {
 
-            // Extract archive to separate temp directory
-            Archive archive = new ArchiveBuilder(mod.getFile()).outputDirectory(modLooseTemp).type(ArchiveBuilder.ArchiveType.SEVEN_ZIP).build();
-            archive.extract();
+                    Logger.info(String.format("Could not put back %s, it is no longer stored", relative));
+                }
+            } else if(lower != null && lower.has("source")) {
 
-            // For each file in the in hierarchy, copy it, candor will ask about any files that need overwriting or merging
-            // If they are to be merged, handle that in the appropriate file merger.
+                // The mod underneath is linked from its overlay
+                lower.addProperty("mode", Deployer.link(new File(lower.get("source").getAsString()), target, DeployMode.fromId(BG3Settings.overlayMode)).getId());
+                layers.changed(getReplaced(record));
+            } else if(record.has("backup")) {
 
-            LooseFileVisitor visitor = new LooseFileVisitor(this, modLooseTemp.toPath());
-            Files.walkFileTree(modLooseTemp.toPath(), visitor); // This pass builds a list of mod files
-            visitor.source = null;
-            Files.walkFileTree(dataDirectory.toPath(), visitor); // This pass acts on the list
+                // Installed before originals were kept in the store
+                File backup = new File(record.get("backup").getAsString());
+                if(backup.exists()) AtomicFile.rename(backup.toPath(), target.toPath());
+            } else if(getReplaced(record) != null) {
 
-            visitor.modFiles.forEach(System.out::println);
+                Logger.info(String.format("Could not put back %s from %s, it is no longer installed", relative, getReplaced(record)));
+            }
+        } catch (IOException e) {
 
+            e.printStackTrace();
+        }
+        deleteEmptyParents(target, data);
+    }
+
+    private static void deleteEmptyParents(File target, File data) {
+
+        for(File parent = target.getParentFile(); parent != null && !parent.equals(data.getAbsoluteFile()); parent = parent.getParentFile()) {
+
+            String[] children = parent.list();
+            if(children == null || children.length > 0 || !parent.delete()) break;
+        }
+    }
+
+    // Only a file another mod placed over the game's own, or created, can start being merged, anything deeper is replaced as before
+    private static boolean canMerge(DataIndex.Entry existing, Layers layers, String relative) {
+
+        if(existing == null || existing.getOwner() == null) return false;
+        JsonObject lower = layers.get(existing.getOwner(), relative);
+        return lower != null && !lower.has("replaced") && !lower.has("backup") && !lower.has("merge");
+    }
+
+    // The mod underneath becomes the first version merged, over the file it replaced, if any
+    private static void startMerge(String relative, File target, String owner, PakStore store, Layers layers) throws IOException {
+
+        JsonObject lower = layers.get(owner, relative);
+        String base = lower.has("original") ? lower.get("original").getAsString() : null;
+        if(base != null && !store.acquire(base, MergedFiles.getBaseOwner(relative))) base = null;
+        String content = store.putFile(target, owner).getTree();
+        // The mod's version is only stored from here on, before the merge replaces it
+        store.save();
+        MergedFiles.start(relative, base);
+        MergedFiles.add(relative, owner, content);
+        for(String property : new String[] { "created", "original", "replaced" }) {
+
+            lower.remove(property);
+        }
+        lower.addProperty("merge", true);
+        lower.addProperty("content", content);
+        layers.changed(owner);
+    }
+
+    // Removes the mod's version of a merged file, and merges the rest again
+    private static void unmerge(JsonObject record, String id, File data, PakStore store, DataIndex index) {
+
+        String relative = record.get("relative").getAsString();
+        File target = new File(record.get("path").getAsString());
+        MergedFiles.State before = MergedFiles.get(relative);
+        if(before == null) {
+
+            Logger.info(String.format("Could not put back %s, it is no longer merged", relative));
+            return;
+        }
+        MergedFiles.remove(relative, id);
+        MergedFiles.State after = MergedFiles.get(relative);
+        try {
+
+            writeMerged(relative, target, before.getBase(), after != null ? after.getLayers().values() : List.of(), data, store);
+        } catch (IOException e) {
+
+            e.printStackTrace();
+        }
+        index.update(relative, after != null ? after.getTop() : null);
+        if(after == null) store.release(MergedFiles.getBaseOwner(relative));
+    }
+
+    /**
+     * Writes a merged file from the versions left
+     * - with none, the file they replaced is put back, or it is removed if they added it
+     * - with one, it is copied as it is
+     * - otherwise they are merged, and if that fails the last one is used
+     */
+    private static void writeMerged(String relative, File target, String base, Collection<String> versions, File data, PakStore store) throws IOException {
+
+        File baseFile = base != null ? store.getObject(base) : null;
+        if(baseFile != null && !baseFile.isFile()) {
+
+            Logger.info(String.format("The file under %s is no longer stored, merging without it", relative));
+            baseFile = null;
+        }
+        List<File> layers = versions.stream().map(store::getObject).toList();
+        if(layers.isEmpty()) {
+
+            if(baseFile != null) {
+
+                Deployer.link(baseFile, target, DeployMode.COPY);
+            } else {
+
+                Files.deleteIfExists(target.toPath());
+                deleteEmptyParents(target, data);
+            }
+            return;
+        }
+        if(layers.size() == 1) {
 
-            // Once all files have been handled correctly, copy to DATA folder
-            // If any steps above failed, it will not overwrite any files!
+            Deployer.link(layers.get(0), target, DeployMode.COPY);
+            return;
+        }
+        FileUtils.forceMkdirParent(target);
+        File temp = AtomicFile.createTemp(target);
+        try {
+
+            MergerRegistry.get(relative).merge(baseFile, layers, temp);
+            AtomicFile.replace(temp, target);
+        } catch (IOException | RuntimeException e) {
+
+            Logger.info(String.format("Could not merge %s, using the last mod's version: %s", relative, e.getMessage()));
+            Deployer.link(layers.get(layers.size() - 1), target, DeployMode.COPY);
+        } finally {
+
+            FileUtils.deleteQuietly(temp);
+        }
+    }
+
+    private static boolean saveMerges() {
+
+        try {
 
-            // Clean up temp directories
+            MergedFiles.save();
+            return true;
         } catch (IOException e) {
 
             e.printStackTrace();
-            System.out.println("Something happen?");
+            return false;
         }
+    }
+
+    // The mod whose file the record replaced, or null for the game's own
+    private static String getReplaced(JsonObject record) {
 
-        return false;
+        return record.has("replaced") ? record.get("replaced").getAsString() : null;
     }
 
-    public boolean uninstallLoose(Mod mod) {
+    private static String key(String relative) {
 
-        // Copy all loose files to temp directory
+        return relative.replace('\\', '/').toLowerCase(Locale.ROOT);
+    }
 
-        // extract mod files to separate temp directory
+    // Anything still in a backup directory could not be put back, and is the only copy
+    private static void deleteIfEmpty(File backup) {
 
-        // For each file, if it exists, get file merger and attempt to remove any entries
+        if(backup.isDirectory() && FileUtils.listFiles(backup, null, true).isEmpty()) FileUtils.deleteQuietly(backup);
+    }
 
-        // Once finished, copy to DATA folder,
-        // If any steps fail, nothing will be affected.
+    // Refuses paths which would escape the directory, the file itself may be a link to outside it
+    private static File resolve(File directory, String relative) throws IOException {
 
-        // Clean up temp directories
+        File ret = new File(directory, relative);
+        String parent = ret.getAbsoluteFile().getParentFile().getCanonicalPath() + File.separator;
+        if(ret.getName().equals("..") || !parent.startsWith(directory.getCanonicalPath() + File.separator)) {
 
-        return false;
+            throw new IOException(String.format("%s is outside of %s", relative, directory.getName()));
+        }
+        return ret;
     }
 
-    private String determineFirstFolder(Archive archive) throws IOException {
+    /**
+     * The records of every other installed loose mod, by mod and path, and which of their manifests have been changed
+     */
+    private static class Layers {
 
-        AtomicReference<String> ret = new AtomicReference<>();
+        private final Map<String, InstallManifest> manifests = new HashMap<>();
+        private final Map<String, Map<String, JsonObject>> records = new HashMap<>();
+        private final Set<String> changed = new HashSet<>();
 
-        archive.getAllArchiveItems().forEach(item -> {
+        private Layers(String except) {
 
-            if(item.isDirectory() && !(item.getFilePath().contains("\\") || item.getFilePath().contains("/"))) {
+            for(InstallManifest manifest : InstallManifest.loadAll()) {
 
-                ret.set(item.getFilePath());
+                if(!manifest.isInstalled() || manifest.getId().equals(except) || !manifest.getType().equals(BaldursGateModInstaller.ModType.DATA.name())) continue;
+                Map<String, JsonObject> byPath = new HashMap<>();
+                for(JsonElement element : manifest.getFiles()) {
+
+                    JsonObject record = element.getAsJsonObject();
+                    if(record.has("relative")) byPath.put(key(record.get("relative").getAsString()), record);
+                }
+                manifests.put(manifest.getId(), manifest);
+                records.put(manifest.getId(), byPath);
             }
-        });
+        }
 
-        return ret.get() != null ? ret.get() : "";
+        // The mod's record for the path, or null if it has none
+        private JsonObject get(String id, String relative) {
+
+            if(id == null || !records.containsKey(id)) return null;
+            return records.get(id).get(key(relative));
+        }
+
+        // The mod installed directly over the given one at the path, or null if it is on top
+        private String getAbove(String id, String relative) {
+
+            for(Map.Entry<String, Map<String, JsonObject>> entry : records.entrySet()) {
+
+                JsonObject record = entry.getValue().get(key(relative));
+                if(record != null && id.equals(getReplaced(record))) return entry.getKey();
+            }
+            return null;
+        }
+
+        private void changed(String id) {
+
+            changed.add(id);
+        }
+
+        // Writes every changed manifest, false if any could not be
+        private boolean save() {
+
+            boolean ret = true;
+            for(String id : changed) {
+
+                try {
+
+                    manifests.get(id).save();
+                } catch (IOException e) {
+
+                    e.printStackTrace();
+                    ret = false;
+                }
+            }
+            changed.clear();
+            return ret;
+        }
     }
 }
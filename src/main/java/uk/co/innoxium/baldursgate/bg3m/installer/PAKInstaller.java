@@ -1,109 +1,152 @@
 package uk.co.innoxium.baldursgate.bg3m.installer;
 
 import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
-import org.apache.commons.io.FileUtils;
-import org.dom4j.Document;
-import org.dom4j.DocumentException;
-import org.dom4j.Element;
-import org.dom4j.Node;
-import org.dom4j.io.OutputFormat;
-import org.dom4j.io.SAXReader;
-import org.dom4j.io.XMLWriter;
-import org.xml.sax.SAXException;
 import uk.co.innoxium.baldursgate.BG3Settings;
 import uk.co.innoxium.baldursgate.BaldursGateModInstaller;
 import uk.co.innoxium.baldursgate.bg3m.MetaInfo;
+import uk.co.innoxium.baldursgate.bg3m.archive.ModArchive;
+import uk.co.innoxium.baldursgate.bg3m.conflict.ConflictIndex;
+import uk.co.innoxium.baldursgate.bg3m.deploy.DeployMode;
+import uk.co.innoxium.baldursgate.bg3m.deploy.Deployer;
+import uk.co.innoxium.baldursgate.bg3m.deploy.PakStore;
+import uk.co.innoxium.baldursgate.bg3m.hash.PakHash;
+import uk.co.innoxium.baldursgate.bg3m.lsx.ModRegistry;
+import uk.co.innoxium.baldursgate.bg3m.lsx.ModSettingsBatch;
+import uk.co.innoxium.baldursgate.bg3m.manifest.InstallManifest;
+import uk.co.innoxium.baldursgate.bg3m.pak.LSPKReader;
+import uk.co.innoxium.baldursgate.bg3m.task.InstallExecutor;
+import uk.co.innoxium.baldursgate.bg3m.task.InstallTask;
 import uk.co.innoxium.candor.mod.Mod;
 import uk.co.innoxium.candor.module.AbstractModule;
+import uk.co.innoxium.candor.util.Logger;
 import uk.co.innoxium.candor.util.NativeDialogs;
-import uk.co.innoxium.candor.util.Utils;
-import uk.co.innoxium.cybernize.archive.Archive;
-import uk.co.innoxium.cybernize.archive.ArchiveBuilder;
 import uk.co.innoxium.cybernize.json.JsonUtil;
 
-import java.io.*;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.atomic.AtomicReference;
 
 public class PAKInstaller {
 
     private final AbstractModule module;
-    private final String xPath = "//save/region/node/children/node";
     private final BaldursGateModInstaller.ModType type;
+    private final Deployer deployer;
 
     public PAKInstaller(AbstractModule module, BaldursGateModInstaller.ModType type) {
 
         this.module = module;
         this.type = type;
+        // Staged next to the Mods folder, so hard links stay on the same volume
+        this.deployer = new Deployer(DeployMode.fromId(BG3Settings.deployMode), PakStore.forModsFolder(module.getModsFolder()));
     }
 
     /**
-     * Runs though the uninstallation steps
-     * - backup modsettings.lsx
-     * - Read info.json for each mod details
-     * - Determine which nodes to remove from modsettings.lsx
-     * - remove nodes
-     * - write xml
-     * - fallback on modsettings.backup.lsx
+     * Runs though the uninstallation steps, on the {@link InstallExecutor}
+     * - Read each mod's details from its {@link InstallManifest}, or info.json if it has none
+     * - Queue the nodes to remove from modsettings.lsx
      * - remove paks
+     * - remove nodes and write xml in a single batch
+     * Candor needs the result straight away, so this waits for it without blocking the Swing thread.
      * @param mod - The mod to uninstall
      * @return true if already disabled, or uninstalled correctly
      */
     public boolean uninstallBG3M(Mod mod) {
 
-        if(mod.getState() == Mod.State.DISABLED) return true;
+        return InstallExecutor.await(uninstallBG3M(mod, new InstallTask(mod.getReadableName())), false);
+    }
 
-        try {
+    /**
+     * Uninstalls the mod on the {@link InstallExecutor}
+     * @param mod - The mod to uninstall
+     * @param task - Reports the progress of the uninstall, and can cancel it before the paks are removed
+     * @return a future completed with true if already disabled, or uninstalled correctly
+     */
+    public CompletableFuture<Boolean> uninstallBG3M(Mod mod, InstallTask task) {
+
+        ModSettingsBatch batch = new ModSettingsBatch(BG3Settings.getPlayerProfiles());
+        return InstallExecutor.submit(task, () -> {
+
+            boolean ret = uninstallBG3M(mod, batch, task);
+            task.phase(InstallTask.Phase.WRITE_XML);
+            ret &= apply(batch);
+            deployer.save();
+            task.phase(InstallTask.Phase.DONE);
+            return ret;
+        });
+    }
 
-            if(type == BaldursGateModInstaller.ModType.PAK) {
+    /**
+     * Uninstalls a list of mods in parallel, removing all of their nodes from modsettings.lsx in one write
+     * @param mods - The mods to uninstall
+     * @return true if every mod was uninstalled correctly
+     */
+    public boolean uninstallBG3M(List<Mod> mods) {
 
-                File playerProfile = new File(BG3Settings.playerProfile);
-                File modSettingsBackup = new File(playerProfile, "modsettings.backup.lsx");
-                if(!modSettingsBackup.canWrite()) modSettingsBackup.setWritable(true);
-                FileUtils.copyFile(new File(playerProfile, "modsettings.lsx"), modSettingsBackup);
+        ModSettingsBatch batch = new ModSettingsBatch(BG3Settings.getPlayerProfiles());
+        CompletableFuture<Boolean> ret = CompletableFuture.completedFuture(true);
+        for(Mod mod : mods) {
 
-                // Extract to temp location
-                File temp = Files.createTempDirectory("bg3").toFile();
-                Archive archive = new ArchiveBuilder(mod.getFile()).type(ArchiveBuilder.ArchiveType.SEVEN_ZIP).outputDirectory(temp).build();
-                archive.extract();
+            InstallTask task = new InstallTask(mod.getReadableName());
+            CompletableFuture<Boolean> uninstalled = InstallExecutor.submit(task, () -> uninstallBG3M(mod, batch, task)).exceptionally(throwable -> false);
+            ret = ret.thenCombine(uninstalled, Boolean::logicalAnd);
+        }
+        return InstallExecutor.await(ret.thenApply(uninstalled -> {
 
-                File info = new File(temp, "info.json");
-                JsonObject contents = JsonUtil.getObjectFromPath(info.toPath());
+            deployer.save();
+            return apply(batch) && uninstalled;
+        }), false);
+    }
 
-                JsonArray modsArray = JsonUtil.getArray(contents, "mods");
-                if(modsArray == null) {
+    /**
+     * Uninstalls the mod on the calling thread, queueing its modsettings.lsx changes on the batch.
+     * The caller is responsible for applying the batch.
+     */
+    public boolean uninstallBG3M(Mod mod, ModSettingsBatch batch, InstallTask task) {
 
-                    // Attempt to get from caps too
-                    modsArray = JsonUtil.getArray(contents, "Mods");
-                }
+        if(mod.getState() == Mod.State.DISABLED) return true;
 
-                if(modsArray != null) {
+        try {
 
-                    modsArray.forEach(jsonElement -> {
+            InstallManifest manifest = InstallManifest.load(mod);
+            // Switched out by a mod set, its paks and modsettings.lsx entries are already gone, and may be in use by another version
+            if(manifest != null && !manifest.isInstalled()) return true;
+            JsonArray files;
+            if(manifest != null) {
 
-                        MetaInfo bg3Mod;
-                        if(contents.has("MD5"))
-                            bg3Mod = new MetaInfo(MetaInfo.MetaType.V3).fromJson(jsonElement.getAsJsonObject());
-                        else
-                            bg3Mod = new MetaInfo(MetaInfo.MetaType.V2).fromJson(jsonElement.getAsJsonObject());
-//                        BG3Mod bg3Mod = BG3Mod.fromJson((JsonObject) jsonElement);
-                        assert bg3Mod != null;
-                        removeXMLElements(bg3Mod);
-                    });
-                } else {
+                // Everything needed was recorded when it was installed, the archive is not opened
+                task.phase(InstallTask.Phase.INDEX);
+                manifest.getMods().forEach(batch::remove);
+                files = manifest.getFiles();
+            } else {
 
-                    MetaInfo bg3Mod = new MetaInfo(MetaInfo.MetaType.V1).fromJson(contents);
-                    removeXMLElements(bg3Mod);
+                if(type == BaldursGateModInstaller.ModType.PAK) {
+
+                    // Installed before manifests, only info.json is needed, read it straight from the archive
+                    task.phase(InstallTask.Phase.EXTRACT);
+                    try(ModArchive archive = ModArchive.open(mod.getFile())) {
+
+                        JsonObject contents = readInfo(archive);
+                        task.phase(InstallTask.Phase.INDEX);
+                        readMetaInfos(contents).forEach(batch::remove);
+                    }
                 }
+                files = mod.getAssociatedFiles();
             }
-            mod.getAssociatedFiles().forEach(element -> {
-
-                FileUtils.deleteQuietly(new File(element.getAsString()));
-            });
+            // Last chance to cancel, once paks start being removed the uninstall is finished
+            task.phase(InstallTask.Phase.DEPLOY);
+            files.forEach(Deployer::undeploy);
+            deployer.release(InstallManifest.getId(mod));
+            ConflictIndex.get().remove(InstallManifest.getId(mod));
+            if(manifest != null) manifest.setInstalled(false).save();
             return true;
         } catch (IOException e) {
 
@@ -112,269 +155,379 @@ public class PAKInstaller {
         return false;
     }
 
-    private boolean removeXMLElements(MetaInfo mod) {
-
-        File modsetings = new File(BG3Settings.playerProfile, "modsettings.lsx");
-
-        try {
-
-            Document doc = getSaxReader().read(modsetings);
-            // Get the element for the Mods node
-            AtomicReference<Element> mods = new AtomicReference<>();
-            AtomicReference<Element> modOrder = new AtomicReference<>();
-            List<Node> nodes = doc.selectNodes(xPath);
-            nodes.forEach(node -> {
+    /**
+     * Runs through the installation steps, on the {@link InstallExecutor}
+     * - Re-enable from the {@link InstallManifest} if every pak is still staged
+     * - Read contents of info.json straight from the archive
+     * - stream each pak from the archive into the mods folder, or link it from the store, see {@link Deployer}
+     * - queue two XML nodes from json, id's: Module, ModuleShortDesc
+     * - record what was installed in the manifest
+     * - finally add all queued nodes to XML in a single batch - restore to default if anything breaks
+     * @param mod - The mod to install
+     * @return a future completed with true if installed correctly
+     */
+    public CompletableFuture<Boolean> installBG3M(Mod mod) {
 
-                Element element = (Element)node;
-                element.attributeIterator().forEachRemaining(attr -> {
+        return installBG3M(mod, new InstallTask(mod.getReadableName()));
+    }
 
-                    if(attr.getName().equalsIgnoreCase("id")) {
+    /**
+     * Installs the mod on the {@link InstallExecutor}
+     * @param mod - The mod to install
+     * @param task - Reports the progress of the install, cancelling it removes anything already deployed
+     * @return a future completed with true if installed correctly
+     */
+    public CompletableFuture<Boolean> installBG3M(Mod mod, InstallTask task) {
 
-                        System.out.println(element.getName());
-                        if(attr.getValue().equalsIgnoreCase("mods")) {
+        ModSettingsBatch batch = new ModSettingsBatch(BG3Settings.getPlayerProfiles());
+        return InstallExecutor.submit(task, () -> {
 
-                            mods.set(element);
-                        }
-                        if(attr.getValue().equalsIgnoreCase("modorder")) {
+            if(!installBG3M(mod, batch, task)) return false;
+            try {
 
-                            modOrder.set(element);
-                        }
-                    }
-                });
-            });
-            Element modChildren = (Element)mods.get().selectSingleNode("children");
-            mod.removeModShortDesc(modChildren);
-            Element modOrderChildren = (Element)modOrder.get().selectSingleNode("children");
-            if(modOrderChildren == null) {
+                task.phase(InstallTask.Phase.WRITE_XML);
+            } catch (CancellationException e) {
 
-                modOrderChildren = modOrder.get().addElement("children");
+                mod.getAssociatedFiles().forEach(Deployer::undeploy);
+                deployer.release(InstallManifest.getId(mod));
+                InstallManifest manifest = InstallManifest.load(mod);
+                if(manifest != null) saveManifest(manifest.setInstalled(false));
+                throw e;
             }
-            mod.removeModOrder(modOrderChildren);
+            boolean ret = apply(batch);
+            PakHash.save();
+            deployer.save();
+            task.phase(InstallTask.Phase.DONE);
+            return ret;
+        });
+    }
 
-            writeXMLToFile(doc);
-            return true;
-        } catch (DocumentException | IOException e) {
+    /**
+     * Installs a list of mods in parallel, adding all of their nodes to modsettings.lsx in one write
+     * @param mods - The mods to install
+     * @return a future completed with true if every mod was installed correctly
+     */
+    public CompletableFuture<Boolean> installBG3M(List<Mod> mods) {
 
-            e.printStackTrace();
-            return false;
+        ModSettingsBatch batch = new ModSettingsBatch(BG3Settings.getPlayerProfiles());
+        CompletableFuture<Boolean> ret = CompletableFuture.completedFuture(true);
+        for(Mod mod : mods) {
+
+            // A failed mod should not stop the others from being written
+            InstallTask task = new InstallTask(mod.getReadableName());
+            CompletableFuture<Boolean> installed = InstallExecutor.submit(task, () -> installBG3M(mod, batch, task)).exceptionally(throwable -> false);
+            ret = ret.thenCombine(installed, Boolean::logicalAnd);
         }
+        return ret.thenApply(installed -> {
+
+            PakHash.save();
+            deployer.save();
+            return apply(batch) && installed;
+        });
     }
 
     /**
-     * Runs through the installation steps
-     * - Extract mod to temp folder
-     * - Read contents of info.json
-     * - build two XML nodes from json, id's: Module, ModuleShortDesc
-     * - try to add these to XML - restore to default if anything breaks
-     * - finally copy pak to mods folder
-     * @param mod - The mod to install
-     * @return true if installed correctly
+     * Installs the mod on the calling thread, queueing its modsettings.lsx changes on the batch.
+     * The caller is responsible for applying the batch.
+     * @throws CancellationException if the task was cancelled, after removing anything it deployed
      */
-    public CompletableFuture<Boolean> installBG3M(Mod mod) {
+    public boolean installBG3M(Mod mod, ModSettingsBatch batch, InstallTask task) throws IOException {
 
-        //Steps
-        try {
-
-            if(type == BaldursGateModInstaller.ModType.PAK) {
+        if(type == BaldursGateModInstaller.ModType.PAK && !batch.getModSettings().exists()) {
 
-                File playerProfile = new File(BG3Settings.playerProfile);
-                File modSettings = new File(playerProfile, "modsettings.lsx");
-                if(!modSettings.exists()) {
+            NativeDialogs.showErrorMessage("ModSettings.lsx does not exist. Mod installation cannot continue.\nTry running the game to generate this file.\n If this still isn't working, please contact us on Discord, which can be found in the \"About\" menu.");
+            throw new FileNotFoundException("ModSettings.lsx not found");
+        }
 
-                    NativeDialogs.showErrorMessage("ModSettings.lsx does not exist. Mod installation cannot continue.\nTry running the game to generate this file.\n If this still isn't working, please contact us on Discord, which can be found in the \"About\" menu.");
-                    return CompletableFuture.failedFuture(new FileNotFoundException("ModSettings.lsx not found"));
-                }
-                File modSettingsBackup = new File(playerProfile, "modsettings.backup.lsx");
-                if(!modSettingsBackup.canWrite()) modSettingsBackup.setWritable(true);
-                FileUtils.copyFile(new File(playerProfile, "modsettings.lsx"), modSettingsBackup);
-                // Extract to temp location
-                File temp = Files.createTempDirectory("bg3").toFile();
-                Archive archive = new ArchiveBuilder(mod.getFile()).type(ArchiveBuilder.ArchiveType.SEVEN_ZIP).outputDirectory(temp).build();
-                archive.extract();
-
-                File info = new File(temp, "info.json");
-                JsonObject contents = JsonUtil.getObjectFromPath(info.toPath());
-
-                JsonArray modsArray = JsonUtil.getArray(contents, "mods");
-                if(modsArray == null) {
-
-                    // Try to get mods array from uppercase too
-                    modsArray = JsonUtil.getArray(contents, "Mods");
-                }
+        InstallManifest previous = InstallManifest.load(mod);
+        if(previous != null && previous.isInstalled() && previous.getType().equals(type.name()) && previous.matches(mod.getFile()) && isInPlace(previous, batch.getModSettings())) {
 
-                JsonArray associatedPaks = new JsonArray();
+            // Switched in by a mod set while disabled here, its paks and modsettings.lsx entries are already in place
+            mod.setAssociatedFiles(previous.getFiles());
+            return true;
+        }
+        if(previous != null && !previous.isInstalled() && previous.getType().equals(type.name()) && previous.matches(mod.getFile())) {
 
-                // For mods which use the correct info.json
-                if(modsArray != null) {
+            if(redeploy(mod, previous, batch, task)) return true;
+        }
 
-                    modsArray.forEach(jsonElement -> {
+        InstallManifest manifest = InstallManifest.create(mod, type.name(), batch.getModSettings().getParentFile());
+        if(type == BaldursGateModInstaller.ModType.PAK) {
+            // Read info.json from the archive, and stream each pak straight into the mods folder
+            task.phase(InstallTask.Phase.EXTRACT);
+            try(ModArchive archive = ModArchive.open(mod.getFile())) {
 
-                        MetaInfo bg3Mod;
-                        File modPak;
-                        if(contents.has("MD5")) {
+                JsonObject contents = readInfo(archive);
+                List<String> rootPaks = archive.getEntries().stream().filter(ModArchive::isRootPak).toList();
 
-                            bg3Mod = new MetaInfo(MetaInfo.MetaType.V3).fromJson(jsonElement.getAsJsonObject());
-//                            Arrays.stream(temp.listFiles()).iterator().forEachRemaining(System.out::println);
-                            modPak = temp.listFiles((dir, name) -> name.contains(".pak"))[0];
-                        } else {
+                task.phase(InstallTask.Phase.INDEX);
+                List<MetaInfo> bg3Mods = readMetaInfos(contents);
 
-                            bg3Mod = new MetaInfo(MetaInfo.MetaType.V2).fromJson(jsonElement.getAsJsonObject());
-                            modPak = new File(temp, bg3Mod.getFolder() + ".pak");
-                        }
+                task.phase(InstallTask.Phase.DEPLOY);
+                Set<String> deployed = new HashSet<>();
+                JsonArray associatedPaks = new JsonArray();
+                try {
 
-                        createAndMergeXML(bg3Mod);
+                    for(int i = 0; i < bg3Mods.size(); i++) {
 
+                        MetaInfo bg3Mod = bg3Mods.get(i);
                         try {
 
-                            if(bg3Mod.getType() == MetaInfo.MetaType.V2) {
-
-                                File newPakFile = new File(module.getModsFolder(), bg3Mod.getFolder() + ".pak");
-                                associatedPaks.add(newPakFile.getAbsolutePath());
-                                FileUtils.copyFile(modPak, newPakFile);
-                            } else {
-
-                                File newPakFile = new File(module.getModsFolder(), modPak.getName());
-                                if(associatedPaks.size() < 1)
-                                    associatedPaks.add(newPakFile.getAbsolutePath());
-                                FileUtils.copyFile(modPak, newPakFile);
+                            switch(bg3Mod.getType()) {
+
+                                case V1, V2 -> {
+
+                                    File newPakFile = new File(module.getModsFolder(), bg3Mod.getFolder() + ".pak");
+                                    if(deployed.add(newPakFile.getName())) associatedPaks.add(deployer.deploy(archive, bg3Mod.getFolder() + ".pak", newPakFile, manifest.getId()));
+                                    bg3Mod.setMd5(findMd5(associatedPaks, newPakFile));
+                                    readDependencies(bg3Mod, newPakFile);
+                                }
+                                default -> {
+
+                                    if(rootPaks.isEmpty()) throw new FileNotFoundException(String.format("No pak found in %s", mod.getFile().getName()));
+                                    // Prefer the pak named after the mod's folder, if there is more than one
+                                    String modPak = rootPaks.stream().filter(pak -> pak.equalsIgnoreCase(bg3Mod.getFolder() + ".pak")).findFirst().orElse(rootPaks.get(0));
+                                    File newPakFile = new File(module.getModsFolder(), modPak);
+                                    if(deployed.add(newPakFile.getName())) associatedPaks.add(deployer.deploy(archive, modPak, newPakFile, manifest.getId()));
+                                    bg3Mod.setMd5(findMd5(associatedPaks, newPakFile));
+                                    readDependencies(bg3Mod, newPakFile);
+                                }
                             }
                         } catch (IOException e) {
 
                             e.printStackTrace();
                         }
-                    });
-                } else {
+                        task.progress(i + 1, bg3Mods.size());
+                    }
+                } catch (CancellationException e) {
 
-                    // For mods which use the incorrect mods.json - Support for a while
-                    MetaInfo bg3Mod = new MetaInfo(MetaInfo.MetaType.V1).fromJson(contents);
-//                    BG3Mod bg3Mod = BG3Mod.fromJson(contents);
-                    createAndMergeXML(bg3Mod);
+                    associatedPaks.forEach(Deployer::undeploy);
+                    deployer.release(InstallManifest.getId(mod));
+                    throw e;
+                }
+                checkMd5(contents, bg3Mods);
+                mod.setAssociatedFiles(associatedPaks);
+                bg3Mods.forEach(batch::add);
+                bg3Mods.forEach(manifest::addMod);
+                saveManifest(manifest.setFiles(associatedPaks));
+                indexConflicts(manifest);
+            }
+            return true;
+        } else if(type == BaldursGateModInstaller.ModType.PAK_ONLY) {
+
+            // Installer for pak only mods, such as IgnoreMessage, which may have a meta.lsx inside the pak
+            JsonArray associatedPaks = new JsonArray();
+            task.phase(InstallTask.Phase.EXTRACT);
+            try(ModArchive archive = ModArchive.open(mod.getFile())) {
 
-                    try {
+                task.phase(InstallTask.Phase.INDEX);
+                List<String> paks = archive.getEntries().stream().filter(ModArchive::isRootPak).toList();
 
-                        File modPak = new File(temp, bg3Mod.getFolder() + ".pak");
-                        File newPakFile = new File(module.getModsFolder(), bg3Mod.getFolder() + ".pak");
-                        associatedPaks.add(newPakFile.getAbsolutePath());
-                        FileUtils.copyFile(modPak, newPakFile);
-                    } catch (IOException e) {
+                task.phase(InstallTask.Phase.DEPLOY);
+                try {
 
-                        e.printStackTrace();
+                    for(int i = 0; i < paks.size(); i++) {
+
+                        associatedPaks.add(deployer.deploy(archive, paks.get(i), new File(module.getModsFolder(), paks.get(i)), manifest.getId()));
+                        task.progress(i + 1, paks.size());
                     }
+                } catch (CancellationException e) {
+
+                    associatedPaks.forEach(Deployer::undeploy);
+                    deployer.release(InstallManifest.getId(mod));
+                    throw e;
                 }
-                mod.setAssociatedFiles(associatedPaks);
+            }
+            mod.setAssociatedFiles(associatedPaks);
 
-                return CompletableFuture.completedFuture(true);
-            } else if(type == BaldursGateModInstaller.ModType.PAK_ONLY) {
+            // Paks which carry a meta.lsx are registered like any other mod
+            if(batch.getModSettings().exists()) {
 
-                // Installer for pak only mods, such as IgnoreMessage
-                File temp = Files.createTempDirectory("bg3").toFile();
-                Archive archive = new ArchiveBuilder(mod.getFile()).type(ArchiveBuilder.ArchiveType.SEVEN_ZIP).outputDirectory(temp).build();
-                archive.extract();
+                for(JsonElement record : associatedPaks) {
 
-                JsonArray associatedPaks = new JsonArray();
+                    MetaInfo bg3Mod = LSPKReader.readMetaInfo(new File(record.getAsJsonObject().get("path").getAsString()));
+                    if(bg3Mod == null) continue;
+                    if(record.getAsJsonObject().has("md5")) bg3Mod.setMd5(record.getAsJsonObject().get("md5").getAsString());
+                    batch.add(bg3Mod);
+                    manifest.addMod(bg3Mod);
+                }
+            }
+            saveManifest(manifest.setFiles(associatedPaks));
+            indexConflicts(manifest);
+            return associatedPaks.size() > 0;
+        }
+        return false;
+    }
 
-                for (File pak : temp.listFiles()) {
+    /**
+     * Re-enables a mod from its manifest, linking each pak again from the store without opening the archive
+     * @return false if any pak is no longer staged, and the mod has to be installed from its archive
+     */
+    private boolean redeploy(Mod mod, InstallManifest manifest, ModSettingsBatch batch, InstallTask task) throws IOException {
 
-                    if(Utils.getExtension(pak).equalsIgnoreCase("pak")) {
+        task.phase(InstallTask.Phase.INDEX);
+        List<MetaInfo> bg3Mods = manifest.getMods();
+        JsonArray files = manifest.getFiles().deepCopy();
 
-                        File newPakFile = new File(module.getModsFolder(), pak.getName());
-                        FileUtils.copyFile(pak, newPakFile);
-                        associatedPaks.add(newPakFile.getAbsolutePath());
-                    }
+        task.phase(InstallTask.Phase.DEPLOY);
+        JsonArray deployed = new JsonArray();
+        try {
+
+            for(int i = 0; i < files.size(); i++) {
+
+                JsonObject record = files.get(i).getAsJsonObject();
+                if(!deployer.redeploy(record, manifest.getId())) {
+
+                    deployed.forEach(Deployer::undeploy);
+                    deployer.release(manifest.getId());
+                    return false;
                 }
-                mod.setAssociatedFiles(associatedPaks);
-                return CompletableFuture.completedFuture(associatedPaks.size() > 0);
+                deployed.add(record);
+                task.progress(i + 1, files.size());
             }
-            return CompletableFuture.completedFuture(false);
-        } catch (IOException e) {
+        } catch (CancellationException | IOException e) {
 
-            e.printStackTrace();
-            return CompletableFuture.failedFuture(e);
+            deployed.forEach(Deployer::undeploy);
+            deployer.release(manifest.getId());
+            throw e;
         }
+        mod.setAssociatedFiles(files);
+        bg3Mods.forEach(batch::add);
+        saveManifest(manifest.setFiles(files).setInstalled(true));
+        indexConflicts(manifest);
+        return true;
     }
 
-    private void createAndMergeXML(MetaInfo mod) {
+    // Whether the manifest was installed for the profile, every file it recorded is in place, and every mod it holds is registered.
+    // A manifest is saved before modsettings.lsx is written, so one whose write failed is installed again.
+    private static boolean isInPlace(InstallManifest manifest, File modSettings) throws IOException {
 
-        File modsetings = new File(BG3Settings.playerProfile, "modsettings.lsx");
-        try {
+        if(!manifest.getPlayerProfile().getAbsoluteFile().equals(modSettings.getParentFile().getAbsoluteFile())) return false;
+        if(manifest.getFiles().isEmpty()) return false;
+        ModRegistry registry = ModRegistry.load(modSettings);
+        for(MetaInfo mod : manifest.getMods()) {
 
-            Document doc = getSaxReader().read(modsetings);
+            if(!registry.isInstalled(mod.getUuid())) return false;
+        }
+        for(JsonElement element : manifest.getFiles()) {
 
-            // Get the element for the Mods node
-            AtomicReference<Element> mods = new AtomicReference<>();
-            AtomicReference<Element> modOrder = new AtomicReference<>();
-            List<Node> nodes = doc.selectNodes(xPath);
-            nodes.forEach(node -> {
+            String path = element.isJsonObject() ? element.getAsJsonObject().get("path").getAsString() : element.getAsString();
+            if(!new File(path).isFile()) return false;
+        }
+        return true;
+    }
 
-                Element element = (Element)node;
-                element.attributeIterator().forEachRemaining(attr -> {
+    // The md5 recorded when the pak was deployed, hashed as it was written
+    private static String findMd5(JsonArray records, File pak) {
 
-                    if(attr.getName().equalsIgnoreCase("id")) {
+        for(JsonElement element : records) {
 
-                        if(attr.getValue().equalsIgnoreCase("mods")) {
+            JsonObject record = element.getAsJsonObject();
+            if(record.get("path").getAsString().equals(pak.getAbsolutePath()) && record.has("md5")) return record.get("md5").getAsString();
+        }
+        return "";
+    }
 
-                            mods.set(element);
-                        }
-                        if(attr.getValue().equalsIgnoreCase("modorder")) {
+    // V3 info.json records the MD5 of the mod's pak, a mismatch means the archive was repacked or is damaged
+    private static void checkMd5(JsonObject contents, List<MetaInfo> bg3Mods) {
 
-                            modOrder.set(element);
-                        }
-                    }
-                });
-            });
-            Element modChildren = (Element)mods.get().selectSingleNode("children");
-            mod.toModuleShortDesc(modChildren);
-            Element modOrderChildren = (Element)modOrder.get().selectSingleNode("children");
-            if(modOrderChildren == null) {
+        if(!contents.has("MD5") || contents.get("MD5").getAsString().isEmpty()) return;
+        String expected = contents.get("MD5").getAsString();
+        for(MetaInfo bg3Mod : bg3Mods) {
+
+            if(!bg3Mod.getMd5().isEmpty() && !bg3Mod.getMd5().equalsIgnoreCase(expected)) {
 
-                modOrderChildren = modOrder.get().addElement("children");
+                Logger.info(String.format("%s has MD5 %s, but its info.json expects %s", bg3Mod.getName(), bg3Mod.getMd5(), expected));
             }
-            mod.toModOrder(modOrderChildren);
+        }
+    }
 
-            writeXMLToFile(doc);
-        } catch (DocumentException | IOException e) {
+    /**
+     * Applies the batch to every player profile.
+     * Only the first profile, which mods are installed for, decides whether it worked, the others which could not be written are reported.
+     * @return true if the first profile's modsettings.lsx was written
+     */
+    private static boolean apply(ModSettingsBatch batch) {
 
-            e.printStackTrace();
-            try {
+        Map<File, Boolean> written = batch.applyEach();
+        List<String> failed = new ArrayList<>();
+        written.forEach((profile, ok) -> {
 
-                FileUtils.copyFile(new File(BG3Settings.playerProfile, "modsettings.backup.lsx"), modsetings);
-            } catch (IOException ioException) {
+            if(!ok && !profile.equals(batch.getPlayerProfiles().get(0))) failed.add(profile.getName());
+        });
+        if(!failed.isEmpty()) {
 
-                ioException.printStackTrace();
-            }
+            NativeDialogs.showErrorMessage(String.format("The modsettings.lsx of these player profiles could not be updated, see the log for details:\n- %s", String.join("\n- ", failed)));
         }
+        return written.get(batch.getPlayerProfiles().get(0));
     }
 
-    private SAXReader getSaxReader() {
+    // The install itself has worked, without a manifest it is uninstalled from the archive instead
+    private static void saveManifest(InstallManifest manifest) {
 
-        SAXReader reader = SAXReader.createDefault();
         try {
 
-            reader.setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", true);
-            reader.setFeature("http://xml.org/sax/features/external-general-entities", true);
-            reader.setFeature("http://xml.org/sax/features/external-parameter-entities", true);
-        } catch (SAXException e) {
+            manifest.save();
+        } catch (IOException e) {
 
             e.printStackTrace();
         }
-        reader.setEncoding(StandardCharsets.UTF_8.name());
-        return reader;
     }
 
-    private void writeXMLToFile(Document document) throws IOException {
+    // Reads the file tables of the mod's paks, and reports which installed mods it overrides
+    private static void indexConflicts(InstallManifest manifest) {
+
+        ConflictIndex.report(manifest.getId(), ConflictIndex.get().add(manifest.getId(), ConflictIndex.readDeployedPaths(manifest)));
+    }
+
+    private JsonObject readInfo(ModArchive archive) throws IOException {
+
+        JsonObject contents = archive.readJson("info.json");
+        if(contents == null) {
+
+            throw new FileNotFoundException(String.format("info.json not found in %s", archive.getFile().getName()));
+        }
+        return contents;
+    }
+
+    /**
+     * Reads every mod described by an info.json
+     * - V1 for mods which use the incorrect mods.json - Support for a while
+     * - V2 for mods which use the "mods" array
+     * - V3 for mods which use the "Mods" array with an MD5
+     */
+    private List<MetaInfo> readMetaInfos(JsonObject contents) {
 
-        File modsettings = new File(BG3Settings.playerProfile, "modsettings.lsx");
-        if(!modsettings.canWrite()) modsettings.setWritable(true);
-        OutputStreamWriter writer = new OutputStreamWriter(new FileOutputStream(modsettings), StandardCharsets.UTF_8);
+        List<MetaInfo> ret = new ArrayList<>();
+        JsonArray modsArray = JsonUtil.getArray(contents, "mods");
+        if(modsArray == null) {
 
-        OutputFormat format = OutputFormat.createPrettyPrint();
-        format.setEncoding("UTF-8");
-        XMLWriter xmlWriter = new XMLWriter(writer, format);
+            // Try to get mods array from uppercase too
+            modsArray = JsonUtil.getArray(contents, "Mods");
+        }
+
+        if(modsArray != null) {
+
+            MetaInfo.MetaType metaType = contents.has("MD5") ? MetaInfo.MetaType.V3 : MetaInfo.MetaType.V2;
+            modsArray.forEach(jsonElement -> {
+
+                MetaInfo bg3Mod = new MetaInfo(metaType).fromJson(jsonElement.getAsJsonObject());
+                // fromJson has already told the user if the mod was formatted incorrectly
+                if(bg3Mod != null) ret.add(bg3Mod);
+            });
+        } else {
+
+            MetaInfo bg3Mod = new MetaInfo(MetaInfo.MetaType.V1).fromJson(contents);
+            if(bg3Mod != null) ret.add(bg3Mod);
+        }
+        return ret;
+    }
 
-        document.normalize();
-        xmlWriter.write(document);
-        xmlWriter.flush();
+    // info.json does not list dependencies, the meta.lsx in the pak does
+    private static void readDependencies(MetaInfo bg3Mod, File pak) {
 
-        xmlWriter.close();
+        if(!bg3Mod.getDependencies().isEmpty() || !pak.isFile()) return;
+        MetaInfo meta = LSPKReader.readMetaInfo(pak);
+        if(meta != null && meta.getUuid().equalsIgnoreCase(bg3Mod.getUuid())) bg3Mod.setDependencies(meta.getDependencies());
     }
 }
@@ -0,0 +1,89 @@
+package uk.co.innoxium.baldursgate.bg3m.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.Collection;
+import java.util.HashSet;
+
+/**
+ * Replaces files without ever exposing a partially written file.
+ * - the new contents are written to a temp file next to the target, so they are on the same volume
+ * - the temp file is flushed to disk
+ * - then renamed over the target in a single step
+ */
+public class AtomicFile {
+
+    /**
+     * @return a new, empty temp file in the same directory as the target
+     */
+    public static File createTemp(File target) throws IOException {
+
+        return Files.createTempFile(target.getAbsoluteFile().getParentFile().toPath(), target.getName() + ".", ".tmp").toFile();
+    }
+
+    /**
+     * Flushes the temp file to disk and renames it over the target
+     * @param temp - The fully written replacement, from {@link #createTemp(File)}
+     * @param target - The file to replace
+     * @throws IOException if the temp file could not be synced or moved, the target is left as it was
+     */
+    public static void replace(File temp, File target) throws IOException {
+
+        sync(temp.toPath());
+        if(target.exists() && !target.canWrite()) target.setWritable(true);
+        rename(temp.toPath(), target.toPath());
+    }
+
+    /**
+     * Renames the temp file over the target without syncing its contents, for links whose data is already on disk
+     * @param temp - The replacement, next to the target
+     * @param target - The file to replace
+     */
+    public static void rename(Path temp, Path target) throws IOException {
+
+        move(temp, target);
+        syncDirectory(target.toAbsolutePath().getParent());
+    }
+
+    /**
+     * Renames the temp file over the target, without making the rename itself durable.
+     * For placing many files at once, followed by {@link #syncDirectories(Collection)} on their directories.
+     */
+    public static void move(Path temp, Path target) throws IOException {
+
+        try {
+
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Makes every rename into the directories durable, each directory is synced once
+     */
+    public static void syncDirectories(Collection<Path> directories) {
+
+        new HashSet<>(directories).forEach(AtomicFile::syncDirectory);
+    }
+
+    public static void sync(Path file) throws IOException {
+
+        try(FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+
+            channel.force(true);
+        }
+    }
+
+    // Makes the rename itself durable, not every platform allows a directory to be opened
+    private static void syncDirectory(Path directory) {
+
+        try(FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+
+            channel.force(true);
+        } catch (IOException ignored) {}
+    }
+}
@@ -0,0 +1,109 @@
+package uk.co.innoxium.baldursgate.bg3m.io;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs file copies on a few threads, only as many as the disk can usefully keep in flight.
+ * - submit blocks once the queue is full, so a fast producer never gets far ahead of the disk
+ * - once a copy fails, copies which have not started are skipped, and the failure is thrown by {@link #await()}
+ */
+public class ParallelCopier implements Closeable {
+
+    private static final AtomicInteger count = new AtomicInteger();
+
+    private final ExecutorService executor;
+    private final Semaphore queue;
+    private final int capacity;
+    private final AtomicReference<IOException> failure = new AtomicReference<>();
+
+    /**
+     * @param depth - How many copies run at once, twice as many may be queued
+     */
+    public ParallelCopier(int depth) {
+
+        int threads = Math.max(1, depth);
+        this.capacity = threads * 2;
+        this.queue = new Semaphore(capacity);
+        this.executor = Executors.newFixedThreadPool(threads, runnable -> {
+
+            Thread thread = new Thread(runnable, "bg3-copy-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Queues a copy, waiting for room in the queue first
+     * @throws IOException if an earlier copy has failed
+     */
+    public void submit(Copy copy) throws IOException {
+
+        throwFailure();
+        try {
+
+            queue.acquire();
+        } catch (InterruptedException e) {
+
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to copy");
+        }
+        executor.execute(() -> {
+
+            try {
+
+                if(failure.get() == null) copy.run();
+            } catch (IOException e) {
+
+                failure.compareAndSet(null, e);
+            } catch (RuntimeException e) {
+
+                failure.compareAndSet(null, new IOException(e));
+            } finally {
+
+                queue.release();
+            }
+        });
+    }
+
+    /**
+     * Waits for every queued copy to finish
+     * @throws IOException the first failure, if any copy failed
+     */
+    public void await() throws IOException {
+
+        try {
+
+            queue.acquire(capacity);
+            queue.release(capacity);
+        } catch (InterruptedException e) {
+
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for copies to finish");
+        }
+        throwFailure();
+    }
+
+    @Override
+    public void close() {
+
+        executor.shutdown();
+    }
+
+    private void throwFailure() throws IOException {
+
+        IOException e = failure.get();
+        if(e != null) throw e;
+    }
+
+    public interface Copy {
+
+        void run() throws IOException;
+    }
+}
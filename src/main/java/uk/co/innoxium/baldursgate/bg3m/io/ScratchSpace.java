@@ -0,0 +1,184 @@
+package uk.co.innoxium.baldursgate.bg3m.io;
+
+import org.apache.commons.io.FileUtils;
+import uk.co.innoxium.baldursgate.BG3Settings;
+import uk.co.innoxium.candor.util.Logger;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Manages the temp directories used while installing and uninstalling mods.
+ * - every directory belongs to a {@link Scope}, which deletes it when closed
+ * - directories live under <scratch>/candor-bg3/<pid>, so ones left by a crashed session can be found
+ * - {@link #sweep()} removes the directories of sessions which are no longer running
+ * - opening a scope fails if the scratch space is over its size limit
+ * - a few emptied directories are kept in a pool and reused
+ *
+ * The scratch directory, its limit and the pool size are set in {@link BG3Settings}.
+ */
+public class ScratchSpace {
+
+    // Directories made by Files.createTempDirectory in versions before the scratch space
+    private static final Pattern LEGACY = Pattern.compile("(bg3|modLoose)\\d+");
+    private static final long LEGACY_AGE = TimeUnit.DAYS.toMillis(1);
+    private static final long PID = ProcessHandle.current().pid();
+
+    private static final Deque<File> idle = new ArrayDeque<>();
+    private static int pooled = 0;
+    private static boolean hooked = false;
+
+    /**
+     * @return the directory all sessions keep their scratch directories in
+     */
+    public static File getRoot() {
+
+        String base = BG3Settings.scratchDirectory.isEmpty() ? System.getProperty("java.io.tmpdir") : BG3Settings.scratchDirectory;
+        return new File(base, "candor-bg3");
+    }
+
+    /**
+     * Creates, or reuses from the pool, an empty directory for a single operation
+     * @param prefix - Names the directory, to make it easier to tell what left it behind
+     * @throws IOException if the directory could not be created, or the scratch space is full
+     */
+    public static synchronized Scope open(String prefix) throws IOException {
+
+        File session = new File(getRoot(), Long.toString(PID));
+        FileUtils.forceMkdir(session);
+        if(!hooked) {
+
+            // Anything still open when Candor closes is removed with the session
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> FileUtils.deleteQuietly(session)));
+            hooked = true;
+        }
+        checkLimit();
+
+        File directory = idle.poll();
+        if(directory != null) return new Scope(directory, true);
+        if(pooled < BG3Settings.scratchPool) {
+
+            directory = new File(session, "pool-" + pooled++);
+            FileUtils.forceMkdir(directory);
+            return new Scope(directory, true);
+        }
+        return new Scope(Files.createTempDirectory(session.toPath(), prefix).toFile(), false);
+    }
+
+    /**
+     * Removes scratch directories left behind by sessions which are no longer running,
+     * and temp directories left in the system temp directory by older versions
+     * @return the number of bytes freed
+     */
+    public static synchronized long sweep() {
+
+        long freed = 0;
+        File[] sessions = getRoot().listFiles(File::isDirectory);
+        if(sessions != null) {
+
+            for(File session : sessions) {
+
+                if(isRunning(session.getName())) continue;
+                freed += delete(session);
+            }
+        }
+
+        long cutoff = System.currentTimeMillis() - LEGACY_AGE;
+        File[] legacy = new File(System.getProperty("java.io.tmpdir")).listFiles(file -> file.isDirectory() && LEGACY.matcher(file.getName()).matches() && file.lastModified() < cutoff);
+        if(legacy != null) {
+
+            for(File directory : legacy) {
+
+                freed += delete(directory);
+            }
+        }
+        if(freed > 0) Logger.info(String.format("Removed %s of scratch files left by earlier sessions", FileUtils.byteCountToDisplaySize(freed)));
+        return freed;
+    }
+
+    private static void checkLimit() throws IOException {
+
+        long limit = BG3Settings.scratchLimit * FileUtils.ONE_MB;
+        if(limit <= 0) return;
+
+        File root = getRoot();
+        if(FileUtils.sizeOfDirectory(root) <= limit) return;
+        sweep();
+        if(FileUtils.sizeOfDirectory(root) > limit) {
+
+            throw new IOException(String.format("The scratch space in %s is over its limit of %d MB, finish or cancel other installs first", root, BG3Settings.scratchLimit));
+        }
+    }
+
+    private static synchronized void release(File directory, boolean pool) {
+
+        if(pool) {
+
+            try {
+
+                FileUtils.cleanDirectory(directory);
+                idle.push(directory);
+                return;
+            } catch (IOException | IllegalArgumentException e) {
+
+                // Something is still holding a file open, do not hand it out again
+                e.printStackTrace();
+            }
+        }
+        FileUtils.deleteQuietly(directory);
+    }
+
+    private static boolean isRunning(String pid) {
+
+        try {
+
+            long id = Long.parseLong(pid);
+            return id == PID || ProcessHandle.of(id).map(ProcessHandle::isAlive).orElse(false);
+        } catch (NumberFormatException e) {
+
+            // Not a session directory
+            return true;
+        }
+    }
+
+    private static long delete(File directory) {
+
+        long size = FileUtils.sizeOfDirectory(directory);
+        return FileUtils.deleteQuietly(directory) ? size : 0;
+    }
+
+    /**
+     * A scratch directory for a single operation, emptied and released when closed
+     */
+    public static class Scope implements Closeable {
+
+        private final File directory;
+        private final boolean pool;
+        private boolean closed = false;
+
+        private Scope(File directory, boolean pool) {
+
+            this.directory = directory;
+            this.pool = pool;
+        }
+
+        public File getDirectory() {
+
+            return directory;
+        }
+
+        @Override
+        public void close() {
+
+            if(closed) return;
+            closed = true;
+            release(directory, pool);
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package uk.co.innoxium.baldursgate.bg3m.lsx;
+
+import uk.co.innoxium.baldursgate.bg3m.merge.FileMerger;
+import uk.co.innoxium.baldursgate.bg3m.pak.LSFReader;
+import uk.co.innoxium.baldursgate.bg3m.pak.LSFWriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Merges versions of a binary LSF file by the same rules as the {@link LSXMerger}, without converting them to LSX.
+ * LSF is compact and quick to read, so each version is read whole rather than streamed.
+ */
+public class LSFMerger implements FileMerger {
+
+    @Override
+    public void merge(File base, List<File> layers, File destination) throws IOException {
+
+        if(base == null) {
+
+            base = layers.get(0);
+            layers = layers.subList(1, layers.size());
+        }
+
+        LSXDocument original = LSFReader.read(base);
+        LSXDocument merged = LSFReader.read(base);
+        for(File file : layers) {
+
+            for(Map.Entry<String, LSXNode> region : LSFReader.read(file).getRegions().entrySet()) {
+
+                LSXNode target = merged.getRegion(region.getKey());
+                if(target == null) merged.addRegion(region.getKey(), region.getValue());
+                else LSXMerger.apply(target, original.getRegion(region.getKey()), region.getValue());
+            }
+        }
+        LSFWriter.write(merged, destination);
+    }
+}
@@ -0,0 +1,71 @@
+package uk.co.innoxium.baldursgate.bg3m.lsx;
+
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * A single {@code <attribute id="" type="" value=""/>} of an LSX node.
+ * Some types have other parts instead of a value, such as the handle and version of a TranslatedString,
+ * these are kept in order as they were read.
+ */
+public class LSXAttribute {
+
+    private final String id;
+    private final String type;
+    private final String value;
+    private final Map<String, String> extra;
+
+    public LSXAttribute(String id, String type, String value) {
+
+        this(id, type, value, Map.of());
+    }
+
+    public LSXAttribute(String id, String type, String value, Map<String, String> extra) {
+
+        this.id = id;
+        this.type = type;
+        this.value = value;
+        this.extra = extra;
+    }
+
+    public String getId() {
+
+        return id;
+    }
+
+    public String getType() {
+
+        return type;
+    }
+
+    /**
+     * @return the value, or null if the attribute has none, such as a TranslatedString
+     */
+    public String getValue() {
+
+        return value;
+    }
+
+    /**
+     * @return every part of the tag other than id, type and value
+     */
+    public Map<String, String> getExtra() {
+
+        return extra;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+
+        if(this == o) return true;
+        if(!(o instanceof LSXAttribute)) return false;
+        LSXAttribute other = (LSXAttribute)o;
+        return id.equals(other.id) && Objects.equals(type, other.type) && Objects.equals(value, other.value) && extra.equals(other.extra);
+    }
+
+    @Override
+    public int hashCode() {
+
+        return Objects.hash(id, type, value, extra);
+    }
+}
@@ -0,0 +1,188 @@
+package uk.co.innoxium.baldursgate.bg3m.lsx;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * The whole of an LSX file in memory, its version and the root node of each region.
+ * The same model is read from and written to binary LSF files, see {@link uk.co.innoxium.baldursgate.bg3m.pak.LSFReader}.
+ *
+ * Use the {@link LSXRewriter} to change a file in place instead, this is for files which are read or built in full.
+ */
+public class LSXDocument {
+
+    // The parts of the version tag, major, minor, revision and build
+    private final Map<String, String> version = new LinkedHashMap<>();
+    private final Map<String, LSXNode> regions = new LinkedHashMap<>();
+
+    public LSXDocument(int major, int minor, int revision, int build) {
+
+        version.put("major", String.valueOf(major));
+        version.put("minor", String.valueOf(minor));
+        version.put("revision", String.valueOf(revision));
+        version.put("build", String.valueOf(build));
+    }
+
+    private LSXDocument() {
+
+    }
+
+    public Map<String, String> getVersion() {
+
+        return version;
+    }
+
+    /**
+     * @return a part of the version, such as major, or 0 if it is missing or not a number
+     */
+    public int getVersion(String part) {
+
+        try {
+
+            return Integer.parseInt(version.getOrDefault(part, "0"));
+        } catch (NumberFormatException e) {
+
+            return 0;
+        }
+    }
+
+    /**
+     * @return the root node of each region, by region id
+     */
+    public Map<String, LSXNode> getRegions() {
+
+        return regions;
+    }
+
+    public LSXNode getRegion(String id) {
+
+        return regions.get(id);
+    }
+
+    /**
+     * Adds the region, replacing any with the same id
+     */
+    public LSXDocument addRegion(String id, LSXNode root) {
+
+        regions.put(id, root);
+        return this;
+    }
+
+    public static LSXDocument read(File file) throws IOException {
+
+        try(Reader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+
+            return read(reader);
+        }
+    }
+
+    /**
+     * @throws IOException if the reader fails, or the file is malformed
+     */
+    public static LSXDocument read(Reader reader) throws IOException {
+
+        LSXDocument ret = new LSXDocument();
+        LSXScanner scanner = new LSXScanner(reader);
+        Deque<LSXNode> nodes = new ArrayDeque<>();
+        String region = null;
+        LSXScanner.Token token;
+        while((token = scanner.next()) != LSXScanner.Token.EOF) {
+
+            if(token == LSXScanner.Token.TEXT) continue;
+            String name = scanner.name();
+            if(token == LSXScanner.Token.END) {
+
+                if(name.equals("node")) {
+
+                    if(nodes.isEmpty()) throw new IOException("Malformed LSX, unexpected </node>");
+                    nodes.pop();
+                } else if(name.equals("region")) {
+
+                    region = null;
+                }
+                continue;
+            }
+
+            switch(name) {
+
+                case "version" -> ret.version.putAll(scanner.attributes());
+                case "region" -> region = scanner.attribute("id");
+                case "node" -> {
+
+                    LSXNode node = new LSXNode(scanner.attribute("id"));
+                    scanner.attributes().forEach((part, value) -> {
+
+                        if(!part.equals("id")) node.setTagAttribute(part, value);
+                    });
+                    if(!nodes.isEmpty()) {
+
+                        nodes.peek().addChild(node);
+                    } else {
+
+                        if(region == null) throw new IOException(String.format("Malformed LSX, node %s is outside of a region", node.getId()));
+                        ret.regions.put(region, node);
+                    }
+                    if(token == LSXScanner.Token.START) nodes.push(node);
+                }
+                case "attribute" -> {
+
+                    if(nodes.isEmpty()) throw new IOException("Malformed LSX, attribute outside of a node");
+                    Map<String, String> extra = new LinkedHashMap<>(scanner.attributes());
+                    extra.remove("id");
+                    extra.remove("type");
+                    extra.remove("value");
+                    nodes.peek().addAttribute(new LSXAttribute(scanner.attribute("id"), scanner.attribute("type"), scanner.attribute("value"), extra.isEmpty() ? Map.of() : extra));
+                }
+                default -> {
+
+                    // save, children, and anything else only structures the file
+                }
+            }
+        }
+        return ret;
+    }
+
+    public void write(File file) throws IOException {
+
+        try(Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8))) {
+
+            write(writer);
+        }
+    }
+
+    /**
+     * Writes the file the way the game and LSLib lay it out, with tabs and \r\n line breaks
+     */
+    public void write(Writer out) throws IOException {
+
+        String newLine = "\r\n";
+        out.write("<?xml version=\"1.0\" encoding=\"utf-8\"?>");
+        out.write(newLine);
+        out.write("<save>");
+        out.write(newLine);
+        out.write("\t<version");
+        for(Map.Entry<String, String> part : version.entrySet()) {
+
+            out.write(" ");
+            out.write(part.getKey());
+            out.write("=\"");
+            out.write(LSXNode.escape(part.getValue()));
+            out.write("\"");
+        }
+        out.write(" />");
+        for(Map.Entry<String, LSXNode> region : regions.entrySet()) {
+
+            out.write(newLine);
+            out.write("\t<region id=\"");
+            out.write(LSXNode.escape(region.getKey()));
+            out.write("\">");
+            region.getValue().write(out, newLine, "\t\t", "\t");
+            out.write(newLine);
+            out.write("\t</region>");
+        }
+        out.write(newLine);
+        out.write("</save>");
+        out.write(newLine);
+    }
+}
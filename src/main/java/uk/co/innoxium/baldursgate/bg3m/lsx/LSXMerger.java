@@ -0,0 +1,534 @@
+package uk.co.innoxium.baldursgate.bg3m.lsx;
+
+import uk.co.innoxium.baldursgate.bg3m.merge.FileMerger;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Merges versions of an LSX file node by node. Every file is streamed, so only the entries
+ * a mod changed are ever held in memory, however large the file.
+ * - the entries of a file are the nodes directly under the root node of each region, such as each template of a RootTemplates file
+ * - a node is known among its siblings by its id and the value of its key attribute, named by the key of its parent,
+ * or else the first of MapKey, UUID, ID, Name and Key it has, or else by its position
+ * - the first pass hashes every entry of the base
+ * - the second keeps each entry a layer added, or changed from the base
+ * - the third streams the base to the destination, unchanged entries written exactly as they were read,
+ * changed ones merged, and added ones appended to their region
+ *
+ * Within an entry, the attributes and child nodes each layer changed from the base are applied in order,
+ * so the later layer wins where two change the same attribute. A node a layer leaves out is kept,
+ * as mods often ship only the nodes they change.
+ */
+public class LSXMerger implements FileMerger {
+
+    private static final List<String> KEY_ATTRIBUTES = List.of("MapKey", "UUID", "ID", "Name", "Key");
+
+    @Override
+    public void merge(File base, List<File> layers, File destination) throws IOException {
+
+        if(base == null) {
+
+            // Added by the mods, what the others changed is from the first one's version
+            base = layers.get(0);
+            layers = layers.subList(1, layers.size());
+        }
+
+        Map<String, String> hashes = new HashMap<>();
+        read(base, (region, key, entry) -> hashes.put(region + "/" + key, hash(entry)));
+
+        // The versions of each changed entry, lowest priority first
+        Map<String, List<LSXNode>> changed = new HashMap<>();
+        // The versions of each added entry by region, in the order they were first seen
+        Map<String, Map<String, List<LSXNode>>> added = new LinkedHashMap<>();
+        Map<String, String> roots = new LinkedHashMap<>();
+        for(File layer : layers) {
+
+            Pass pass = read(layer, (region, key, entry) -> {
+
+                String hash = hashes.get(region + "/" + key);
+                if(hash == null) {
+
+                    added.computeIfAbsent(region, r -> new LinkedHashMap<>()).computeIfAbsent(key, k -> new ArrayList<>()).add(entry);
+                } else if(!hash.equals(hash(entry))) {
+
+                    changed.computeIfAbsent(region + "/" + key, k -> new ArrayList<>()).add(entry);
+                }
+            });
+            pass.roots.forEach(roots::putIfAbsent);
+        }
+
+        try(Reader in = new BufferedReader(new InputStreamReader(new FileInputStream(base), StandardCharsets.UTF_8));
+            Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(destination), StandardCharsets.UTF_8))) {
+
+            new Pass(new LSXScanner(in), out, new Handler() {
+
+                @Override
+                public LSXNode replace(String region, String key, LSXNode entry) {
+
+                    List<LSXNode> versions = changed.get(region + "/" + key);
+                    if(versions == null) return null;
+                    LSXNode ret = entry.copy();
+                    versions.forEach(version -> apply(ret, entry, version));
+                    return ret;
+                }
+
+                @Override
+                public List<LSXNode> append(String region) {
+
+                    Map<String, List<LSXNode>> entries = added.get(region);
+                    if(entries == null) return List.of();
+                    List<LSXNode> ret = new ArrayList<>();
+                    entries.values().forEach(versions -> {
+
+                        // Each layer which added it changes it from the first one's version
+                        LSXNode merged = versions.get(0).copy();
+                        versions.subList(1, versions.size()).forEach(version -> apply(merged, null, version));
+                        ret.add(merged);
+                    });
+                    return ret;
+                }
+
+                @Override
+                public Map<String, String> getRegions() {
+
+                    Map<String, String> ret = new LinkedHashMap<>();
+                    added.keySet().forEach(region -> ret.put(region, roots.getOrDefault(region, region)));
+                    return ret;
+                }
+            }).run();
+        }
+    }
+
+    // Applies what the layer changed from the base to the merged node
+    static void apply(LSXNode merged, LSXNode base, LSXNode layer) {
+
+        for(LSXAttribute attribute : layer.getAttributes()) {
+
+            LSXAttribute original = base != null ? base.getAttribute(attribute.getId()) : null;
+            if(original == null || !original.equals(attribute)) merged.addAttribute(attribute);
+        }
+        layer.getTagAttributes().forEach((name, value) -> {
+
+            if(base == null || !value.equals(base.getTagAttribute(name))) merged.setTagAttribute(name, value);
+        });
+
+        Map<String, LSXNode> baseChildren = base != null ? keyChildren(base) : Map.of();
+        Map<String, LSXNode> mergedChildren = keyChildren(merged);
+        keyChildren(layer).forEach((key, child) -> {
+
+            LSXNode target = mergedChildren.get(key);
+            if(target == null) merged.addChild(child.copy());
+            else apply(target, baseChildren.get(key), child);
+        });
+    }
+
+    private static Map<String, LSXNode> keyChildren(LSXNode node) {
+
+        Map<String, LSXNode> ret = new LinkedHashMap<>();
+        Map<String, Integer> seen = new HashMap<>();
+        for(LSXNode child : node.getChildren()) {
+
+            ret.put(key(child, node.getTagAttribute("key"), seen), child);
+        }
+        return ret;
+    }
+
+    // Unique among the node's siblings, as long as seen is shared between them
+    private static String key(LSXNode node, String keyAttribute, Map<String, Integer> seen) {
+
+        String value = keyAttribute != null ? node.getAttributeValue(keyAttribute) : null;
+        for(int i = 0; value == null && i < KEY_ATTRIBUTES.size(); i++) {
+
+            value = node.getAttributeValue(KEY_ATTRIBUTES.get(i));
+        }
+        String ret = value != null ? node.getId() + "[" + value + "]" : node.getId();
+        int count = seen.merge(ret, 1, Integer::sum);
+        return count > 1 ? ret + "#" + count : ret;
+    }
+
+    // Ignores how the node is laid out, only what it holds
+    private static String hash(LSXNode node) {
+
+        try {
+
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            hash(digest, node);
+            return new String(digest.digest(), StandardCharsets.ISO_8859_1);
+        } catch (NoSuchAlgorithmException e) {
+
+            // Every JVM is required to have MD5
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void hash(MessageDigest digest, LSXNode node) {
+
+        update(digest, node.getId());
+        node.getTagAttributes().forEach((name, value) -> update(digest, name + "=" + value));
+        for(LSXAttribute attribute : node.getAttributes()) {
+
+            update(digest, attribute.getId());
+            update(digest, attribute.getType());
+            update(digest, attribute.getValue());
+            attribute.getExtra().forEach((name, value) -> update(digest, name + "=" + value));
+        }
+        digest.update((byte)'{');
+        node.getChildren().forEach(child -> hash(digest, child));
+        digest.update((byte)'}');
+    }
+
+    private static void update(MessageDigest digest, String value) {
+
+        if(value != null) digest.update(value.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte)0);
+    }
+
+    private Pass read(File file, Visitor visitor) throws IOException {
+
+        try(Reader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+
+            Pass ret = new Pass(new LSXScanner(in), Writer.nullWriter(), new Handler() {
+
+                @Override
+                public LSXNode replace(String region, String key, LSXNode entry) {
+
+                    visitor.visit(region, key, entry);
+                    return null;
+                }
+
+                @Override
+                public List<LSXNode> append(String region) {
+
+                    return List.of();
+                }
+
+                @Override
+                public Map<String, String> getRegions() {
+
+                    return Map.of();
+                }
+            });
+            ret.run();
+            return ret;
+        }
+    }
+
+    private interface Visitor {
+
+        void visit(String region, String key, LSXNode entry);
+    }
+
+    private interface Handler {
+
+        /**
+         * @return the node to write in place of the entry, or null to write it as it was read
+         */
+        LSXNode replace(String region, String key, LSXNode entry);
+
+        /**
+         * @return the nodes to add to the end of the region
+         */
+        List<LSXNode> append(String region);
+
+        /**
+         * @return every region with nodes to add, with the id of its root node, for those the file does not have
+         */
+        Map<String, String> getRegions();
+    }
+
+    /**
+     * The state of a single pass over a file, laid out as save/region/node/children/node
+     */
+    private static class Pass {
+
+        private final LSXScanner scanner;
+        private final Writer out;
+        private final Handler handler;
+
+        private final List<String> path = new ArrayList<>();
+        // The id of the root node of each region seen
+        private final Map<String, String> roots = new LinkedHashMap<>();
+        private final Map<String, Integer> seen = new HashMap<>();
+        private final Deque<LSXNode> nodes = new ArrayDeque<>();
+        // Text read since the last tag, held back so it can be replaced along with the entry that follows it
+        private final StringBuilder pendingText = new StringBuilder();
+
+        private String newLine = "\n";
+        private String indentUnit = "\t";
+
+        private String region;
+        // The key attribute of the region's root node, which names the attribute its entries are matched by
+        private String rootKey;
+        private String rootIndent;
+        private boolean inChildren;
+        private boolean sawChildren;
+        private String entryIndent;
+        private StringBuilder entry;
+
+        private Pass(LSXScanner scanner, Writer out, Handler handler) {
+
+            this.scanner = scanner;
+            this.out = out;
+            this.handler = handler;
+        }
+
+        private void run() throws IOException {
+
+            LSXScanner.Token token;
+            while((token = scanner.next()) != LSXScanner.Token.EOF) {
+
+                switch(token) {
+
+                    case TEXT -> pendingText.append(scanner.raw());
+                    case START -> {
+
+                        path.add(scanner.name());
+                        startElement(false);
+                    }
+                    case EMPTY -> {
+
+                        path.add(scanner.name());
+                        startElement(true);
+                        path.remove(path.size() - 1);
+                    }
+                    case END -> {
+
+                        if(path.isEmpty() || !path.get(path.size() - 1).equals(scanner.name())) {
+
+                            throw new IOException(String.format("Malformed LSX, unexpected </%s>", scanner.name()));
+                        }
+                        endElement();
+                        path.remove(path.size() - 1);
+                    }
+                }
+            }
+            flush();
+        }
+
+        private void startElement(boolean empty) throws IOException {
+
+            String name = scanner.name();
+            int depth = path.size();
+
+            if(entry != null) {
+
+                // Inside an entry, keep reading it into memory
+                entry.append(pendingText).append(scanner.raw());
+                pendingText.setLength(0);
+                readEntryElement(empty);
+                return;
+            }
+
+            if(depth == 2 && name.equals("region")) {
+
+                // The region is always one level deep, use it to learn how the file is laid out
+                if(pendingText.indexOf("\r\n") >= 0) newLine = "\r\n";
+                String indent = indentOf(pendingText);
+                if(!indent.isEmpty()) indentUnit = indent;
+                region = scanner.attribute("id");
+                rootKey = null;
+                seen.clear();
+            } else if(depth == 3 && name.equals("node") && region != null) {
+
+                roots.put(region, scanner.attribute("id"));
+                rootKey = scanner.attribute("key");
+                rootIndent = indentOf(pendingText);
+                sawChildren = false;
+                if(empty) {
+
+                    // <node id="root" /> has no children, it needs opening up before anything can be added
+                    flush();
+                    List<LSXNode> append = handler.append(region);
+                    String raw = scanner.raw();
+                    if(append.isEmpty()) {
+
+                        out.write(raw);
+                    } else {
+
+                        out.write(raw.substring(0, raw.lastIndexOf('/')).stripTrailing());
+                        out.write(">");
+                        writeChildren(append, rootIndent);
+                        out.write(newLine);
+                        out.write(rootIndent);
+                        out.write("</node>");
+                    }
+                    return;
+                }
+            } else if(depth == 4 && name.equals("children") && region != null) {
+
+                sawChildren = true;
+                if(empty) {
+
+                    flush();
+                    List<LSXNode> append = handler.append(region);
+                    if(append.isEmpty()) {
+
+                        out.write(scanner.raw());
+                    } else {
+
+                        out.write("<children>");
+                        writeNodes(append, rootIndent + indentUnit + indentUnit);
+                        out.write(newLine);
+                        out.write(rootIndent);
+                        out.write(indentUnit);
+                        out.write("</children>");
+                    }
+                    return;
+                }
+                inChildren = true;
+            } else if(depth == 5 && inChildren && name.equals("node")) {
+
+                // An entry, it is held in memory until it ends
+                entryIndent = indentOf(pendingText);
+                entry = new StringBuilder(pendingText).append(scanner.raw());
+                pendingText.setLength(0);
+                readEntryElement(empty);
+                if(empty) endEntry();
+                return;
+            }
+            flush();
+            out.write(scanner.raw());
+        }
+
+        private void endElement() throws IOException {
+
+            String name = scanner.name();
+            int depth = path.size();
+
+            if(entry != null) {
+
+                entry.append(pendingText).append(scanner.raw());
+                pendingText.setLength(0);
+                if(depth == 5) {
+
+                    endEntry();
+                } else if(name.equals("node")) {
+
+                    nodes.pop();
+                }
+                return;
+            }
+
+            if(depth == 4 && inChildren) {
+
+                // Added nodes go before the whitespace that lines up </children>
+                writeNodes(handler.append(region), entryIndent != null ? entryIndent : rootIndent + indentUnit + indentUnit);
+                inChildren = false;
+            } else if(depth == 3 && region != null && !sawChildren) {
+
+                List<LSXNode> append = handler.append(region);
+                if(!append.isEmpty()) writeChildren(append, rootIndent);
+            } else if(depth == 2) {
+
+                region = null;
+            } else if(depth == 1) {
+
+                // Regions only the layers have
+                for(Map.Entry<String, String> added : handler.getRegions().entrySet()) {
+
+                    if(roots.containsKey(added.getKey())) continue;
+                    List<LSXNode> append = handler.append(added.getKey());
+                    if(append.isEmpty()) continue;
+                    LSXNode root = new LSXNode(added.getValue());
+                    append.forEach(root::addChild);
+                    out.write(newLine);
+                    out.write(indentUnit);
+                    out.write("<region id=\"");
+                    out.write(LSXNode.escape(added.getKey()));
+                    out.write("\">");
+                    root.write(out, newLine, indentUnit + indentUnit, indentUnit);
+                    out.write(newLine);
+                    out.write(indentUnit);
+                    out.write("</region>");
+                }
+            }
+            flush();
+            out.write(scanner.raw());
+        }
+
+        private void readEntryElement(boolean empty) {
+
+            String name = scanner.name();
+            if(name.equals("node")) {
+
+                LSXNode node = new LSXNode(scanner.attribute("id"));
+                scanner.attributes().forEach((part, value) -> {
+
+                    if(!part.equals("id")) node.setTagAttribute(part, value);
+                });
+                if(!nodes.isEmpty()) nodes.peek().addChild(node);
+                nodes.push(node);
+                // An empty child node of the entry is finished straight away
+                if(empty && nodes.size() > 1) nodes.pop();
+            } else if(name.equals("attribute") && !nodes.isEmpty()) {
+
+                Map<String, String> extra = new LinkedHashMap<>(scanner.attributes());
+                extra.remove("id");
+                extra.remove("type");
+                extra.remove("value");
+                nodes.peek().addAttribute(new LSXAttribute(scanner.attribute("id"), scanner.attribute("type"), scanner.attribute("value"), extra.isEmpty() ? Map.of() : extra));
+            }
+        }
+
+        private void endEntry() throws IOException {
+
+            LSXNode node = nodes.getLast();
+            String chunk = entry.toString();
+            LSXNode replacement = handler.replace(region, key(node, rootKey, seen), node);
+            if(replacement == null) out.write(chunk);
+            else replacement.write(out, newLine, entryIndent, indentUnit);
+            nodes.clear();
+            entry = null;
+        }
+
+        private void writeChildren(List<LSXNode> children, String indent) throws IOException {
+
+            out.write(newLine);
+            out.write(indent);
+            out.write(indentUnit);
+            out.write("<children>");
+            writeNodes(children, indent + indentUnit + indentUnit);
+            out.write(newLine);
+            out.write(indent);
+            out.write(indentUnit);
+            out.write("</children>");
+        }
+
+        private void writeNodes(List<LSXNode> append, String indent) throws IOException {
+
+            for(LSXNode node : append) {
+
+                node.write(out, newLine, indent, indentUnit);
+            }
+        }
+
+        private void flush() throws IOException {
+
+            if(pendingText.length() > 0) {
+
+                out.append(pendingText);
+                pendingText.setLength(0);
+            }
+        }
+    }
+
+    // The whitespace after the last line break of some text, or nothing if the line has other content
+    private static String indentOf(CharSequence text) {
+
+        int lineStart = 0;
+        for(int i = text.length() - 1; i >= 0; i--) {
+
+            if(text.charAt(i) == '\n') {
+
+                lineStart = i + 1;
+                break;
+            }
+        }
+        String indent = text.subSequence(lineStart, text.length()).toString();
+        return indent.isBlank() ? indent : "";
+    }
+}
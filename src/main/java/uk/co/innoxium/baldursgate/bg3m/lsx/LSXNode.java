@@ -0,0 +1,260 @@
+package uk.co.innoxium.baldursgate.bg3m.lsx;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.Writer;
+import java.util.*;
+
+/**
+ * A {@code <node>} of an LSX file, with its attributes and child nodes.
+ * Nodes read by the {@link LSXRewriter} also keep their original text,
+ * so they can be written back untouched.
+ */
+public class LSXNode {
+
+    private final String id;
+    // Parts of the node tag other than its id, such as the key of its children
+    private final Map<String, String> tagAttributes = new LinkedHashMap<>();
+    private final Map<String, LSXAttribute> attributes = new LinkedHashMap<>();
+    private final List<LSXNode> children = new ArrayList<>();
+    private String raw;
+
+    public LSXNode(String id) {
+
+        this.id = id;
+    }
+
+    public String getId() {
+
+        return id;
+    }
+
+    public LSXNode addAttribute(String id, String type, String value) {
+
+        return addAttribute(new LSXAttribute(id, type, value));
+    }
+
+    /**
+     * Adds the attribute, or replaces the one with the same id in its place
+     */
+    public LSXNode addAttribute(LSXAttribute attribute) {
+
+        attributes.put(attribute.getId(), attribute);
+        return this;
+    }
+
+    public LSXNode setTagAttribute(String name, String value) {
+
+        tagAttributes.put(name, value);
+        return this;
+    }
+
+    /**
+     * @return a part of the node tag other than its id, such as key, or null if it does not have it
+     */
+    public String getTagAttribute(String name) {
+
+        return tagAttributes.get(name);
+    }
+
+    public Map<String, String> getTagAttributes() {
+
+        return tagAttributes;
+    }
+
+    public LSXAttribute getAttribute(String id) {
+
+        return attributes.get(id);
+    }
+
+    /**
+     * @return the value of the attribute, or null if the node does not have it
+     */
+    public String getAttributeValue(String id) {
+
+        LSXAttribute attribute = attributes.get(id);
+        return attribute != null ? attribute.getValue() : null;
+    }
+
+    public Collection<LSXAttribute> getAttributes() {
+
+        return attributes.values();
+    }
+
+    public LSXNode addChild(LSXNode child) {
+
+        children.add(child);
+        return this;
+    }
+
+    public List<LSXNode> getChildren() {
+
+        return children;
+    }
+
+    /**
+     * @return a deep copy of the node, without the text it was read from
+     */
+    public LSXNode copy() {
+
+        LSXNode ret = new LSXNode(id);
+        ret.tagAttributes.putAll(tagAttributes);
+        ret.attributes.putAll(attributes);
+        children.forEach(child -> ret.addChild(child.copy()));
+        return ret;
+    }
+
+    /**
+     * @return the text this node was read from, including leading whitespace, or null if it was built in code
+     */
+    public String getRaw() {
+
+        return raw;
+    }
+
+    void setRaw(String raw) {
+
+        this.raw = raw;
+    }
+
+    /**
+     * Reads a node from the text it was saved as, which it keeps so it is written back the same
+     * @param raw - The text of a single node, as from {@link #getRaw()}
+     * @throws IOException if the text is malformed, or is not a node
+     */
+    static LSXNode parse(String raw) throws IOException {
+
+        LSXScanner scanner = new LSXScanner(new StringReader(raw));
+        Deque<LSXNode> nodes = new ArrayDeque<>();
+        LSXNode ret = null;
+        LSXScanner.Token token;
+        while((token = scanner.next()) != LSXScanner.Token.EOF) {
+
+            if(token == LSXScanner.Token.TEXT) continue;
+            String name = scanner.name();
+            if(token == LSXScanner.Token.END) {
+
+                if(name.equals("node") && !nodes.isEmpty()) nodes.pop();
+            } else if(name.equals("node")) {
+
+                LSXNode node = new LSXNode(scanner.attribute("id"));
+                if(nodes.isEmpty()) {
+
+                    if(ret != null) throw new IOException("Malformed LSX, expected a single node");
+                    ret = node;
+                } else {
+
+                    nodes.peek().addChild(node);
+                }
+                if(token == LSXScanner.Token.START) nodes.push(node);
+            } else if(name.equals("attribute") && !nodes.isEmpty()) {
+
+                nodes.peek().addAttribute(scanner.attribute("id"), scanner.attribute("type"), scanner.attribute("value"));
+            }
+        }
+        if(ret == null) throw new IOException("Malformed LSX, expected a node");
+        ret.setRaw(raw);
+        return ret;
+    }
+
+    /**
+     * Writes the node, starting on a new line
+     * @param out - The writer to write to
+     * @param newLine - The line separator used by the file
+     * @param indent - The indentation of this node
+     * @param indentUnit - The indentation added for each level of children
+     */
+    public void write(Writer out, String newLine, String indent, String indentUnit) throws IOException {
+
+        out.write(newLine);
+        out.write(indent);
+        out.write("<node id=\"");
+        out.write(escape(id));
+        out.write("\"");
+        writeParts(out, tagAttributes);
+        if(attributes.isEmpty() && children.isEmpty()) {
+
+            out.write(" />");
+            return;
+        }
+        out.write(">");
+
+        String childIndent = indent + indentUnit;
+        for(LSXAttribute attribute : attributes.values()) {
+
+            out.write(newLine);
+            out.write(childIndent);
+            out.write("<attribute id=\"");
+            out.write(escape(attribute.getId()));
+            out.write("\" type=\"");
+            out.write(escape(attribute.getType()));
+            out.write("\"");
+            if(attribute.getValue() != null) {
+
+                out.write(" value=\"");
+                out.write(escape(attribute.getValue()));
+                out.write("\"");
+            }
+            writeParts(out, attribute.getExtra());
+            out.write(" />");
+        }
+        if(!children.isEmpty()) {
+
+            out.write(newLine);
+            out.write(childIndent);
+            out.write("<children>");
+            for(LSXNode child : children) {
+
+                child.write(out, newLine, childIndent + indentUnit, indentUnit);
+            }
+            out.write(newLine);
+            out.write(childIndent);
+            out.write("</children>");
+        }
+        out.write(newLine);
+        out.write(indent);
+        out.write("</node>");
+    }
+
+    private static void writeParts(Writer out, Map<String, String> parts) throws IOException {
+
+        for(Map.Entry<String, String> part : parts.entrySet()) {
+
+            out.write(" ");
+            out.write(part.getKey());
+            out.write("=\"");
+            out.write(escape(part.getValue()));
+            out.write("\"");
+        }
+    }
+
+    static String escape(String value) {
+
+        if(value == null) return "";
+
+        StringBuilder builder = null;
+        for(int i = 0; i < value.length(); i++) {
+
+            char c = value.charAt(i);
+            String replacement = switch(c) {
+
+                case '&' -> "&amp;";
+                case '<' -> "&lt;";
+                case '>' -> "&gt;";
+                case '"' -> "&quot;";
+                case '\'' -> "&apos;";
+                default -> null;
+            };
+            if(replacement != null && builder == null) {
+
+                builder = new StringBuilder(value.length() + 16).append(value, 0, i);
+            }
+            if(builder != null) {
+
+                if(replacement != null) builder.append(replacement);
+                else builder.append(c);
+            }
+        }
+        return builder != null ? builder.toString() : value;
+    }
+}
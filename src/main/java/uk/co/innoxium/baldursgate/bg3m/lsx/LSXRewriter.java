@@ -0,0 +1,419 @@
+package uk.co.innoxium.baldursgate.bg3m.lsx;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Streams an LSX file from source to destination in a single pass, only touching the
+ * direct children of the {@code save/region/node/children/node} nodes it was asked to edit,
+ * such as Mods and ModOrder in modsettings.lsx.
+ *
+ * Every token is written back with the exact text it was read with, so anything that
+ * is not being edited is untouched, and only one child node is held in memory at a time.
+ */
+public class LSXRewriter {
+
+    private static final List<String> TARGET_PATH = List.of("save", "region", "node", "children", "node");
+
+    private final Set<String> targets = new HashSet<>();
+
+    /**
+     * @param targets - The ids of the nodes whose children may be dropped or appended to
+     */
+    public LSXRewriter(String... targets) {
+
+        for(String target : targets) {
+
+            this.targets.add(target.toLowerCase(Locale.ROOT));
+        }
+    }
+
+    /**
+     * Rewrites source into destination
+     * @param source - The LSX file to read
+     * @param destination - The file to write, must not be the source
+     * @param editor - Decides which child nodes to keep, and which to append
+     * @throws IOException if either file cannot be accessed, the source is malformed, or a target node is missing
+     */
+    public void rewrite(File source, File destination, Editor editor) throws IOException {
+
+        try(Reader in = new BufferedReader(new InputStreamReader(new FileInputStream(source), StandardCharsets.UTF_8));
+            Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(destination), StandardCharsets.UTF_8))) {
+
+            checkFound(source, new Pass(new LSXScanner(in), out, editor).run());
+        }
+    }
+
+    /**
+     * Streams source without writing anything, for reading the children of the target nodes
+     * @param source - The LSX file to read
+     * @param editor - Visits each existing child node, its return values are ignored
+     * @throws IOException if the file cannot be accessed, is malformed, or a target node is missing
+     */
+    public void read(File source, Editor editor) throws IOException {
+
+        try(Reader in = new BufferedReader(new InputStreamReader(new FileInputStream(source), StandardCharsets.UTF_8))) {
+
+            checkFound(source, new Pass(new LSXScanner(in), Writer.nullWriter(), editor).run());
+        }
+    }
+
+    private void checkFound(File source, Set<String> found) throws IOException {
+
+        for(String target : targets) {
+
+            if(!found.contains(target)) {
+
+                throw new IOException(String.format("%s is missing the %s node", source.getName(), target));
+            }
+        }
+    }
+
+    public interface Editor {
+
+        /**
+         * @param parentId - The id of the edited node, such as Mods
+         * @param node - The existing child node
+         * @return true to keep the node, false to drop it
+         */
+        boolean keep(String parentId, LSXNode node);
+
+        /**
+         * Called once per edited node, after all existing children have been visited.
+         * Nodes which still have their original text are written back exactly as they were read.
+         * @param parentId - The id of the edited node, such as Mods
+         * @return the nodes to add to the end of its children
+         */
+        List<LSXNode> append(String parentId);
+    }
+
+    /**
+     * The state of a single rewrite
+     */
+    private class Pass {
+
+        private final LSXScanner scanner;
+        private final Writer out;
+        private final Editor editor;
+
+        private final List<String> path = new ArrayList<>();
+        private final Deque<LSXNode> nodes = new ArrayDeque<>();
+        private final Set<String> found = new HashSet<>();
+
+        // Text read since the last tag, held back so it can be dropped along with the node that follows it
+        private final StringBuilder pendingText = new StringBuilder();
+
+        private String newLine = "\n";
+        private String indentUnit = "\t";
+
+        // State of the target node currently being edited
+        private String target;
+        private int targetDepth;
+        private String targetIndent;
+        private boolean inChildren;
+        private boolean sawChildren;
+        private String childIndent;
+        private StringBuilder child;
+        private boolean opaqueChild;
+
+        private Pass(LSXScanner scanner, Writer out, Editor editor) {
+
+            this.scanner = scanner;
+            this.out = out;
+            this.editor = editor;
+        }
+
+        private Set<String> run() throws IOException {
+
+            LSXScanner.Token token;
+            while((token = scanner.next()) != LSXScanner.Token.EOF) {
+
+                switch(token) {
+
+                    case TEXT -> pendingText.append(scanner.raw());
+                    case START -> {
+
+                        path.add(scanner.name());
+                        startElement(false);
+                    }
+                    case EMPTY -> {
+
+                        path.add(scanner.name());
+                        startElement(true);
+                        path.remove(path.size() - 1);
+                    }
+                    case END -> {
+
+                        if(path.isEmpty() || !path.get(path.size() - 1).equals(scanner.name())) {
+
+                            throw new IOException(String.format("Malformed LSX, unexpected </%s>", scanner.name()));
+                        }
+                        endElement();
+                        path.remove(path.size() - 1);
+                    }
+                }
+            }
+            flush();
+            return found;
+        }
+
+        private void startElement(boolean empty) throws IOException {
+
+            String name = scanner.name();
+            int depth = path.size();
+
+            if(target == null) {
+
+                if(depth == 2 && name.equals("region")) {
+
+                    // The region is always one level deep, use it to learn how the file is laid out
+                    if(pendingText.indexOf("\r\n") >= 0) newLine = "\r\n";
+                    String indent = indentOf(pendingText);
+                    if(!indent.isEmpty()) indentUnit = indent;
+                } else if(depth == TARGET_PATH.size() && path.equals(TARGET_PATH) && isTarget(scanner.attribute("id"))) {
+
+                    startTarget(empty);
+                    return;
+                }
+                flush();
+                out.write(scanner.raw());
+                return;
+            }
+
+            if(child != null) {
+
+                // Inside a direct child, keep reading it into memory
+                child.append(pendingText).append(scanner.raw());
+                pendingText.setLength(0);
+                if(!opaqueChild) readChildElement(empty);
+                return;
+            }
+
+            if(!inChildren && depth == targetDepth + 1 && name.equals("children")) {
+
+                flush();
+                sawChildren = true;
+                if(empty) {
+
+                    // <children /> needs opening up before anything can be added
+                    List<LSXNode> append = editor.append(target);
+                    if(append.isEmpty()) {
+
+                        out.write(scanner.raw());
+                    } else {
+
+                        out.write("<children>");
+                        writeNodes(append, targetIndent + indentUnit + indentUnit);
+                        out.write(newLine);
+                        out.write(targetIndent);
+                        out.write(indentUnit);
+                        out.write("</children>");
+                    }
+                } else {
+
+                    out.write(scanner.raw());
+                    inChildren = true;
+                }
+            } else if(inChildren && depth == targetDepth + 2) {
+
+                // A direct child, it is held in memory until it ends
+                if(childIndent == null) childIndent = indentOf(pendingText);
+                child = new StringBuilder(pendingText).append(scanner.raw());
+                pendingText.setLength(0);
+                opaqueChild = !name.equals("node");
+                if(!opaqueChild) readChildElement(empty);
+                if(empty) endChild();
+            } else {
+
+                flush();
+                out.write(scanner.raw());
+            }
+        }
+
+        private void endElement() throws IOException {
+
+            if(target == null) {
+
+                flush();
+                out.write(scanner.raw());
+                return;
+            }
+
+            String name = scanner.name();
+            int depth = path.size();
+
+            if(child != null) {
+
+                child.append(pendingText).append(scanner.raw());
+                pendingText.setLength(0);
+                if(depth == targetDepth + 2) {
+
+                    endChild();
+                } else if(!opaqueChild && name.equals("node")) {
+
+                    nodes.pop();
+                }
+            } else if(inChildren && depth == targetDepth + 1 && name.equals("children")) {
+
+                // Appended nodes go before the whitespace that lines up </children>
+                writeNodes(editor.append(target), childIndent != null ? childIndent : targetIndent + indentUnit + indentUnit);
+                flush();
+                out.write(scanner.raw());
+                inChildren = false;
+            } else if(depth == targetDepth) {
+
+                if(!sawChildren) {
+
+                    List<LSXNode> append = editor.append(target);
+                    if(!append.isEmpty()) {
+
+                        writeChildren(append);
+                        if(indentOf(pendingText).isEmpty() && pendingText.indexOf("\n") < 0) {
+
+                            out.write(newLine);
+                            out.write(targetIndent);
+                        }
+                    }
+                }
+                flush();
+                out.write(scanner.raw());
+                endTarget();
+            } else {
+
+                flush();
+                out.write(scanner.raw());
+            }
+        }
+
+        private void startTarget(boolean empty) throws IOException {
+
+            target = scanner.attribute("id");
+            targetDepth = path.size();
+            targetIndent = indentOf(pendingText);
+            inChildren = false;
+            sawChildren = false;
+            childIndent = null;
+            flush();
+
+            if(!empty) {
+
+                out.write(scanner.raw());
+                return;
+            }
+
+            // <node id="ModOrder" /> has no children, it needs opening up before anything can be added
+            List<LSXNode> append = editor.append(target);
+            String raw = scanner.raw();
+            if(append.isEmpty()) {
+
+                out.write(raw);
+            } else {
+
+                out.write(raw.substring(0, raw.lastIndexOf('/')).stripTrailing());
+                out.write(">");
+                writeChildren(append);
+                out.write(newLine);
+                out.write(targetIndent);
+                out.write("</node>");
+            }
+            endTarget();
+        }
+
+        private void endTarget() {
+
+            found.add(target.toLowerCase(Locale.ROOT));
+            target = null;
+        }
+
+        private void readChildElement(boolean empty) {
+
+            String name = scanner.name();
+            if(name.equals("node")) {
+
+                LSXNode node = new LSXNode(scanner.attribute("id"));
+                if(!nodes.isEmpty()) nodes.peek().addChild(node);
+                nodes.push(node);
+                // An empty child node of the child is finished straight away
+                if(empty && nodes.size() > 1) nodes.pop();
+            } else if(name.equals("attribute") && !nodes.isEmpty()) {
+
+                nodes.peek().addAttribute(scanner.attribute("id"), scanner.attribute("type"), scanner.attribute("value"));
+            }
+        }
+
+        private void endChild() throws IOException {
+
+            String chunk = child.toString();
+            if(opaqueChild) {
+
+                out.write(chunk);
+            } else {
+
+                LSXNode node = nodes.getLast();
+                node.setRaw(chunk);
+                if(editor.keep(target, node)) out.write(chunk);
+            }
+            nodes.clear();
+            child = null;
+            opaqueChild = false;
+        }
+
+        private void writeChildren(List<LSXNode> children) throws IOException {
+
+            out.write(newLine);
+            out.write(targetIndent);
+            out.write(indentUnit);
+            out.write("<children>");
+            writeNodes(children, targetIndent + indentUnit + indentUnit);
+            out.write(newLine);
+            out.write(targetIndent);
+            out.write(indentUnit);
+            out.write("</children>");
+        }
+
+        private void writeNodes(List<LSXNode> append, String indent) throws IOException {
+
+            for(LSXNode node : append) {
+
+                if(node.getRaw() != null) {
+
+                    out.write(node.getRaw());
+                } else {
+
+                    node.write(out, newLine, indent, indentUnit);
+                }
+            }
+        }
+
+        private boolean isTarget(String id) {
+
+            return id != null && targets.contains(id.toLowerCase(Locale.ROOT));
+        }
+
+        private void flush() throws IOException {
+
+            if(pendingText.length() > 0) {
+
+                out.append(pendingText);
+                pendingText.setLength(0);
+            }
+        }
+    }
+
+    // The whitespace after the last line break of some text, or nothing if the line has other content
+    private static String indentOf(CharSequence text) {
+
+        int lineStart = 0;
+        for(int i = text.length() - 1; i >= 0; i--) {
+
+            if(text.charAt(i) == '\n') {
+
+                lineStart = i + 1;
+                break;
+            }
+        }
+        String indent = text.subSequence(lineStart, text.length()).toString();
+        return indent.isBlank() ? indent : "";
+    }
+}
@@ -0,0 +1,272 @@
+package uk.co.innoxium.baldursgate.bg3m.lsx;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A pull scanner for LSX files which keeps the exact text of every token,
+ * so that anything which is not edited can be written back as it was read.
+ *
+ * Only tags are parsed, everything else (text, comments, the xml declaration)
+ * is returned as {@link Token#TEXT}.
+ */
+public class LSXScanner {
+
+    private final Reader reader;
+    private final StringBuilder raw = new StringBuilder();
+    private final StringBuilder value = new StringBuilder();
+    private final Map<String, String> attributes = new LinkedHashMap<>();
+    private String name;
+    private int peeked = -2;
+    private long position = 0;
+
+    public LSXScanner(Reader reader) {
+
+        this.reader = reader;
+    }
+
+    public enum Token {
+
+        TEXT, // Whitespace, text, comments, processing instructions, CDATA and doctype
+        START, // <node id="">
+        END, // </node>
+        EMPTY, // <attribute id="" />
+        EOF
+    }
+
+    /**
+     * Reads the next token
+     * @return the type of token read
+     * @throws IOException if the underlying reader fails, or the file is malformed
+     */
+    public Token next() throws IOException {
+
+        raw.setLength(0);
+        attributes.clear();
+        name = null;
+
+        int c = read();
+        if(c < 0) return Token.EOF;
+        if(c != '<') {
+
+            while((c = peek()) >= 0 && c != '<') {
+
+                read();
+            }
+            return Token.TEXT;
+        }
+
+        c = peek();
+        if(c == '?') {
+
+            readUntil("?>");
+            return Token.TEXT;
+        }
+        if(c == '!') {
+
+            read();
+            if(peek() == '-') {
+
+                readUntil("-->");
+            } else if(peek() == '[') {
+
+                readUntil("]]>");
+            } else {
+
+                // A doctype, which may have an internal subset in brackets
+                int depth = 0;
+                while((c = readRequired()) != '>' || depth > 0) {
+
+                    if(c == '[') depth++;
+                    if(c == ']') depth--;
+                }
+            }
+            return Token.TEXT;
+        }
+        if(c == '/') {
+
+            read();
+            name = readName();
+            skipWhitespace();
+            expect('>');
+            return Token.END;
+        }
+
+        name = readName();
+        while(true) {
+
+            skipWhitespace();
+            c = readRequired();
+            if(c == '>') return Token.START;
+            if(c == '/') {
+
+                expect('>');
+                return Token.EMPTY;
+            }
+
+            String attribute = (char)c + readName();
+            skipWhitespace();
+            expect('=');
+            skipWhitespace();
+            int quote = readRequired();
+            if(quote != '"' && quote != '\'') throw malformed("expected a quote");
+            value.setLength(0);
+            while((c = readRequired()) != quote) {
+
+                value.append((char)c);
+            }
+            attributes.put(attribute, decode(value));
+        }
+    }
+
+    /**
+     * @return the exact text of the current token
+     */
+    public String raw() {
+
+        return raw.toString();
+    }
+
+    /**
+     * @return the tag name of the current token, or null if it is text
+     */
+    public String name() {
+
+        return name;
+    }
+
+    /**
+     * @return the decoded value of an attribute of the current tag, or null if it is not present
+     */
+    public String attribute(String name) {
+
+        return attributes.get(name);
+    }
+
+    public Map<String, String> attributes() {
+
+        return attributes;
+    }
+
+    private String readName() throws IOException {
+
+        StringBuilder builder = new StringBuilder();
+        int c;
+        while((c = peek()) >= 0 && !Character.isWhitespace(c) && c != '>' && c != '/' && c != '=') {
+
+            builder.append((char)read());
+        }
+        if(builder.length() == 0) throw malformed("expected a name");
+        return builder.toString();
+    }
+
+    private void readUntil(String end) throws IOException {
+
+        // Compare the last end.length() characters read, so overlapping runs like "]]]>" still match
+        StringBuilder tail = new StringBuilder(end.length());
+        while(tail.length() < end.length() || !end.contentEquals(tail)) {
+
+            tail.append((char)readRequired());
+            if(tail.length() > end.length()) tail.deleteCharAt(0);
+        }
+    }
+
+    private void skipWhitespace() throws IOException {
+
+        int c;
+        while((c = peek()) >= 0 && Character.isWhitespace(c)) {
+
+            read();
+        }
+    }
+
+    private void expect(char expected) throws IOException {
+
+        if(readRequired() != expected) throw malformed("expected '" + expected + "'");
+    }
+
+    private int peek() throws IOException {
+
+        if(peeked == -2) peeked = reader.read();
+        return peeked;
+    }
+
+    private int read() throws IOException {
+
+        int c = peek();
+        peeked = -2;
+        if(c >= 0) {
+
+            raw.append((char)c);
+            position++;
+        }
+        return c;
+    }
+
+    private int readRequired() throws IOException {
+
+        int c = read();
+        if(c < 0) throw new EOFException("Unexpected end of LSX file");
+        return c;
+    }
+
+    private IOException malformed(String reason) {
+
+        return new IOException(String.format("Malformed LSX at character %d, %s", position, reason));
+    }
+
+    // Resolves the predefined and numeric entities, and normalises whitespace as an XML parser would
+    private static String decode(CharSequence value) {
+
+        StringBuilder builder = new StringBuilder(value.length());
+        for(int i = 0; i < value.length(); i++) {
+
+            char c = value.charAt(i);
+            if(c == '&') {
+
+                int end = -1;
+                for(int j = i + 1; j < value.length(); j++) {
+
+                    if(value.charAt(j) == ';') {
+
+                        end = j;
+                        break;
+                    }
+                }
+                if(end > 0) {
+
+                    String entity = value.subSequence(i + 1, end).toString();
+                    String replacement = switch(entity) {
+
+                        case "lt" -> "<";
+                        case "gt" -> ">";
+                        case "amp" -> "&";
+                        case "quot" -> "\"";
+                        case "apos" -> "'";
+                        default -> {
+
+                            try {
+
+                                if(entity.startsWith("#x")) yield Character.toString(Integer.parseInt(entity.substring(2), 16));
+                                if(entity.startsWith("#")) yield Character.toString(Integer.parseInt(entity.substring(1)));
+                            } catch (IllegalArgumentException ignored) {}
+                            yield null;
+                        }
+                    };
+                    if(replacement != null) {
+
+                        builder.append(replacement);
+                        i = end;
+                        continue;
+                    }
+                }
+            }
+            if(c == '\r' && i + 1 < value.length() && value.charAt(i + 1) == '\n') continue;
+            builder.append(c == '\t' || c == '\n' || c == '\r' ? ' ' : c);
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,309 @@
+package uk.co.innoxium.baldursgate.bg3m.lsx;
+
+import uk.co.innoxium.baldursgate.bg3m.MetaInfo;
+import uk.co.innoxium.candor.util.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * An indexed model of the Mods and ModOrder nodes of a modsettings.lsx.
+ * Entries are keyed by UUID, with a second index by Folder, so lookups,
+ * adds and removes do not walk the document. Duplicate UUIDs found on load
+ * are collapsed into a single entry, keeping the position of the first and
+ * the values of the last.
+ *
+ * The file is only written when {@link #commit(File, File)} is called, and entries
+ * which were not changed are written back with their original text.
+ */
+public class ModRegistry {
+
+    public static final String MODS = "Mods";
+    public static final String MOD_ORDER = "ModOrder";
+
+    // Keyed by lower case UUID, in file order
+    private final LinkedHashMap<String, LSXNode> modules = new LinkedHashMap<>();
+    private final LinkedHashMap<String, LSXNode> order = new LinkedHashMap<>();
+    // Lower case Folder to lower case UUID
+    private final Map<String, String> folders = new HashMap<>();
+    private final List<LSXNode> duplicates = new ArrayList<>();
+    private int unkeyed = 0;
+    private boolean dirty = false;
+
+    /**
+     * Reads the Mods and ModOrder nodes of a modsettings.lsx
+     * @param modSettings - The modsettings.lsx to read
+     * @return the model of the mods registered in the file
+     * @throws IOException if the file cannot be read, or is missing either node
+     */
+    public static ModRegistry load(File modSettings) throws IOException {
+
+        ModRegistry registry = new ModRegistry();
+        new LSXRewriter(MODS, MOD_ORDER).read(modSettings, new LSXRewriter.Editor() {
+
+            @Override
+            public boolean keep(String parentId, LSXNode node) {
+
+                if(parentId.equalsIgnoreCase(MODS)) {
+
+                    registry.putModule(node);
+                } else {
+
+                    registry.putOrder(node);
+                }
+                return true;
+            }
+
+            @Override
+            public List<LSXNode> append(String parentId) {
+
+                return List.of();
+            }
+        });
+        if(!registry.duplicates.isEmpty()) {
+
+            Logger.info(String.format("%s contained %d duplicate mod entries, they will be removed when it is next written", modSettings, registry.duplicates.size()));
+            registry.dirty = true;
+        }
+        return registry;
+    }
+
+    /**
+     * Registers the mod, replacing any entry with the same UUID or Folder in place
+     */
+    public void add(MetaInfo mod) {
+
+        add(mod.toModuleShortDesc(), mod.toModOrder());
+    }
+
+    /**
+     * Registers a ModuleShortDesc and its ModOrder Module, replacing any entry with the same UUID or Folder in place
+     */
+    public void add(LSXNode moduleShortDesc, LSXNode module) {
+
+        String uuid = keyOf(moduleShortDesc);
+        String previous = folders.get(key(moduleShortDesc.getAttributeValue("Folder")));
+        if(previous != null && !previous.equals(uuid)) {
+
+            // Same folder under a new UUID, the old entry would point at the same pak, so the new one takes its place
+            LSXNode replaced = modules.get(uuid);
+            if(replaced != null && replaced.getAttributeValue("Folder") != null) folders.remove(key(replaced.getAttributeValue("Folder")));
+            replace(modules, previous, uuid, moduleShortDesc);
+            folders.put(key(moduleShortDesc.getAttributeValue("Folder")), uuid);
+            if(order.containsKey(previous)) {
+
+                replace(order, previous, uuid, module);
+            } else if(!order.containsKey(uuid)) {
+
+                order.put(uuid, module);
+            }
+        } else {
+
+            putModule(moduleShortDesc, uuid);
+            if(!order.containsKey(uuid)) {
+
+                order.put(uuid, module);
+            }
+        }
+        dirty = true;
+    }
+
+    /**
+     * Replaces every entry with those given, in their order, such as those saved from another file
+     * @param modules - The ModuleShortDesc nodes
+     * @param order - The Module nodes of ModOrder
+     */
+    public void restore(List<LSXNode> modules, List<LSXNode> order) {
+
+        this.modules.clear();
+        this.order.clear();
+        folders.clear();
+        modules.forEach(this::putModule);
+        order.forEach(this::putOrder);
+        dirty = true;
+    }
+
+    /**
+     * Removes the mod's ModuleShortDesc, matched by Folder or UUID, and its ModOrder entry
+     */
+    public void remove(MetaInfo mod) {
+
+        remove(mod.getUuid(), mod.getFolder());
+    }
+
+    public void remove(String uuid, String folder) {
+
+        String byFolder = folders.get(key(folder));
+        if(byFolder != null) removeUuid(byFolder);
+        removeUuid(key(uuid));
+    }
+
+    public boolean isInstalled(String uuid) {
+
+        return modules.containsKey(key(uuid));
+    }
+
+    public boolean isFolderInstalled(String folder) {
+
+        return folders.containsKey(key(folder));
+    }
+
+    /**
+     * @return the ModuleShortDesc for the UUID, or null if it is not registered
+     */
+    public LSXNode getByUuid(String uuid) {
+
+        return modules.get(key(uuid));
+    }
+
+    /**
+     * @return the ModuleShortDesc for the Folder, or null if it is not registered
+     */
+    public LSXNode getByFolder(String folder) {
+
+        String uuid = folders.get(key(folder));
+        return uuid != null ? modules.get(uuid) : null;
+    }
+
+    public Collection<LSXNode> getModules() {
+
+        return Collections.unmodifiableCollection(modules.values());
+    }
+
+    public Collection<LSXNode> getModOrder() {
+
+        return Collections.unmodifiableCollection(order.values());
+    }
+
+    /**
+     * @return the lower case UUID of each ModOrder entry, in order
+     */
+    public List<String> getOrderUuids() {
+
+        return order.keySet().stream().filter(key -> !key.startsWith("#")).toList();
+    }
+
+    /**
+     * Moves the ModOrder entries into the order given, entries which are not in it keep their place after them
+     * @param uuids - Lower case UUIDs, as from {@link #getOrderUuids()}
+     */
+    public void reorder(List<String> uuids) {
+
+        LinkedHashMap<String, LSXNode> reordered = new LinkedHashMap<>();
+        for(String uuid : uuids) {
+
+            LSXNode node = order.get(uuid);
+            if(node != null) reordered.put(uuid, node);
+        }
+        order.forEach(reordered::putIfAbsent);
+        if(!new ArrayList<>(reordered.keySet()).equals(new ArrayList<>(order.keySet()))) dirty = true;
+        order.clear();
+        order.putAll(reordered);
+    }
+
+    /**
+     * @return the entries which were dropped on load because their UUID was already registered
+     */
+    public List<LSXNode> getDuplicates() {
+
+        return Collections.unmodifiableList(duplicates);
+    }
+
+    public boolean isDirty() {
+
+        return dirty;
+    }
+
+    /**
+     * Writes the model to modsettings.lsx, leaving everything outside of Mods and ModOrder untouched
+     * @param modSettings - The modsettings.lsx this registry was loaded from
+     * @param destination - The file to write to
+     * @throws IOException if the file could not be written
+     */
+    public void commit(File modSettings, File destination) throws IOException {
+
+        new LSXRewriter(MODS, MOD_ORDER).rewrite(modSettings, destination, new LSXRewriter.Editor() {
+
+            @Override
+            public boolean keep(String parentId, LSXNode node) {
+
+                // Everything is written from the model
+                return false;
+            }
+
+            @Override
+            public List<LSXNode> append(String parentId) {
+
+                return new ArrayList<>(parentId.equalsIgnoreCase(MODS) ? modules.values() : order.values());
+            }
+        });
+        dirty = false;
+    }
+
+    private void putModule(LSXNode node) {
+
+        putModule(node, keyOf(node));
+    }
+
+    private void putModule(LSXNode node, String key) {
+
+        LSXNode previous = modules.put(key, node);
+        if(previous != null) {
+
+            if(previous.getRaw() != null && node.getRaw() != null) duplicates.add(previous);
+            String oldFolder = previous.getAttributeValue("Folder");
+            if(oldFolder != null) folders.remove(key(oldFolder));
+        }
+        String folder = node.getAttributeValue("Folder");
+        if(folder != null) folders.put(key(folder), key);
+    }
+
+    private void putOrder(LSXNode node) {
+
+        String key = keyOf(node);
+        if(order.put(key, node) != null) duplicates.add(node);
+    }
+
+    private void removeUuid(String uuid) {
+
+        LSXNode module = modules.remove(uuid);
+        if(module != null) {
+
+            String folder = module.getAttributeValue("Folder");
+            if(folder != null) folders.remove(key(folder));
+            dirty = true;
+        }
+        if(order.remove(uuid) != null) dirty = true;
+    }
+
+    // Entries without a UUID each get their own key, so none of them replace another
+    private String keyOf(LSXNode node) {
+
+        String uuid = node.getAttributeValue("UUID");
+        return uuid != null ? key(uuid) : "#" + unkeyed++;
+    }
+
+    // Puts the node under the new key at the position of the old key, dropping any other entry under the new key
+    private static void replace(LinkedHashMap<String, LSXNode> map, String oldKey, String newKey, LSXNode node) {
+
+        LinkedHashMap<String, LSXNode> replaced = new LinkedHashMap<>();
+        map.forEach((key, value) -> {
+
+            if(key.equals(oldKey)) {
+
+                replaced.put(newKey, node);
+            } else if(!key.equals(newKey)) {
+
+                replaced.put(key, value);
+            }
+        });
+        map.clear();
+        map.putAll(replaced);
+    }
+
+    private static String key(String value) {
+
+        return value == null ? "" : value.toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,269 @@
+package uk.co.innoxium.baldursgate.bg3m.lsx;
+
+import org.apache.commons.io.FileUtils;
+import uk.co.innoxium.baldursgate.bg3m.MetaInfo;
+import uk.co.innoxium.baldursgate.bg3m.io.AtomicFile;
+import uk.co.innoxium.baldursgate.bg3m.manifest.InstallManifest;
+import uk.co.innoxium.baldursgate.bg3m.order.LoadOrder;
+import uk.co.innoxium.baldursgate.bg3m.order.LoadOrderPins;
+import uk.co.innoxium.candor.util.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Collects ModuleShortDesc/ModOrder changes for one or more player profiles and applies them
+ * to each modsettings.lsx through a {@link ModRegistry}, with one read and one write per profile.
+ * - a restore replaces every entry first, then removals are applied before additions, so a reinstall replaces the old entries
+ * - an addition whose UUID is already registered replaces it instead of duplicating it
+ * - everything outside of the Mods and ModOrder children is written back untouched
+ * - the change is journaled and written atomically, see {@link ModSettingsJournal}
+ * - mods may be queued from several threads, but only one batch is applied to a profile at a time
+ * - ModOrder is kept in dependency order, see {@link LoadOrder}, in the same write
+ * - the changes and dependencies are worked out once, then applied to every profile in parallel,
+ * each with its own journal and atomic replace, so one profile failing leaves the others changed
+ */
+public class ModSettingsBatch {
+
+    private static final int THREADS = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    private static final ThreadPoolExecutor executor = createExecutor();
+    // Held while any batch reads and writes a profile's modsettings.lsx, by profile
+    private static final Map<File, Object> LOCKS = new ConcurrentHashMap<>();
+
+    private final List<File> playerProfiles;
+    private final List<MetaInfo> additions = new ArrayList<>();
+    private final List<ModSettingsJournal.Operation> removals = new ArrayList<>();
+    private ModSettingsJournal.Operation restore;
+    // Profiles which already have the queued changes, from an apply which failed for others
+    private final Set<File> applied = new HashSet<>();
+
+    public ModSettingsBatch(File playerProfile) {
+
+        this(List.of(playerProfile));
+    }
+
+    /**
+     * @param playerProfiles - The profiles to make the same changes to, the first being the one mods are installed for
+     */
+    public ModSettingsBatch(List<File> playerProfiles) {
+
+        if(playerProfiles.isEmpty()) throw new IllegalArgumentException("A batch needs at least one player profile");
+        this.playerProfiles = List.copyOf(playerProfiles);
+    }
+
+    public synchronized ModSettingsBatch add(MetaInfo mod) {
+
+        additions.add(mod);
+        applied.clear();
+        return this;
+    }
+
+    public synchronized ModSettingsBatch remove(MetaInfo mod) {
+
+        return remove(mod.getUuid(), mod.getFolder());
+    }
+
+    /**
+     * Removes an entry which may not belong to any known mod, matched by Folder or UUID
+     */
+    public synchronized ModSettingsBatch remove(String uuid, String folder) {
+
+        removals.add(ModSettingsJournal.Operation.remove(uuid, folder));
+        applied.clear();
+        return this;
+    }
+
+    /**
+     * Replaces every Mods and ModOrder entry with those saved from a modsettings.lsx, in their order
+     * @param modules - The text of each ModuleShortDesc node, as from {@link LSXNode#getRaw()}
+     * @param order - The text of each Module node of ModOrder
+     * @throws IOException if any of the text is not a node
+     */
+    public synchronized ModSettingsBatch restore(List<String> modules, List<String> order) throws IOException {
+
+        List<LSXNode> moduleNodes = new ArrayList<>(modules.size());
+        for(String raw : modules) moduleNodes.add(LSXNode.parse(raw));
+        List<LSXNode> orderNodes = new ArrayList<>(order.size());
+        for(String raw : order) orderNodes.add(LSXNode.parse(raw));
+        restore = ModSettingsJournal.Operation.restore(moduleNodes, orderNodes);
+        applied.clear();
+        return this;
+    }
+
+    public synchronized boolean isEmpty() {
+
+        return restore == null && additions.isEmpty() && removals.isEmpty();
+    }
+
+    /**
+     * @return the modsettings.lsx of the profile mods are installed for
+     */
+    public File getModSettings() {
+
+        return getModSettings(playerProfiles.get(0));
+    }
+
+    public List<File> getPlayerProfiles() {
+
+        return playerProfiles;
+    }
+
+    private static File getModSettings(File playerProfile) {
+
+        return new File(playerProfile, "modsettings.lsx");
+    }
+
+    /**
+     * Applies every queued change to each profile, see {@link #applyEach()}
+     * @return true if every profile was written, or there was nothing to do
+     */
+    public boolean apply() {
+
+        return !applyEach().containsValue(false);
+    }
+
+    /**
+     * Applies every queued change in one pass over each profile's modsettings.lsx, the profiles in parallel.
+     * Each change is journaled, and the new file replaces the old one atomically.
+     * The changes stay queued for any profile which failed, applying again retries only those.
+     * @return for each profile, in order, true if its file was written, or there was nothing to do
+     */
+    public synchronized Map<File, Boolean> applyEach() {
+
+        Map<File, Boolean> ret = new LinkedHashMap<>();
+        playerProfiles.forEach(profile -> ret.put(profile, true));
+        if(isEmpty()) return ret;
+
+        List<ModSettingsJournal.Operation> operations = new ArrayList<>();
+        if(restore != null) operations.add(restore);
+        operations.addAll(removals);
+        additions.forEach(mod -> operations.add(ModSettingsJournal.Operation.add(mod.toModuleShortDesc(), mod.toModOrder())));
+        Map<String, Set<String>> dependencies = getDependencies();
+
+        List<File> pending = playerProfiles.stream().filter(profile -> !applied.contains(profile)).toList();
+        if(pending.size() == 1) {
+
+            ret.put(pending.get(0), apply(pending.get(0), operations, dependencies));
+        } else {
+
+            // The nodes and dependencies are only read from here on, so every profile shares them
+            Map<File, CompletableFuture<Boolean>> futures = new LinkedHashMap<>();
+            pending.forEach(profile -> futures.put(profile, CompletableFuture.supplyAsync(() -> apply(profile, operations, dependencies), executor)));
+            futures.forEach((profile, future) -> ret.put(profile, future.exceptionally(throwable -> {
+
+                throwable.printStackTrace();
+                return false;
+            }).join()));
+        }
+
+        ret.forEach((profile, written) -> {
+
+            if(written) {
+
+                applied.add(profile);
+            } else {
+
+                Logger.info(String.format("Could not update the modsettings.lsx of profile %s, its changes are still queued", profile.getName()));
+            }
+        });
+        if(applied.containsAll(playerProfiles)) {
+
+            restore = null;
+            additions.clear();
+            removals.clear();
+            applied.clear();
+        }
+        return ret;
+    }
+
+    private static boolean apply(File playerProfile, List<ModSettingsJournal.Operation> operations, Map<String, Set<String>> dependencies) {
+
+        synchronized(LOCKS.computeIfAbsent(playerProfile.getAbsoluteFile(), key -> new Object())) {
+
+            return applyLocked(playerProfile, operations, dependencies);
+        }
+    }
+
+    private static boolean applyLocked(File playerProfile, List<ModSettingsJournal.Operation> operations, Map<String, Set<String>> dependencies) {
+
+        File modSettings = getModSettings(playerProfile);
+        ModSettingsJournal journal = new ModSettingsJournal(playerProfile);
+        journal.recover();
+
+        File modSettingsTemp = null;
+        String tx = null;
+        try {
+
+            ModRegistry registry = ModRegistry.load(modSettings);
+            // A restore brings its own order, which is only kept in dependency order from there
+            operations.stream().filter(ModSettingsJournal.Operation::isRestore).forEach(operation -> operation.apply(registry));
+            LoadOrder loadOrder = new LoadOrder(registry.getOrderUuids(), dependencies);
+            operations.stream().filter(operation -> !operation.isRestore()).forEach(operation -> operation.apply(registry));
+            loadOrder.update(registry.getOrderUuids());
+            registry.reorder(loadOrder.getOrder());
+            loadOrder.getMissing().forEach((uuid, missing) -> Logger.info(String.format("%s: %s depends on %s, which %s not installed", playerProfile.getName(), describe(registry, uuid), String.join(", ", missing.stream().map(dependency -> describe(registry, dependency)).toList()), missing.size() == 1 ? "is" : "are")));
+            loadOrder.getCycles().forEach(cycle -> Logger.info(String.format("%s: the dependencies of %s form a cycle, their order is left as it was", playerProfile.getName(), String.join(", ", cycle.stream().map(uuid -> describe(registry, uuid)).toList()))));
+            modSettingsTemp = AtomicFile.createTemp(modSettings);
+            registry.commit(modSettings, modSettingsTemp);
+
+            tx = journal.begin(modSettings, operations);
+            AtomicFile.replace(modSettingsTemp, modSettings);
+            journal.commit(tx);
+            return true;
+        } catch (IOException | RuntimeException e) {
+
+            e.printStackTrace();
+            FileUtils.deleteQuietly(modSettingsTemp);
+            if(tx != null) {
+
+                try {
+
+                    journal.abort(tx);
+                } catch (IOException ioException) {
+
+                    // Left open, it will be recovered next time
+                    ioException.printStackTrace();
+                }
+            }
+            return false;
+        }
+    }
+
+    // What each mod has to load after, from the manifests of installed mods, the mods being added, and the user's pins
+    private Map<String, Set<String>> getDependencies() {
+
+        Map<String, Set<String>> ret = new HashMap<>();
+        for(InstallManifest manifest : InstallManifest.loadAll()) {
+
+            if(!manifest.isInstalled()) continue;
+            manifest.getMods().forEach(mod -> ret.put(mod.getUuid(), new LinkedHashSet<>(mod.getDependencies())));
+        }
+        additions.forEach(mod -> ret.put(mod.getUuid(), new LinkedHashSet<>(mod.getDependencies())));
+        LoadOrderPins.get().forEach((uuid, after) -> ret.computeIfAbsent(uuid, k -> new LinkedHashSet<>()).addAll(after));
+        return ret;
+    }
+
+    // The mod's folder if it is registered, for messages
+    private static String describe(ModRegistry registry, String uuid) {
+
+        LSXNode module = registry.getByUuid(uuid);
+        String folder = module != null ? module.getAttributeValue("Folder") : null;
+        return folder != null ? folder : uuid;
+    }
+
+    private static ThreadPoolExecutor createExecutor() {
+
+        AtomicInteger count = new AtomicInteger();
+        ThreadPoolExecutor ret = new ThreadPoolExecutor(THREADS, THREADS, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+
+            Thread thread = new Thread(runnable, "bg3-profile-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        ret.allowCoreThreadTimeOut(true);
+        return ret;
+    }
+}
@@ -0,0 +1,339 @@
+package uk.co.innoxium.baldursgate.bg3m.lsx;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonParseException;
+import org.apache.commons.io.FileUtils;
+import uk.co.innoxium.baldursgate.bg3m.io.AtomicFile;
+import uk.co.innoxium.candor.util.Logger;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of the changes made to a profile's modsettings.lsx.
+ * Each batch is written as a transaction before the file is replaced:
+ * - begin, with the size and checksum of the file before the change
+ * - one line per add or remove
+ * - commit once the new file has been renamed into place, or abort if it failed
+ *
+ * If Candor stops part way through, {@link #recover()} either finds the old file still
+ * in place and rolls the transaction back, or replays the operations onto the file.
+ * The journal is deleted once its transaction is closed, so it stays small.
+ */
+public class ModSettingsJournal {
+
+    private final File playerProfile;
+    private final File journal;
+
+    public ModSettingsJournal(File playerProfile) {
+
+        this.playerProfile = playerProfile;
+        this.journal = new File(playerProfile, "modsettings.journal");
+    }
+
+    /**
+     * Durably records a transaction before modsettings.lsx is replaced
+     * @return the id of the transaction
+     */
+    public String begin(File modSettings, List<Operation> operations) throws IOException {
+
+        String tx = UUID.randomUUID().toString();
+        JsonObject begin = entry(tx, "begin");
+        begin.addProperty("size", modSettings.length());
+        begin.addProperty("crc", checksum(modSettings));
+
+        StringBuilder lines = new StringBuilder(begin.toString()).append('\n');
+        for(Operation operation : operations) {
+
+            lines.append(operation.toJson(tx)).append('\n');
+        }
+        append(lines.toString());
+        return tx;
+    }
+
+    public void commit(String tx) throws IOException {
+
+        close(tx, "commit");
+    }
+
+    public void abort(String tx) throws IOException {
+
+        close(tx, "abort");
+    }
+
+    /**
+     * Finishes any transaction which was interrupted, and removes stray temp files
+     * @return true if there was nothing to recover, or it was recovered correctly
+     */
+    public boolean recover() {
+
+        File[] temps = playerProfile.listFiles((dir, name) -> name.startsWith("modsettings.lsx.") && name.endsWith(".tmp"));
+        if(temps != null) {
+
+            for(File temp : temps) {
+
+                FileUtils.deleteQuietly(temp);
+            }
+        }
+        if(!journal.exists()) return true;
+
+        try {
+
+            // Transactions in the order they began, with their operations, dropping the closed ones
+            LinkedHashMap<String, JsonObject> begins = new LinkedHashMap<>();
+            Map<String, List<Operation>> operations = new HashMap<>();
+            for(String line : Files.readAllLines(journal.toPath(), StandardCharsets.UTF_8)) {
+
+                JsonObject entry;
+                try {
+
+                    entry = JsonParser.parseString(line).getAsJsonObject();
+                } catch (JsonParseException | IllegalStateException e) {
+
+                    // A line cut short by the interruption, nothing after it was written either
+                    break;
+                }
+                String tx = entry.get("tx").getAsString();
+                switch(entry.get("op").getAsString()) {
+
+                    case "begin" -> begins.put(tx, entry);
+                    case "commit", "abort" -> begins.remove(tx);
+                    default -> operations.computeIfAbsent(tx, key -> new ArrayList<>()).add(Operation.fromJson(entry));
+                }
+            }
+
+            File modSettings = new File(playerProfile, "modsettings.lsx");
+            for(Map.Entry<String, JsonObject> open : begins.entrySet()) {
+
+                String tx = open.getKey();
+                JsonObject begin = open.getValue();
+                if(modSettings.length() == begin.get("size").getAsLong() && checksum(modSettings) == begin.get("crc").getAsLong()) {
+
+                    // The new file never replaced the old one
+                    Logger.info(String.format("Rolling back interrupted modsettings.lsx change %s", tx));
+                    abort(tx);
+                } else {
+
+                    Logger.info(String.format("Replaying interrupted modsettings.lsx change %s", tx));
+                    ModRegistry registry = ModRegistry.load(modSettings);
+                    operations.getOrDefault(tx, List.of()).forEach(operation -> operation.apply(registry));
+                    File temp = AtomicFile.createTemp(modSettings);
+                    try {
+
+                        registry.commit(modSettings, temp);
+                        AtomicFile.replace(temp, modSettings);
+                    } finally {
+
+                        FileUtils.deleteQuietly(temp);
+                    }
+                    commit(tx);
+                }
+            }
+            Files.deleteIfExists(journal.toPath());
+            return true;
+        } catch (IOException | RuntimeException e) {
+
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    // Only one transaction is open at a time, so once it is closed the journal is no longer needed
+    private void close(String tx, String op) throws IOException {
+
+        append(entry(tx, op).toString() + '\n');
+        Files.deleteIfExists(journal.toPath());
+    }
+
+    private void append(String lines) throws IOException {
+
+        try(FileChannel channel = FileChannel.open(journal.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+
+            ByteBuffer buffer = ByteBuffer.wrap(lines.getBytes(StandardCharsets.UTF_8));
+            while(buffer.hasRemaining()) {
+
+                channel.write(buffer);
+            }
+            channel.force(false);
+        }
+    }
+
+    private static JsonObject entry(String tx, String op) {
+
+        JsonObject entry = new JsonObject();
+        entry.addProperty("tx", tx);
+        entry.addProperty("op", op);
+        return entry;
+    }
+
+    private static long checksum(File file) throws IOException {
+
+        CRC32 crc = new CRC32();
+        try(InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+
+            byte[] buffer = new byte[8192];
+            int read;
+            while((read = in.read(buffer)) >= 0) {
+
+                crc.update(buffer, 0, read);
+            }
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * A single logical change to the Mods and ModOrder nodes
+     */
+    public static class Operation {
+
+        private final String op;
+        private final LSXNode module;
+        private final LSXNode order;
+        private final String uuid;
+        private final String folder;
+        // Every entry, for a restore
+        private final List<LSXNode> modules;
+        private final List<LSXNode> orders;
+
+        private Operation(String op, LSXNode module, LSXNode order, String uuid, String folder, List<LSXNode> modules, List<LSXNode> orders) {
+
+            this.op = op;
+            this.module = module;
+            this.order = order;
+            this.uuid = uuid;
+            this.folder = folder;
+            this.modules = modules;
+            this.orders = orders;
+        }
+
+        public static Operation add(LSXNode module, LSXNode order) {
+
+            return new Operation("add", module, order, module.getAttributeValue("UUID"), module.getAttributeValue("Folder"), null, null);
+        }
+
+        public static Operation remove(String uuid, String folder) {
+
+            return new Operation("remove", null, null, uuid, folder, null, null);
+        }
+
+        /**
+         * Replaces every entry, see {@link ModRegistry#restore(List, List)}
+         */
+        public static Operation restore(List<LSXNode> modules, List<LSXNode> orders) {
+
+            return new Operation("restore", null, null, null, null, List.copyOf(modules), List.copyOf(orders));
+        }
+
+        public boolean isRestore() {
+
+            return op.equals("restore");
+        }
+
+        public void apply(ModRegistry registry) {
+
+            switch(op) {
+
+                case "add" -> registry.add(module, order);
+                case "restore" -> registry.restore(modules, orders);
+                default -> registry.remove(uuid, folder);
+            }
+        }
+
+        private JsonObject toJson(String tx) {
+
+            JsonObject ret = entry(tx, op);
+            switch(op) {
+
+                case "add" -> {
+
+                    ret.add("module", attributesToJson(module));
+                    ret.add("order", attributesToJson(order));
+                }
+                case "restore" -> {
+
+                    ret.add("modules", nodesToJson(modules));
+                    ret.add("orders", nodesToJson(orders));
+                }
+                default -> {
+
+                    ret.addProperty("uuid", uuid);
+                    ret.addProperty("folder", folder);
+                }
+            }
+            return ret;
+        }
+
+        private static Operation fromJson(JsonObject obj) throws IOException {
+
+            return switch(obj.get("op").getAsString()) {
+
+                case "add" -> add(attributesFromJson("ModuleShortDesc", obj.getAsJsonArray("module")), attributesFromJson("Module", obj.getAsJsonArray("order")));
+                case "restore" -> restore(nodesFromJson("ModuleShortDesc", obj.getAsJsonArray("modules")), nodesFromJson("Module", obj.getAsJsonArray("orders")));
+                default -> remove(optString(obj, "uuid"), optString(obj, "folder"));
+            };
+        }
+
+        // Each node's text where it has it, so it is written back the same, otherwise its attributes
+        private static JsonArray nodesToJson(List<LSXNode> nodes) {
+
+            JsonArray ret = new JsonArray();
+            nodes.forEach(node -> {
+
+                if(node.getRaw() != null) ret.add(node.getRaw());
+                else ret.add(attributesToJson(node));
+            });
+            return ret;
+        }
+
+        private static List<LSXNode> nodesFromJson(String id, JsonArray array) throws IOException {
+
+            List<LSXNode> ret = new ArrayList<>();
+            for(JsonElement element : array) {
+
+                ret.add(element.isJsonArray() ? attributesFromJson(id, element.getAsJsonArray()) : LSXNode.parse(element.getAsString()));
+            }
+            return ret;
+        }
+
+        private static String optString(JsonObject obj, String key) {
+
+            JsonElement element = obj.get(key);
+            return element == null || element.isJsonNull() ? null : element.getAsString();
+        }
+
+        // [[id, type, value], ...]
+        private static JsonArray attributesToJson(LSXNode node) {
+
+            JsonArray ret = new JsonArray();
+            node.getAttributes().forEach(attribute -> {
+
+                JsonArray array = new JsonArray();
+                array.add(attribute.getId());
+                array.add(attribute.getType());
+                array.add(attribute.getValue());
+                ret.add(array);
+            });
+            return ret;
+        }
+
+        private static LSXNode attributesFromJson(String id, JsonArray array) {
+
+            LSXNode ret = new LSXNode(id);
+            for(JsonElement element : array) {
+
+                JsonArray attribute = element.getAsJsonArray();
+                ret.addAttribute(attribute.get(0).getAsString(), attribute.get(1).getAsString(), attribute.get(2).getAsString());
+            }
+            return ret;
+        }
+    }
+}
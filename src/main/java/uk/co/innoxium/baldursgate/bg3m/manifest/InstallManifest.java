@@ -0,0 +1,286 @@
+package uk.co.innoxium.baldursgate.bg3m.manifest;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import org.apache.commons.io.FileUtils;
+import uk.co.innoxium.baldursgate.bg3m.MetaInfo;
+import uk.co.innoxium.baldursgate.bg3m.io.AtomicFile;
+import uk.co.innoxium.candor.mod.Mod;
+import uk.co.innoxium.candor.util.Resources;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * What was installed for a mod, written when it is installed, so it can be
+ * uninstalled, verified and re-enabled without opening its archive again.
+ * - the archive it came from, with its size and modified time
+ * - the mod type, and the player profile its nodes were added to
+ * - every MetaInfo read from info.json, with its format version and the MD5 of its pak
+ * - every deployed file, as recorded by {@link uk.co.innoxium.baldursgate.bg3m.deploy.Deployer}, with size, crc, md5 and tree hash
+ *
+ * Manifests are kept after uninstalling, marked as not installed, so re-enabling a mod can reuse them.
+ */
+public class InstallManifest {
+
+    public static final int VERSION = 1;
+
+    private final File file;
+    private final JsonObject json;
+
+    private InstallManifest(File file, JsonObject json) {
+
+        this.file = file;
+        this.json = json;
+    }
+
+    /**
+     * @return the directory manifests are kept in
+     */
+    public static File getDirectory() {
+
+        return new File(Resources.CONFIG_PATH, "bg3/manifests");
+    }
+
+    /**
+     * Starts a new manifest for the mod, it is not written until {@link #save()}
+     */
+    public static InstallManifest create(Mod mod, String type, File playerProfile) {
+
+        JsonObject json = new JsonObject();
+        json.addProperty("version", VERSION);
+        json.addProperty("archive", mod.getFile().getAbsolutePath());
+        json.addProperty("archiveSize", mod.getFile().length());
+        json.addProperty("archiveModified", mod.getFile().lastModified());
+        json.addProperty("type", type);
+        json.addProperty("profile", playerProfile.getAbsolutePath());
+        json.addProperty("installed", true);
+        json.add("mods", new JsonArray());
+        json.add("files", new JsonArray());
+        return new InstallManifest(getFile(mod), json);
+    }
+
+    /**
+     * @return the mod's manifest, or null if it has none or it could not be read
+     */
+    public static InstallManifest load(Mod mod) {
+
+        return load(getFile(mod));
+    }
+
+    /**
+     * @param id - The id of the mod, see {@link #getId(Mod)}
+     * @return the mod's manifest, or null if it has none or it could not be read
+     */
+    public static InstallManifest load(String id) {
+
+        return load(new File(getDirectory(), id + ".json"));
+    }
+
+    private static InstallManifest load(File file) {
+
+        if(!file.isFile()) return null;
+        try(Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+
+            JsonObject json = JsonParser.parseReader(reader).getAsJsonObject();
+            // Written by a newer version, which may record things this one would not undo
+            if(json.get("version").getAsInt() > VERSION) return null;
+            return new InstallManifest(file, json);
+        } catch (IOException | JsonParseException | IllegalStateException | NullPointerException e) {
+
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * @return every readable manifest, installed or not
+     */
+    public static List<InstallManifest> loadAll() {
+
+        List<InstallManifest> ret = new ArrayList<>();
+        File[] files = getDirectory().listFiles((dir, name) -> name.endsWith(".json"));
+        if(files == null) return ret;
+        for(File file : files) {
+
+            InstallManifest manifest = load(file);
+            if(manifest != null) ret.add(manifest);
+        }
+        return ret;
+    }
+
+    /**
+     * Archives with the same name in different folders are different mods, so the id includes the crc of the archive's path
+     * - a manifest written before this, named after the archive alone, keeps that id if it records the same archive
+     * @return the id of the mod, the name of its archive and the crc of its absolute path
+     */
+    public static String getId(Mod mod) {
+
+        String path = mod.getFile().getAbsolutePath();
+        CRC32 crc = new CRC32();
+        crc.update(path.getBytes(StandardCharsets.UTF_8));
+        String ret = String.format("%s-%08x", mod.getFile().getName(), crc.getValue());
+        if(!new File(getDirectory(), ret + ".json").isFile()) {
+
+            InstallManifest legacy = load(mod.getFile().getName());
+            if(legacy != null && legacy.getArchive().getAbsolutePath().equals(path)) return mod.getFile().getName();
+        }
+        return ret;
+    }
+
+    public String getId() {
+
+        return file.getName().substring(0, file.getName().length() - ".json".length());
+    }
+
+    public void save() throws IOException {
+
+        FileUtils.forceMkdirParent(file);
+        File temp = AtomicFile.createTemp(file);
+        try {
+
+            Files.writeString(temp.toPath(), json.toString(), StandardCharsets.UTF_8);
+            AtomicFile.replace(temp, file);
+        } finally {
+
+            FileUtils.deleteQuietly(temp);
+        }
+    }
+
+    public void delete() {
+
+        FileUtils.deleteQuietly(file);
+    }
+
+    /**
+     * @return true if the archive has not changed since the manifest was written, or it no longer exists and is the archive the manifest was written for
+     */
+    public boolean matches(File archive) {
+
+        if(!archive.exists()) return archive.getAbsolutePath().equals(getArchive().getAbsolutePath());
+        return archive.length() == json.get("archiveSize").getAsLong() && archive.lastModified() == json.get("archiveModified").getAsLong();
+    }
+
+    public File getArchive() {
+
+        return new File(json.get("archive").getAsString());
+    }
+
+    public String getType() {
+
+        return json.get("type").getAsString();
+    }
+
+    public File getPlayerProfile() {
+
+        return new File(json.get("profile").getAsString());
+    }
+
+    public boolean isInstalled() {
+
+        return json.get("installed").getAsBoolean();
+    }
+
+    public InstallManifest setInstalled(boolean installed) {
+
+        json.addProperty("installed", installed);
+        return this;
+    }
+
+    public InstallManifest addMod(MetaInfo mod) {
+
+        JsonObject obj = new JsonObject();
+        obj.addProperty("type", mod.getType().name());
+        obj.add("info", mod.toJson());
+        if(!mod.getMd5().isEmpty()) obj.addProperty("md5", mod.getMd5());
+        json.getAsJsonArray("mods").add(obj);
+        return this;
+    }
+
+    public List<MetaInfo> getMods() {
+
+        List<MetaInfo> ret = new ArrayList<>();
+        for(JsonElement element : json.getAsJsonArray("mods")) {
+
+            JsonObject obj = element.getAsJsonObject();
+            MetaInfo mod = new MetaInfo(MetaInfo.MetaType.valueOf(obj.get("type").getAsString())).fromJson(obj.getAsJsonObject("info"));
+            if(mod == null) continue;
+            if(obj.has("md5")) mod.setMd5(obj.get("md5").getAsString());
+            ret.add(mod);
+        }
+        return ret;
+    }
+
+    public InstallManifest setFiles(JsonArray files) {
+
+        json.add("files", files.deepCopy());
+        return this;
+    }
+
+    /**
+     * @return the deploy records of every installed file
+     */
+    public JsonArray getFiles() {
+
+        return json.getAsJsonArray("files");
+    }
+
+    /**
+     * Checks every deployed file is still in place
+     * @param deep - Also compares the crc of each file, which reads all of them
+     * @return a description of each problem found, empty if the install is intact
+     */
+    public List<String> verify(boolean deep) {
+
+        List<String> ret = new ArrayList<>();
+        for(JsonElement element : getFiles()) {
+
+            JsonObject record = element.getAsJsonObject();
+            File deployed = new File(record.get("path").getAsString());
+            if(!deployed.isFile()) {
+
+                ret.add(String.format("%s is missing", deployed));
+            } else if(record.has("size") && deployed.length() != record.get("size").getAsLong()) {
+
+                ret.add(String.format("%s is %d bytes, expected %d", deployed, deployed.length(), record.get("size").getAsLong()));
+            } else if(deep && record.has("crc")) {
+
+                try {
+
+                    if(checksum(deployed) != record.get("crc").getAsLong()) ret.add(String.format("%s has been modified", deployed));
+                } catch (IOException e) {
+
+                    ret.add(String.format("%s could not be read: %s", deployed, e.getMessage()));
+                }
+            }
+        }
+        return ret;
+    }
+
+    private static File getFile(Mod mod) {
+
+        return new File(getDirectory(), getId(mod) + ".json");
+    }
+
+    private static long checksum(File file) throws IOException {
+
+        CRC32 crc = new CRC32();
+        try(InputStream in = new FileInputStream(file)) {
+
+            byte[] buffer = new byte[65536];
+            int read;
+            while((read = in.read(buffer)) >= 0) {
+
+                crc.update(buffer, 0, read);
+            }
+        }
+        return crc.getValue();
+    }
+}
@@ -0,0 +1,21 @@
+package uk.co.innoxium.baldursgate.bg3m.merge;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Combines the versions of a file several mods ship, so each mod's changes survive instead of the last mod's file winning.
+ * A merge is three way, each mod's version is compared with the base to find what that mod changed.
+ */
+public interface FileMerger {
+
+    /**
+     * Merges the versions of a file
+     * @param base - The file the mods changed, the game's own, or null if the mods added it
+     * @param layers - Each mod's version, lowest priority first, at least one
+     * @param destination - The file to write, which is none of the others
+     * @throws IOException if a file could not be read or is malformed, the destination may be left partly written
+     */
+    void merge(File base, List<File> layers, File destination) throws IOException;
+}
@@ -0,0 +1,215 @@
+package uk.co.innoxium.baldursgate.bg3m.merge;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import org.apache.commons.io.FileUtils;
+import uk.co.innoxium.baldursgate.bg3m.io.AtomicFile;
+import uk.co.innoxium.candor.util.Resources;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+
+/**
+ * The files in Data which are merged from several loose mods, by their path inside Data.
+ * Each one has the hash of the file the first mod replaced, if any, as its base,
+ * and the hash of each mod's own version in the order they were installed, all kept in the store.
+ *
+ * As every version is kept, removing a mod only merges the ones left again, nothing has to be extracted.
+ */
+public class MergedFiles {
+
+    private static final int VERSION = 1;
+    private static final Map<String, State> files = new LinkedHashMap<>();
+    private static boolean loaded = false;
+
+    /**
+     * @return true if the file is merged
+     */
+    public static synchronized boolean contains(String relative) {
+
+        load();
+        return files.containsKey(key(relative));
+    }
+
+    /**
+     * Starts merging the file
+     * @param base - The hash of the file the first mod replaced, null if the mods added it
+     */
+    public static synchronized void start(String relative, String base) {
+
+        load();
+        files.put(key(relative), new State(relative, base));
+    }
+
+    /**
+     * Adds a mod's version of the file, over every version already merged
+     */
+    public static synchronized void add(String relative, String owner, String hash) {
+
+        load();
+        State state = files.computeIfAbsent(key(relative), key -> new State(relative, null));
+        state.layers.remove(owner);
+        state.layers.put(owner, hash);
+    }
+
+    /**
+     * Removes a mod's version of the file
+     * @return true if no version is left, and the file is no longer merged
+     */
+    public static synchronized boolean remove(String relative, String owner) {
+
+        load();
+        State state = files.get(key(relative));
+        if(state == null) return true;
+        state.layers.remove(owner);
+        if(!state.layers.isEmpty()) return false;
+        files.remove(key(relative));
+        return true;
+    }
+
+    /**
+     * @return a copy of the file's state, or null if it is not merged
+     */
+    public static synchronized State get(String relative) {
+
+        load();
+        State state = files.get(key(relative));
+        if(state == null) return null;
+        State ret = new State(state.relative, state.base);
+        ret.layers.putAll(state.layers);
+        return ret;
+    }
+
+    /**
+     * @return the owner for the store of the file's base
+     */
+    public static String getBaseOwner(String relative) {
+
+        return "merge:" + key(relative);
+    }
+
+    private static String key(String relative) {
+
+        return relative.replace('\\', '/').toLowerCase(Locale.ROOT);
+    }
+
+    private static File getFile() {
+
+        return new File(Resources.CONFIG_PATH, "bg3/merges.json");
+    }
+
+    private static void load() {
+
+        if(loaded) return;
+        loaded = true;
+
+        File file = getFile();
+        if(!file.isFile()) return;
+        try(Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+
+            JsonObject json = JsonParser.parseReader(reader).getAsJsonObject();
+            if(json.get("version").getAsInt() != VERSION) return;
+            for(Map.Entry<String, JsonElement> entry : json.getAsJsonObject("files").entrySet()) {
+
+                JsonObject object = entry.getValue().getAsJsonObject();
+                State state = new State(object.get("path").getAsString(), object.has("base") ? object.get("base").getAsString() : null);
+                for(JsonElement element : object.getAsJsonArray("layers")) {
+
+                    JsonArray layer = element.getAsJsonArray();
+                    state.layers.put(layer.get(0).getAsString(), layer.get(1).getAsString());
+                }
+                files.put(entry.getKey(), state);
+            }
+        } catch (IOException | JsonParseException | IllegalStateException | NullPointerException | IndexOutOfBoundsException e) {
+
+            // Merged files are then kept as they are, until one of their mods is installed again
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Writes every merged file's state
+     */
+    public static synchronized void save() throws IOException {
+
+        load();
+        JsonObject json = new JsonObject();
+        json.addProperty("version", VERSION);
+        JsonObject object = new JsonObject();
+        files.forEach((key, state) -> {
+
+            JsonObject entry = new JsonObject();
+            entry.addProperty("path", state.relative);
+            if(state.base != null) entry.addProperty("base", state.base);
+            JsonArray layers = new JsonArray();
+            state.layers.forEach((owner, hash) -> {
+
+                JsonArray layer = new JsonArray();
+                layer.add(owner);
+                layer.add(hash);
+                layers.add(layer);
+            });
+            entry.add("layers", layers);
+            object.add(key, entry);
+        });
+        json.add("files", object);
+
+        File file = getFile();
+        File temp = null;
+        try {
+
+            FileUtils.forceMkdirParent(file);
+            temp = AtomicFile.createTemp(file);
+            Files.writeString(temp.toPath(), json.toString(), StandardCharsets.UTF_8);
+            AtomicFile.replace(temp, file);
+        } finally {
+
+            FileUtils.deleteQuietly(temp);
+        }
+    }
+
+    public static class State {
+
+        private final String relative;
+        private final String base;
+        // The hash of each mod's version, lowest priority first
+        private final LinkedHashMap<String, String> layers = new LinkedHashMap<>();
+
+        private State(String relative, String base) {
+
+            this.relative = relative;
+            this.base = base;
+        }
+
+        /**
+         * @return the hash of the file the mods replaced, or null if they added it
+         */
+        public String getBase() {
+
+            return base;
+        }
+
+        /**
+         * @return the hash of each mod's version by mod, lowest priority first
+         */
+        public Map<String, String> getLayers() {
+
+            return Collections.unmodifiableMap(layers);
+        }
+
+        /**
+         * @return the mod whose version has the highest priority, or null if there are none
+         */
+        public String getTop() {
+
+            String ret = null;
+            for(String owner : layers.keySet()) ret = owner;
+            return ret;
+        }
+    }
+}
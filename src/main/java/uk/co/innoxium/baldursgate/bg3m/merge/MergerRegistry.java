@@ -0,0 +1,42 @@
+package uk.co.innoxium.baldursgate.bg3m.merge;
+
+import uk.co.innoxium.baldursgate.bg3m.lsx.LSFMerger;
+import uk.co.innoxium.baldursgate.bg3m.lsx.LSXMerger;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The {@link FileMerger} for each type of file, by extension. Files of any other type are not merged,
+ * the mod installed last wins.
+ */
+public class MergerRegistry {
+
+    private static final Map<String, FileMerger> mergers = new ConcurrentHashMap<>();
+
+    static {
+
+        register("lsx", new LSXMerger());
+        register("lsf", new LSFMerger());
+    }
+
+    /**
+     * Merges files with the extension with the merger, replacing any merger already registered for it
+     * @param extension - The extension, without the dot
+     */
+    public static void register(String extension, FileMerger merger) {
+
+        mergers.put(extension.toLowerCase(Locale.ROOT), merger);
+    }
+
+    /**
+     * @return the merger for the file, or null if files of its type are not merged
+     */
+    public static FileMerger get(String path) {
+
+        int dot = path.lastIndexOf('.');
+        if(dot < 0 || dot < path.lastIndexOf('/')) return null;
+        return mergers.get(path.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+}
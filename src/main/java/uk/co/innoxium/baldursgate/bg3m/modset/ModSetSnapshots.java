@@ -0,0 +1,371 @@
+package uk.co.innoxium.baldursgate.bg3m.modset;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import org.apache.commons.io.FileUtils;
+import uk.co.innoxium.baldursgate.BG3Settings;
+import uk.co.innoxium.baldursgate.BaldursGateModInstaller;
+import uk.co.innoxium.baldursgate.bg3m.MetaInfo;
+import uk.co.innoxium.baldursgate.bg3m.conflict.ConflictIndex;
+import uk.co.innoxium.baldursgate.bg3m.deploy.DeployMode;
+import uk.co.innoxium.baldursgate.bg3m.deploy.Deployer;
+import uk.co.innoxium.baldursgate.bg3m.deploy.PakStore;
+import uk.co.innoxium.baldursgate.bg3m.io.AtomicFile;
+import uk.co.innoxium.baldursgate.bg3m.lsx.LSXNode;
+import uk.co.innoxium.baldursgate.bg3m.lsx.ModRegistry;
+import uk.co.innoxium.baldursgate.bg3m.lsx.ModSettingsBatch;
+import uk.co.innoxium.baldursgate.bg3m.manifest.InstallManifest;
+import uk.co.innoxium.candor.util.Logger;
+import uk.co.innoxium.candor.util.Resources;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Named sets of mods for a player profile, so switching between them only changes what differs.
+ * Each set is saved with:
+ * - the text of every Mods and ModOrder entry of the profile's modsettings.lsx, written back as it was
+ * - the deploy records of every pak mod installed for the profile, with the UUID and Folder of each of its mods
+ *
+ * A set owns the stored objects of its paks in the {@link PakStore}, so they are kept while its mods are disabled.
+ * Copied paks are stored when the set is saved, linked paks are already stored.
+ * Activating a set links the paks which are not already in place, replaces every entry of modsettings.lsx
+ * in one journaled write, see {@link ModSettingsBatch#restore(List, List)}, then unlinks the paks it does not use.
+ * Paks already in place with the same contents are not touched. Loose file mods are not part of a set.
+ * Candor's own mod states are not changed, its module API cannot set them. The {@link uk.co.innoxium.baldursgate.bg3m.installer.PAKInstaller}
+ * goes by the install manifests instead, so disabling a mod the set switched out, or enabling one it switched in, changes nothing.
+ *
+ * The sets of each profile are kept in bg3/modsets, named after the profile's folder.
+ */
+public class ModSetSnapshots {
+
+    private static final int VERSION = 1;
+
+    /**
+     * @return the names of the profile's sets, in the order they were first saved
+     */
+    public static synchronized List<String> list(File playerProfile) {
+
+        return new ArrayList<>(load(playerProfile).keySet());
+    }
+
+    /**
+     * Saves the mods installed for the profile as a set, replacing any set with the same name
+     * @param modsFolder - The Mods folder, whose store keeps the set's paks
+     * @throws IOException if modsettings.lsx could not be read, or the set could not be written
+     */
+    public static synchronized void save(File playerProfile, File modsFolder, String name) throws IOException {
+
+        if(name.isBlank()) throw new IllegalArgumentException("A mod set needs a name");
+        ModRegistry registry = ModRegistry.load(new File(playerProfile, "modsettings.lsx"));
+
+        JsonObject set = new JsonObject();
+        set.add("modules", toJson(registry.getModules()));
+        set.add("order", toJson(registry.getModOrder()));
+        JsonObject mods = new JsonObject();
+        List<String> hashes = new ArrayList<>();
+        for(InstallManifest manifest : getInstalled(playerProfile)) {
+
+            JsonObject mod = new JsonObject();
+            mod.add("files", manifest.getFiles().deepCopy());
+            JsonArray entries = new JsonArray();
+            for(MetaInfo info : manifest.getMods()) {
+
+                JsonObject entry = new JsonObject();
+                entry.addProperty("uuid", info.getUuid());
+                entry.addProperty("folder", info.getFolder());
+                entries.add(entry);
+            }
+            mod.add("entries", entries);
+            mods.add(manifest.getId(), mod);
+            hashes.addAll(getHashes(manifest.getFiles()));
+        }
+        set.add("mods", mods);
+
+        PakStore store = PakStore.forModsFolder(modsFolder);
+        store.release(getOwner(playerProfile, name));
+        // Copied paks are not stored when they are deployed, so the set keeps a copy of each.
+        // Paks recorded without a hash, or changed since, are not kept, activating the set has to install those mods again
+        for(InstallManifest manifest : getInstalled(playerProfile)) {
+
+            for(JsonElement element : manifest.getFiles()) {
+
+                if(!element.isJsonObject() || !element.getAsJsonObject().has("hash")) continue;
+                String hash = element.getAsJsonObject().get("hash").getAsString();
+                File pak = new File(getPath(element));
+                if(!store.getObject(hash).isFile() && pak.isFile()) store.putCopy(pak, hash, getOwner(playerProfile, name));
+            }
+        }
+        store.acquire(Map.of(getOwner(playerProfile, name), hashes));
+        store.save();
+
+        Map<String, JsonObject> sets = load(playerProfile);
+        sets.put(name, set);
+        write(playerProfile, sets);
+    }
+
+    /**
+     * Deletes the set, its paks are removed from the store once no mod or set uses them
+     */
+    public static synchronized void delete(File playerProfile, File modsFolder, String name) throws IOException {
+
+        Map<String, JsonObject> sets = load(playerProfile);
+        if(sets.remove(name) == null) return;
+        write(playerProfile, sets);
+        PakStore store = PakStore.forModsFolder(modsFolder);
+        store.release(getOwner(playerProfile, name));
+        store.save();
+    }
+
+    /**
+     * Switches the profile to the set. Paks in place with the same contents are left alone, the rest are linked
+     * from the store before modsettings.lsx is replaced, and paks the set does not use are unlinked after.
+     * @return a description of each mod of the set which could not be enabled, as its paks are no longer stored,
+     * those have to be installed again. Empty if the whole set is active.
+     * @throws IOException if there is no such set, or modsettings.lsx could not be written, the paks are then put back as they were
+     */
+    public static synchronized List<String> activate(File playerProfile, File modsFolder, String name) throws IOException {
+
+        JsonObject set = load(playerProfile).get(name);
+        if(set == null) throw new FileNotFoundException(String.format("There is no mod set named %s", name));
+        PakStore store = PakStore.forModsFolder(modsFolder);
+        DeployMode mode = DeployMode.fromId(BG3Settings.deployMode);
+
+        // The contents of every pak in place now, by path
+        Map<String, InstallManifest> installed = new LinkedHashMap<>();
+        Map<String, String> deployed = new HashMap<>();
+        for(InstallManifest manifest : getInstalled(playerProfile)) {
+
+            installed.put(manifest.getId(), manifest);
+            for(JsonElement element : manifest.getFiles()) {
+
+                if(element.isJsonObject() && element.getAsJsonObject().has("hash")) deployed.put(getPath(element), element.getAsJsonObject().get("hash").getAsString());
+            }
+        }
+
+        List<String> ret = new ArrayList<>();
+        ModSettingsBatch batch = new ModSettingsBatch(playerProfile).restore(getStrings(set.getAsJsonArray("modules")), getStrings(set.getAsJsonArray("order")));
+        Map<String, InstallManifest> manifests = new HashMap<>(installed);
+        Map<String, JsonArray> enabled = new LinkedHashMap<>();
+        Set<String> needed = new HashSet<>();
+        List<JsonObject> linked = new ArrayList<>();
+        Set<Path> directories = new HashSet<>();
+        try {
+
+            for(Map.Entry<String, JsonElement> entry : set.getAsJsonObject("mods").entrySet()) {
+
+                JsonObject mod = entry.getValue().getAsJsonObject();
+                JsonArray files = mod.getAsJsonArray("files").deepCopy();
+                InstallManifest manifest = manifests.computeIfAbsent(entry.getKey(), InstallManifest::load);
+                if(manifest == null || !isStored(files, deployed, store)) {
+
+                    // Left out of modsettings.lsx too, rather than registered with no pak
+                    ret.add(String.format(manifest == null ? "%s has no install manifest, it has to be installed again" : "%s is no longer stored, it has to be installed again", entry.getKey()));
+                    mod.getAsJsonArray("entries").forEach(element -> batch.remove(element.getAsJsonObject().get("uuid").getAsString(), element.getAsJsonObject().get("folder").getAsString()));
+                    continue;
+                }
+                for(JsonElement element : files) {
+
+                    JsonObject record = element.getAsJsonObject();
+                    File target = new File(getPath(record));
+                    needed.add(getPath(record));
+                    String hash = record.get("hash").getAsString();
+                    if(hash.equals(deployed.get(getPath(record))) && target.isFile()) continue;
+
+                    File source = store.getObject(hash);
+                    record.addProperty("mode", Deployer.link(source, target, mode, false).getId());
+                    record.addProperty("source", source.getAbsolutePath());
+                    linked.add(record);
+                    directories.add(target.toPath().toAbsolutePath().getParent());
+                }
+                enabled.put(entry.getKey(), files);
+            }
+            AtomicFile.syncDirectories(directories);
+
+            Map<String, List<String>> hashes = new HashMap<>();
+            enabled.forEach((id, files) -> hashes.put(id, getHashes(files)));
+            store.acquire(hashes);
+            if(!batch.apply()) throw new IOException(String.format("Could not write the modsettings.lsx of %s", playerProfile.getName()));
+        } catch (IOException | RuntimeException e) {
+
+            unlink(linked, deployed, store, mode);
+            store.release(enabled.keySet().stream().filter(id -> !installed.containsKey(id)).toList());
+            throw e;
+        }
+
+        // Unlink what the set does not use, from the mods it leaves out, or older versions of the mods it keeps
+        List<String> released = new ArrayList<>();
+        List<InstallManifest> changed = new ArrayList<>();
+        // Built from the installed manifests the first time it is used, which has to be before their paks are gone
+        ConflictIndex conflicts = ConflictIndex.get();
+        for(InstallManifest manifest : installed.values()) {
+
+            manifest.getFiles().forEach(element -> {
+
+                if(!needed.contains(getPath(element))) Deployer.undeploy(element);
+            });
+            if(enabled.containsKey(manifest.getId())) continue;
+            released.add(manifest.getId());
+            conflicts.remove(manifest.getId());
+            changed.add(manifest.setInstalled(false));
+        }
+        store.release(released);
+        store.save();
+
+        List<InstallManifest> added = new ArrayList<>();
+        enabled.forEach((id, files) -> {
+
+            InstallManifest manifest = manifests.get(id);
+            changed.add(manifest.setFiles(files).setInstalled(true));
+            if(!installed.containsKey(id)) added.add(manifest);
+        });
+        // Each manifest is synced as it is saved, which is most of the time a switch takes when done one by one
+        changed.parallelStream().forEach(ModSetSnapshots::saveManifest);
+        // Only reported, so the file tables of the paks are read after the switch is done
+        CompletableFuture.runAsync(() -> added.forEach(manifest -> ConflictIndex.get().add(manifest.getId(), ConflictIndex.readDeployedPaths(manifest))));
+        Logger.info(String.format("Switched %s to mod set %s, %d paks linked and %d mods disabled", playerProfile.getName(), name, linked.size(), released.size()));
+        return ret;
+    }
+
+    // Undoes the links made for a set, putting back the paks which were in place before where they are stored
+    private static void unlink(List<JsonObject> linked, Map<String, String> deployed, PakStore store, DeployMode mode) {
+
+        for(JsonObject record : linked) {
+
+            String previous = deployed.get(getPath(record));
+            try {
+
+                if(previous != null && store.getObject(previous).isFile()) {
+
+                    Deployer.link(store.getObject(previous), new File(getPath(record)), mode);
+                } else {
+
+                    Deployer.undeploy(record);
+                }
+            } catch (IOException e) {
+
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // Pak mods installed for the profile
+    private static List<InstallManifest> getInstalled(File playerProfile) {
+
+        return InstallManifest.loadAll().stream()
+                .filter(InstallManifest::isInstalled)
+                .filter(manifest -> !manifest.getType().equals(BaldursGateModInstaller.ModType.DATA.name()))
+                .filter(manifest -> manifest.getPlayerProfile().getAbsoluteFile().equals(playerProfile.getAbsoluteFile()))
+                .toList();
+    }
+
+    // Whether each file is already in place, or can be linked from the store
+    private static boolean isStored(JsonArray files, Map<String, String> deployed, PakStore store) {
+
+        for(JsonElement element : files) {
+
+            if(!element.isJsonObject() || !element.getAsJsonObject().has("hash")) return false;
+            String hash = element.getAsJsonObject().get("hash").getAsString();
+            if(hash.equals(deployed.get(getPath(element))) && new File(getPath(element)).isFile()) continue;
+            if(!store.getObject(hash).isFile()) return false;
+        }
+        return true;
+    }
+
+    private static String getPath(JsonElement record) {
+
+        return record.isJsonObject() ? record.getAsJsonObject().get("path").getAsString() : record.getAsString();
+    }
+
+    private static List<String> getHashes(JsonArray files) {
+
+        List<String> ret = new ArrayList<>();
+        files.forEach(element -> {
+
+            if(element.isJsonObject() && element.getAsJsonObject().has("hash")) ret.add(element.getAsJsonObject().get("hash").getAsString());
+        });
+        return ret;
+    }
+
+    private static String getOwner(File playerProfile, String name) {
+
+        return "modset:" + playerProfile.getName() + "/" + name;
+    }
+
+    private static JsonArray toJson(Collection<LSXNode> nodes) {
+
+        JsonArray ret = new JsonArray();
+        // Nodes loaded from the file always have their text
+        nodes.forEach(node -> ret.add(node.getRaw()));
+        return ret;
+    }
+
+    private static List<String> getStrings(JsonArray array) {
+
+        List<String> ret = new ArrayList<>(array.size());
+        array.forEach(element -> ret.add(element.getAsString()));
+        return ret;
+    }
+
+    private static void saveManifest(InstallManifest manifest) {
+
+        try {
+
+            manifest.save();
+        } catch (IOException e) {
+
+            e.printStackTrace();
+        }
+    }
+
+    private static File getFile(File playerProfile) {
+
+        return new File(Resources.CONFIG_PATH, "bg3/modsets/" + playerProfile.getName() + ".json");
+    }
+
+    private static Map<String, JsonObject> load(File playerProfile) {
+
+        Map<String, JsonObject> ret = new LinkedHashMap<>();
+        File file = getFile(playerProfile);
+        if(!file.isFile()) return ret;
+        try(Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+
+            JsonObject json = JsonParser.parseReader(reader).getAsJsonObject();
+            if(json.get("version").getAsInt() != VERSION) return ret;
+            json.getAsJsonObject("sets").entrySet().forEach(entry -> ret.put(entry.getKey(), entry.getValue().getAsJsonObject()));
+        } catch (IOException | JsonParseException | IllegalStateException | NullPointerException e) {
+
+            e.printStackTrace();
+        }
+        return ret;
+    }
+
+    private static void write(File playerProfile, Map<String, JsonObject> sets) throws IOException {
+
+        JsonObject object = new JsonObject();
+        sets.forEach(object::add);
+        JsonObject json = new JsonObject();
+        json.addProperty("version", VERSION);
+        json.add("sets", object);
+
+        File file = getFile(playerProfile);
+        File temp = null;
+        try {
+
+            FileUtils.forceMkdirParent(file);
+            temp = AtomicFile.createTemp(file);
+            Files.writeString(temp.toPath(), json.toString(), StandardCharsets.UTF_8);
+            AtomicFile.replace(temp, file);
+        } finally {
+
+            FileUtils.deleteQuietly(temp);
+        }
+    }
+}
@@ -0,0 +1,261 @@
+package uk.co.innoxium.baldursgate.bg3m.order;
+
+import java.util.*;
+
+/**
+ * The load order of the mods in a modsettings.lsx, kept consistent with which mods have to load before which.
+ * - a mod loads after each mod in the Dependencies of its meta.lsx, and after any mod the user pinned it after, see {@link LoadOrderPins}
+ * - mods are only moved as far as that requires, everything else keeps its place
+ * - adding a mod or a dependency moves only the mods between its two ends, which are found by searching from each end
+ * no further than the other, so the order is never sorted again from scratch. Removing a mod never breaks the order.
+ * - a dependency which would make a cycle is left out and reported, as are dependencies on mods which are not in the order
+ *
+ * Mods are known by their UUID, in any case.
+ */
+public class LoadOrder {
+
+    private final List<String> order = new ArrayList<>();
+    private final Map<String, Integer> positions = new HashMap<>();
+    // The mods each mod has to load before, and after
+    private final Map<String, Set<String>> successors = new HashMap<>();
+    private final Map<String, Set<String>> predecessors = new HashMap<>();
+    // What each mod has to load after, whether those mods are in the order or not
+    private final Map<String, Set<String>> dependencies = new HashMap<>();
+    private final List<List<String>> cycles = new ArrayList<>();
+
+    /**
+     * Builds the graph over an existing order, which is only sorted again if it breaks a dependency
+     * @param uuids - The mods in their current order
+     * @param dependencies - The mods each mod has to load after, by UUID, for any mods which may be added later as well
+     */
+    public LoadOrder(List<String> uuids, Map<String, ? extends Collection<String>> dependencies) {
+
+        dependencies.forEach((uuid, after) -> {
+
+            Set<String> set = this.dependencies.computeIfAbsent(key(uuid), k -> new LinkedHashSet<>());
+            after.forEach(dependency -> set.add(key(dependency)));
+        });
+        for(String uuid : uuids) {
+
+            String key = key(uuid);
+            if(positions.containsKey(key)) continue;
+            positions.put(key, order.size());
+            order.add(key);
+        }
+
+        boolean sorted = true;
+        for(String uuid : order) {
+
+            for(String dependency : this.dependencies.getOrDefault(uuid, Set.of())) {
+
+                if(!positions.containsKey(dependency) || dependency.equals(uuid)) continue;
+                successors.computeIfAbsent(dependency, k -> new LinkedHashSet<>()).add(uuid);
+                predecessors.computeIfAbsent(uuid, k -> new LinkedHashSet<>()).add(dependency);
+                if(positions.get(dependency) > positions.get(uuid)) sorted = false;
+            }
+        }
+        if(!sorted) sort();
+    }
+
+    /**
+     * Adds the mod at the end of the order, then moves it and anything which depends on it as far as their dependencies require.
+     * A mod already in the order has its dependencies updated instead.
+     * @param after - The mods it has to load after
+     */
+    public void add(String uuid, Collection<String> after) {
+
+        String key = key(uuid);
+        Set<String> set = new LinkedHashSet<>();
+        after.forEach(dependency -> set.add(key(dependency)));
+        dependencies.put(key, set);
+        if(!positions.containsKey(key)) {
+
+            positions.put(key, order.size());
+            order.add(key);
+            // Mods already in the order which were waiting for this one
+            for(Map.Entry<String, Set<String>> entry : dependencies.entrySet()) {
+
+                if(!entry.getKey().equals(key) && positions.containsKey(entry.getKey()) && entry.getValue().contains(key)) addEdge(key, entry.getKey());
+            }
+        }
+        set.forEach(dependency -> {
+
+            if(positions.containsKey(dependency)) addEdge(dependency, key);
+        });
+    }
+
+    /**
+     * Adds the mod with the dependencies it was given when the order was built
+     */
+    public void add(String uuid) {
+
+        add(uuid, dependencies.getOrDefault(key(uuid), Set.of()));
+    }
+
+    /**
+     * Removes the mod, the rest keep their order. Its dependencies are remembered, in case it is added again.
+     */
+    public void remove(String uuid) {
+
+        String key = key(uuid);
+        Integer position = positions.remove(key);
+        if(position == null) return;
+        order.remove((int)position);
+        for(int i = position; i < order.size(); i++) {
+
+            positions.put(order.get(i), i);
+        }
+        for(String successor : successors.getOrDefault(key, Set.of())) predecessors.get(successor).remove(key);
+        for(String predecessor : predecessors.getOrDefault(key, Set.of())) successors.get(predecessor).remove(key);
+        successors.remove(key);
+        predecessors.remove(key);
+    }
+
+    /**
+     * Removes every mod not in the list, and adds those which are missing in its order, see {@link #add(String)}
+     */
+    public void update(List<String> uuids) {
+
+        Set<String> keys = new HashSet<>();
+        uuids.forEach(uuid -> keys.add(key(uuid)));
+        new ArrayList<>(order).stream().filter(uuid -> !keys.contains(uuid)).forEach(this::remove);
+        uuids.stream().filter(uuid -> !positions.containsKey(key(uuid))).forEach(this::add);
+    }
+
+    /**
+     * @return the UUIDs in load order, lower case
+     */
+    public List<String> getOrder() {
+
+        return Collections.unmodifiableList(order);
+    }
+
+    /**
+     * @return the dependencies of each mod which are not in the order, by mod
+     */
+    public Map<String, List<String>> getMissing() {
+
+        Map<String, List<String>> ret = new LinkedHashMap<>();
+        for(String uuid : order) {
+
+            List<String> missing = dependencies.getOrDefault(uuid, Set.of()).stream().filter(dependency -> !positions.containsKey(dependency)).toList();
+            if(!missing.isEmpty()) ret.put(uuid, missing);
+        }
+        return ret;
+    }
+
+    /**
+     * @return the mods involved in each dependency which was left out as it would have made a cycle
+     */
+    public List<List<String>> getCycles() {
+
+        return Collections.unmodifiableList(cycles);
+    }
+
+    /**
+     * Sorts the whole order. Of the mods whose dependencies are all placed, the one which was first in the current order goes next.
+     * Mods in a cycle are left in their current order, after everything else.
+     */
+    public void sort() {
+
+        Map<String, Integer> remaining = new HashMap<>();
+        PriorityQueue<String> ready = new PriorityQueue<>(Comparator.comparingInt(positions::get));
+        for(String uuid : order) {
+
+            int count = predecessors.getOrDefault(uuid, Set.of()).size();
+            remaining.put(uuid, count);
+            if(count == 0) ready.add(uuid);
+        }
+        List<String> sorted = new ArrayList<>(order.size());
+        while(!ready.isEmpty()) {
+
+            String uuid = ready.poll();
+            sorted.add(uuid);
+            for(String successor : successors.getOrDefault(uuid, Set.of())) {
+
+                if(remaining.merge(successor, -1, Integer::sum) == 0) ready.add(successor);
+            }
+        }
+        if(sorted.size() < order.size()) {
+
+            List<String> cycle = order.stream().filter(uuid -> remaining.get(uuid) > 0).toList();
+            cycles.add(cycle);
+            // Their edges can not all hold, drop those between them so the order stays consistent
+            for(String uuid : cycle) {
+
+                for(String predecessor : new ArrayList<>(predecessors.getOrDefault(uuid, Set.of()))) {
+
+                    if(!cycle.contains(predecessor) || positions.get(predecessor) < positions.get(uuid)) continue;
+                    predecessors.get(uuid).remove(predecessor);
+                    successors.get(predecessor).remove(uuid);
+                }
+            }
+            sorted.addAll(cycle);
+        }
+        order.clear();
+        order.addAll(sorted);
+        for(int i = 0; i < order.size(); i++) {
+
+            positions.put(order.get(i), i);
+        }
+    }
+
+    // Makes from load before to, moving only the mods between them if it does not already
+    private void addEdge(String from, String to) {
+
+        if(from.equals(to) || successors.getOrDefault(from, Set.of()).contains(to)) return;
+        int lower = positions.get(to);
+        int upper = positions.get(from);
+        if(upper > lower) {
+
+            // Everything after to which has to stay after it, and everything before from which has to stay before it
+            Set<String> forward = new LinkedHashSet<>();
+            if(!search(to, upper, true, forward, from)) {
+
+                List<String> cycle = new ArrayList<>(forward);
+                cycle.add(0, from);
+                cycles.add(cycle);
+                return;
+            }
+            Set<String> backward = new LinkedHashSet<>();
+            search(from, lower, false, backward, null);
+
+            // The backward set takes the first of their positions, in their current order, then the forward set
+            List<String> moved = new ArrayList<>();
+            backward.stream().sorted(Comparator.comparingInt(positions::get)).forEach(moved::add);
+            forward.stream().sorted(Comparator.comparingInt(positions::get)).forEach(moved::add);
+            List<Integer> slots = moved.stream().map(positions::get).sorted().toList();
+            for(int i = 0; i < moved.size(); i++) {
+
+                order.set(slots.get(i), moved.get(i));
+                positions.put(moved.get(i), slots.get(i));
+            }
+        }
+        successors.computeIfAbsent(from, k -> new LinkedHashSet<>()).add(to);
+        predecessors.computeIfAbsent(to, k -> new LinkedHashSet<>()).add(from);
+    }
+
+    // Collects the mods reachable from start within the bound, false if it reaches the one which would make a cycle
+    private boolean search(String start, int bound, boolean forward, Set<String> found, String stop) {
+
+        Deque<String> stack = new ArrayDeque<>();
+        stack.push(start);
+        found.add(start);
+        while(!stack.isEmpty()) {
+
+            String uuid = stack.pop();
+            for(String next : (forward ? successors : predecessors).getOrDefault(uuid, Set.of())) {
+
+                if(next.equals(stop)) return false;
+                int position = positions.get(next);
+                if((forward ? position <= bound : position >= bound) && found.add(next)) stack.push(next);
+            }
+        }
+        return true;
+    }
+
+    private static String key(String uuid) {
+
+        return uuid.toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,116 @@
+package uk.co.innoxium.baldursgate.bg3m.order;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import org.apache.commons.io.FileUtils;
+import uk.co.innoxium.baldursgate.bg3m.io.AtomicFile;
+import uk.co.innoxium.candor.util.Resources;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+
+/**
+ * The mods the user has pinned to load after other mods, on top of their dependencies, see {@link LoadOrder}.
+ * Pins are kept by UUID, so they outlive the mods being disabled and enabled again.
+ */
+public class LoadOrderPins {
+
+    private static final int VERSION = 1;
+    // Lower case UUID to the UUIDs it loads after
+    private static final Map<String, Set<String>> pins = new LinkedHashMap<>();
+    private static boolean loaded = false;
+
+    /**
+     * Pins the mod to load after another
+     */
+    public static synchronized void pin(String uuid, String after) throws IOException {
+
+        load();
+        if(pins.computeIfAbsent(key(uuid), k -> new LinkedHashSet<>()).add(key(after))) save();
+    }
+
+    public static synchronized void unpin(String uuid, String after) throws IOException {
+
+        load();
+        Set<String> set = pins.get(key(uuid));
+        if(set == null || !set.remove(key(after))) return;
+        if(set.isEmpty()) pins.remove(key(uuid));
+        save();
+    }
+
+    /**
+     * @return a copy of every pin, the mods each mod loads after by UUID
+     */
+    public static synchronized Map<String, Set<String>> get() {
+
+        load();
+        Map<String, Set<String>> ret = new LinkedHashMap<>();
+        pins.forEach((uuid, after) -> ret.put(uuid, new LinkedHashSet<>(after)));
+        return ret;
+    }
+
+    private static String key(String uuid) {
+
+        return uuid.toLowerCase(Locale.ROOT);
+    }
+
+    private static File getFile() {
+
+        return new File(Resources.CONFIG_PATH, "bg3/pins.json");
+    }
+
+    private static void load() {
+
+        if(loaded) return;
+        loaded = true;
+
+        File file = getFile();
+        if(!file.isFile()) return;
+        try(Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+
+            JsonObject json = JsonParser.parseReader(reader).getAsJsonObject();
+            if(json.get("version").getAsInt() != VERSION) return;
+            for(Map.Entry<String, JsonElement> entry : json.getAsJsonObject("pins").entrySet()) {
+
+                Set<String> set = new LinkedHashSet<>();
+                entry.getValue().getAsJsonArray().forEach(element -> set.add(element.getAsString()));
+                pins.put(entry.getKey(), set);
+            }
+        } catch (IOException | JsonParseException | IllegalStateException | NullPointerException e) {
+
+            e.printStackTrace();
+        }
+    }
+
+    private static void save() throws IOException {
+
+        JsonObject object = new JsonObject();
+        pins.forEach((uuid, after) -> {
+
+            JsonArray array = new JsonArray();
+            after.forEach(array::add);
+            object.add(uuid, array);
+        });
+        JsonObject json = new JsonObject();
+        json.addProperty("version", VERSION);
+        json.add("pins", object);
+
+        File file = getFile();
+        File temp = null;
+        try {
+
+            FileUtils.forceMkdirParent(file);
+            temp = AtomicFile.createTemp(file);
+            Files.writeString(temp.toPath(), json.toString(), StandardCharsets.UTF_8);
+            AtomicFile.replace(temp, file);
+        } finally {
+
+            FileUtils.deleteQuietly(temp);
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package uk.co.innoxium.baldursgate.bg3m.pak;
+
+import uk.co.innoxium.baldursgate.bg3m.lsx.LSXDocument;
+import uk.co.innoxium.baldursgate.bg3m.lsx.LSXNode;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/**
+ * Reads Larian LSF files, the binary form of LSX, versions 1 to 7, into the same {@link LSXDocument} as LSX.
+ * The file is read whole and each section decompressed once, the node and attribute tables are then read
+ * in place by index rather than into objects of their own.
+ *
+ * The layout, all little endian:
+ * - "LSOF", the version, and the engine version, 64 bit from version 5
+ * - the uncompressed and on disk size of each section, strings, from version 6 keys, nodes, attributes and values,
+ * then the compression flags and whether nodes have sibling data
+ * - each section in turn, strings, nodes, attributes, values, then keys, an on disk size of 0 meaning it is stored uncompressed.
+ * From version 2 every section but the strings is an LZ4 frame rather than a single block
+ * - the strings are a hash table of names, each referenced as the bucket in the high 16 bits and the index in it in the low
+ * - a node is its name, parent, next sibling and first attribute, or with no sibling data its name, first attribute and parent
+ * - an attribute is its name, type in the low 6 bits and length in the rest, next attribute and offset into the values,
+ * or with no sibling data its name, type and length, and node, its value following the previous one's
+ * - a key is a node and the name of the attribute its children are keyed by
+ *
+ * Nodes with no parent are the regions, each named after its root node.
+ */
+public class LSFReader {
+
+    static final int SIGNATURE = 0x464F534C; // LSOF
+    static final int MAX_VERSION = 7;
+
+    static final int COMPRESSION_NONE = 0;
+    static final int COMPRESSION_ZLIB = 1;
+    static final int COMPRESSION_LZ4 = 2;
+
+    public static LSXDocument read(File file) throws IOException {
+
+        try {
+
+            // Read rather than mapped, on Windows a mapped file cannot be replaced until the mapping is collected
+            return read(ByteBuffer.wrap(Files.readAllBytes(file.toPath())));
+        } catch (IOException e) {
+
+            throw new IOException(String.format("Could not read %s: %s", file.getName(), e.getMessage()), e);
+        }
+    }
+
+    /**
+     * @throws IOException if the file is malformed, or uses a version or compression which is not supported
+     */
+    public static LSXDocument read(ByteBuffer buffer) throws IOException {
+
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        try {
+
+            if(buffer.limit() < 8 || buffer.getInt(0) != SIGNATURE) throw new IOException("Not an LSF file");
+            int version = buffer.getInt(4);
+            if(version < 1 || version > MAX_VERSION) throw new IOException(String.format("LSF version %d is not supported", version));
+
+            int p = 8;
+            LSXDocument ret;
+            if(version >= 5) {
+
+                long engine = buffer.getLong(p);
+                ret = new LSXDocument((int)((engine >>> 55) & 0x7F), (int)((engine >>> 47) & 0xFF), (int)((engine >>> 31) & 0xFFFF), (int)(engine & 0x7FFFFFFF));
+                p += 8;
+            } else {
+
+                int engine = buffer.getInt(p);
+                ret = new LSXDocument((engine >>> 28) & 0x0F, (engine >>> 24) & 0x0F, (engine >>> 16) & 0xFF, engine & 0xFFFF);
+                p += 4;
+            }
+
+            int stringsSize = buffer.getInt(p);
+            int stringsDisk = buffer.getInt(p + 4);
+            p += 8;
+            int keysSize = 0;
+            int keysDisk = 0;
+            if(version >= 6) {
+
+                keysSize = buffer.getInt(p);
+                keysDisk = buffer.getInt(p + 4);
+                p += 8;
+            }
+            int nodesSize = buffer.getInt(p);
+            int nodesDisk = buffer.getInt(p + 4);
+            int attributesSize = buffer.getInt(p + 8);
+            int attributesDisk = buffer.getInt(p + 12);
+            int valuesSize = buffer.getInt(p + 16);
+            int valuesDisk = buffer.getInt(p + 20);
+            int compression = buffer.get(p + 24) & 0xFF;
+            boolean siblings = version >= 3 && buffer.getInt(p + 28) == 1;
+            p += 32;
+
+            boolean chunked = version >= 2;
+            ByteBuffer strings = section(buffer, p, stringsDisk, stringsSize, compression, false);
+            p += onDisk(stringsDisk, stringsSize);
+            ByteBuffer nodes = section(buffer, p, nodesDisk, nodesSize, compression, chunked);
+            p += onDisk(nodesDisk, nodesSize);
+            ByteBuffer attributes = section(buffer, p, attributesDisk, attributesSize, compression, chunked);
+            p += onDisk(attributesDisk, attributesSize);
+            ByteBuffer values = section(buffer, p, valuesDisk, valuesSize, compression, chunked);
+            p += onDisk(valuesDisk, valuesSize);
+            ByteBuffer keys = section(buffer, p, keysDisk, keysSize, compression, chunked);
+
+            String[][] names = readNames(strings);
+            LSXNode[] tree = readNodes(nodes, siblings, names, ret);
+            readAttributes(attributes, values, siblings, names, tree, nodes, version);
+            for(int i = 0; i + 8 <= keys.limit(); i += 8) {
+
+                int node = keys.getInt(i);
+                if(node < 0 || node >= tree.length) throw new IOException(String.format("Key for node %d, which does not exist", node));
+                tree[node].setTagAttribute("key", name(names, keys.getInt(i + 4)));
+            }
+            return ret;
+        } catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+
+            throw new IOException("Malformed LSF, a section runs past its end", e);
+        }
+    }
+
+    private static int onDisk(int disk, int size) {
+
+        return disk == 0 ? size : disk;
+    }
+
+    private static ByteBuffer section(ByteBuffer buffer, int offset, int disk, int size, int compression, boolean chunked) throws IOException {
+
+        if(size == 0) return ByteBuffer.allocate(0).order(ByteOrder.LITTLE_ENDIAN);
+        int length = onDisk(disk, size);
+        if(offset + length > buffer.limit()) throw new IOException("Malformed LSF, a section runs past the end of the file");
+        byte[] bytes = new byte[length];
+        buffer.get(offset, bytes);
+
+        byte[] ret;
+        if(disk == 0) {
+
+            ret = bytes;
+        } else {
+
+            ret = switch(compression & 0x0F) {
+
+                case COMPRESSION_NONE -> bytes;
+                case COMPRESSION_ZLIB -> LSPKReader.inflate(bytes, size);
+                case COMPRESSION_LZ4 -> chunked ? LZ4.decompressFrame(bytes, 0, length, size) : LZ4.decompress(bytes, 0, length, size);
+                default -> throw new IOException(String.format("LSF compression method %d is not supported", compression & 0x0F));
+            };
+        }
+        return ByteBuffer.wrap(ret).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static String[][] readNames(ByteBuffer strings) {
+
+        int buckets = strings.getInt(0);
+        String[][] ret = new String[buckets][];
+        int p = 4;
+        for(int i = 0; i < buckets; i++) {
+
+            int count = strings.getShort(p) & 0xFFFF;
+            p += 2;
+            ret[i] = new String[count];
+            for(int j = 0; j < count; j++) {
+
+                int length = strings.getShort(p) & 0xFFFF;
+                ret[i][j] = decode(strings, p + 2, length);
+                p += 2 + length;
+            }
+        }
+        return ret;
+    }
+
+    private static String decode(ByteBuffer buffer, int offset, int length) {
+
+        if(buffer.hasArray()) return new String(buffer.array(), buffer.arrayOffset() + offset, length, StandardCharsets.UTF_8);
+        byte[] bytes = new byte[length];
+        buffer.get(offset, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static String name(String[][] names, int ref) throws IOException {
+
+        int bucket = ref >>> 16;
+        int index = ref & 0xFFFF;
+        if(bucket >= names.length || index >= names[bucket].length) throw new IOException(String.format("Malformed LSF, name %08x does not exist", ref));
+        return names[bucket][index];
+    }
+
+    private static LSXNode[] readNodes(ByteBuffer nodes, boolean siblings, String[][] names, LSXDocument document) throws IOException {
+
+        int size = siblings ? 16 : 12;
+        LSXNode[] ret = new LSXNode[nodes.limit() / size];
+        for(int i = 0; i < ret.length; i++) {
+
+            int p = i * size;
+            ret[i] = new LSXNode(name(names, nodes.getInt(p)));
+            int parent = nodes.getInt(p + (siblings ? 4 : 8));
+            if(parent < 0) {
+
+                document.addRegion(ret[i].getId(), ret[i]);
+            } else if(parent < i) {
+
+                ret[parent].addChild(ret[i]);
+            } else {
+
+                throw new IOException(String.format("Malformed LSF, node %d comes before its parent %d", i, parent));
+            }
+        }
+        return ret;
+    }
+
+    private static void readAttributes(ByteBuffer attributes, ByteBuffer values, boolean siblings, String[][] names, LSXNode[] tree, ByteBuffer nodes, int version) throws IOException {
+
+        int size = siblings ? 16 : 12;
+        int count = attributes.limit() / size;
+        if(!siblings) {
+
+            // Each value follows the last, and attributes are in the order of their nodes
+            int offset = 0;
+            for(int i = 0; i < count; i++) {
+
+                int p = i * size;
+                int typeAndLength = attributes.getInt(p + 4);
+                int node = attributes.getInt(p + 8);
+                if(node < 0 || node >= tree.length) throw new IOException(String.format("Malformed LSF, attribute %d is on node %d, which does not exist", i, node));
+                tree[node].addAttribute(LSFTypes.read(name(names, attributes.getInt(p)), typeAndLength & 0x3F, values, offset, typeAndLength >>> 6, version));
+                offset += typeAndLength >>> 6;
+            }
+            return;
+        }
+
+        for(int i = 0; i < tree.length; i++) {
+
+            int steps = 0;
+            for(int a = nodes.getInt(i * 16 + 12); a >= 0; a = attributes.getInt(a * size + 8)) {
+
+                if(a >= count || steps++ > count) throw new IOException(String.format("Malformed LSF, the attributes of node %d do not end", i));
+                int p = a * size;
+                int typeAndLength = attributes.getInt(p + 4);
+                tree[i].addAttribute(LSFTypes.read(name(names, attributes.getInt(p)), typeAndLength & 0x3F, values, attributes.getInt(p + 12), typeAndLength >>> 6, version));
+            }
+        }
+    }
+}
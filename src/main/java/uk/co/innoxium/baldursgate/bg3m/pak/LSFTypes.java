@@ -0,0 +1,350 @@
+package uk.co.innoxium.baldursgate.bg3m.pak;
+
+import uk.co.innoxium.baldursgate.bg3m.lsx.LSXAttribute;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * The attribute types of LSF files, by their id in the file, and how each is converted to and from its LSX text.
+ * - numbers, vectors and matrices are their components separated by spaces
+ * - strings are UTF-8 with a null terminator, which is counted in their length
+ * - a guid is stored the way .NET lays out a Guid, with the last 8 bytes swapped in pairs as BG3 expects
+ * - a TranslatedString is its version then its handle, which LSX has as parts of the attribute instead of a value
+ */
+class LSFTypes {
+
+    static final int NONE = 0;
+    static final int TRANSLATED_STRING = 28;
+    static final int GUID = 31;
+    static final int TRANSLATED_FS_STRING = 33;
+
+    private static final String[] NAMES = {
+
+            "None", "uint8", "int16", "uint16", "int32", "uint32", "float", "double",
+            "ivec2", "ivec3", "ivec4", "fvec2", "fvec3", "fvec4",
+            "mat2x2", "mat3x3", "mat3x4", "mat4x3", "mat4x4", "bool",
+            "string", "path", "FixedString", "LSString", "uint64", "ScratchBuffer", "old_int64", "int8",
+            "TranslatedString", "WString", "LSWString", "guid", "int64", "TranslatedFSString"
+    };
+    private static final Map<String, Integer> IDS = new HashMap<>();
+
+    static {
+
+        for(int i = 0; i < NAMES.length; i++) IDS.put(NAMES[i], i);
+    }
+
+    static String getName(int type) throws IOException {
+
+        if(type < 0 || type >= NAMES.length) throw new IOException(String.format("Unknown LSF attribute type %d", type));
+        return NAMES[type];
+    }
+
+    /**
+     * @return the id of the type, given its name or, as older LSX files have it, its number
+     */
+    static int getId(String name) throws IOException {
+
+        Integer ret = IDS.get(name);
+        if(ret != null) return ret;
+        try {
+
+            int id = Integer.parseInt(name);
+            getName(id);
+            return id;
+        } catch (NumberFormatException e) {
+
+            throw new IOException(String.format("Unknown LSX attribute type %s", name));
+        }
+    }
+
+    /**
+     * Reads a value from the values section into an attribute
+     * @param values - The values section, little endian
+     * @param offset - Where the value starts
+     * @param length - The length of the value
+     * @param version - The version of the LSF file
+     */
+    static LSXAttribute read(String id, int type, ByteBuffer values, int offset, int length, int version) throws IOException {
+
+        String name = getName(type);
+        return switch(type) {
+
+            case 1 -> new LSXAttribute(id, name, String.valueOf(values.get(offset) & 0xFF));
+            case 2 -> new LSXAttribute(id, name, String.valueOf(values.getShort(offset)));
+            case 3 -> new LSXAttribute(id, name, String.valueOf(values.getShort(offset) & 0xFFFF));
+            case 4 -> new LSXAttribute(id, name, String.valueOf(values.getInt(offset)));
+            case 5 -> new LSXAttribute(id, name, Integer.toUnsignedString(values.getInt(offset)));
+            case 6 -> new LSXAttribute(id, name, format(values.getFloat(offset)));
+            case 7 -> new LSXAttribute(id, name, format(values.getDouble(offset)));
+            case 8, 9, 10 -> new LSXAttribute(id, name, readInts(values, offset, type - 6));
+            case 11, 12, 13 -> new LSXAttribute(id, name, readFloats(values, offset, type - 9));
+            case 14, 15, 16, 17, 18 -> new LSXAttribute(id, name, readFloats(values, offset, getSize(type) / 4));
+            case 19 -> new LSXAttribute(id, name, values.get(offset) != 0 ? "True" : "False");
+            case 20, 21, 22, 23, 29, 30 -> new LSXAttribute(id, name, readString(values, offset, length));
+            case 24 -> new LSXAttribute(id, name, Long.toUnsignedString(values.getLong(offset)));
+            case 25 -> {
+
+                byte[] bytes = new byte[length];
+                values.get(offset, bytes);
+                yield new LSXAttribute(id, name, Base64.getEncoder().encodeToString(bytes));
+            }
+            case 26, 32 -> new LSXAttribute(id, name, String.valueOf(values.getLong(offset)));
+            case 27 -> new LSXAttribute(id, name, String.valueOf(values.get(offset)));
+            case TRANSLATED_STRING, TRANSLATED_FS_STRING -> readTranslatedString(id, type, values, offset, length, version);
+            case GUID -> new LSXAttribute(id, name, readGuid(values, offset));
+            default -> new LSXAttribute(id, name, null);
+        };
+    }
+
+    /**
+     * Writes an attribute's value to the end of the values section
+     * @return the number of bytes written
+     */
+    static int write(LSXAttribute attribute, int type, Buffer values) throws IOException {
+
+        String value = attribute.getValue();
+        try {
+
+            switch(type) {
+
+                case 1, 19, 27 -> values.grow(1).put(type == 19 ? (byte)(parseBool(value) ? 1 : 0) : (byte)Integer.parseInt(value.trim()));
+                case 2, 3 -> values.grow(2).putShort((short)Integer.parseInt(value.trim()));
+                case 4 -> values.grow(4).putInt(Integer.parseInt(value.trim()));
+                case 5 -> values.grow(4).putInt(Integer.parseUnsignedInt(value.trim()));
+                case 6 -> values.grow(4).putFloat(Float.parseFloat(value.trim()));
+                case 7 -> values.grow(8).putDouble(Double.parseDouble(value.trim()));
+                case 8, 9, 10 -> {
+
+                    ByteBuffer buffer = values.grow(getSize(type));
+                    for(String part : split(value, type - 6)) buffer.putInt(Integer.parseInt(part));
+                }
+                case 11, 12, 13, 14, 15, 16, 17, 18 -> {
+
+                    ByteBuffer buffer = values.grow(getSize(type));
+                    for(String part : split(value, getSize(type) / 4)) buffer.putFloat(Float.parseFloat(part));
+                }
+                case 20, 21, 22, 23, 29, 30 -> {
+
+                    return writeString(value, values);
+                }
+                case 24 -> values.grow(8).putLong(Long.parseUnsignedLong(value.trim()));
+                case 25 -> {
+
+                    byte[] bytes = Base64.getDecoder().decode(value != null ? value.trim() : "");
+                    values.grow(bytes.length).put(bytes);
+                    return bytes.length;
+                }
+                case 26, 32 -> values.grow(8).putLong(Long.parseLong(value.trim()));
+                case TRANSLATED_STRING, TRANSLATED_FS_STRING -> {
+
+                    String version = attribute.getExtra().getOrDefault("version", "0");
+                    values.grow(2).putShort((short)Integer.parseInt(version.trim()));
+                    int ret = 2 + 4 + writeLength(attribute.getExtra().get("handle"), values);
+                    if(type == TRANSLATED_FS_STRING) {
+
+                        // Arguments are not kept in the LSX model, see readTranslatedString
+                        values.grow(4).putInt(0);
+                        ret += 4;
+                    }
+                    return ret;
+                }
+                case GUID -> writeGuid(value, values.grow(16));
+                default -> {
+
+                    return 0;
+                }
+            }
+        } catch (NumberFormatException | NullPointerException e) {
+
+            throw new IOException(String.format("%s is not a valid %s for %s", value, getName(type), attribute.getId()), e);
+        }
+        return getSize(type);
+    }
+
+    // The size of a fixed size type, or 0 for one whose length is in the file
+    private static int getSize(int type) {
+
+        return switch(type) {
+
+            case 1, 19, 27 -> 1;
+            case 2, 3 -> 2;
+            case 4, 5, 6 -> 4;
+            case 7, 8, 11, 24, 26, 32 -> 8;
+            case 9, 12 -> 12;
+            case 10, 13, 14, GUID -> 16;
+            case 15 -> 36;
+            case 16, 17 -> 48;
+            case 18 -> 64;
+            default -> 0;
+        };
+    }
+
+    private static LSXAttribute readTranslatedString(String id, int type, ByteBuffer values, int offset, int length, int version) throws IOException {
+
+        Map<String, String> extra = new LinkedHashMap<>();
+        int p = offset;
+        String value = null;
+        if(version >= 4) {
+
+            extra.put("version", String.valueOf(values.getShort(p) & 0xFFFF));
+            p += 2;
+        } else {
+
+            int valueLength = values.getInt(p);
+            value = readString(values, p + 4, valueLength);
+            p += 4 + valueLength;
+        }
+        int handleLength = values.getInt(p);
+        // The handle comes first in LSX
+        Map<String, String> ordered = new LinkedHashMap<>();
+        ordered.put("handle", readString(values, p + 4, handleLength));
+        ordered.putAll(extra);
+        p += 4 + handleLength;
+        if(type == TRANSLATED_FS_STRING && p + 4 <= offset + length && values.getInt(p) != 0) {
+
+            throw new IOException(String.format("%s is a TranslatedFSString with arguments, which are not supported", id));
+        }
+        return new LSXAttribute(id, getName(type), value, ordered);
+    }
+
+    private static String readString(ByteBuffer values, int offset, int length) {
+
+        // Without the null terminator
+        int end = offset + length;
+        while(end > offset && values.get(end - 1) == 0) end--;
+        byte[] bytes = new byte[end - offset];
+        values.get(offset, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int writeString(String value, Buffer values) {
+
+        byte[] bytes = (value != null ? value : "").getBytes(StandardCharsets.UTF_8);
+        values.grow(bytes.length + 1).put(bytes).put((byte)0);
+        return bytes.length + 1;
+    }
+
+    // A string prefixed with its length, as in a TranslatedString
+    private static int writeLength(String value, Buffer values) {
+
+        byte[] bytes = (value != null ? value : "").getBytes(StandardCharsets.UTF_8);
+        values.grow(4 + bytes.length + 1).putInt(bytes.length + 1).put(bytes).put((byte)0);
+        return bytes.length + 1;
+    }
+
+    private static String readInts(ByteBuffer values, int offset, int count) {
+
+        StringBuilder builder = new StringBuilder();
+        for(int i = 0; i < count; i++) {
+
+            if(i > 0) builder.append(' ');
+            builder.append(values.getInt(offset + i * 4));
+        }
+        return builder.toString();
+    }
+
+    private static String readFloats(ByteBuffer values, int offset, int count) {
+
+        StringBuilder builder = new StringBuilder();
+        for(int i = 0; i < count; i++) {
+
+            if(i > 0) builder.append(' ');
+            builder.append(format(values.getFloat(offset + i * 4)));
+        }
+        return builder.toString();
+    }
+
+    // Whole numbers without the .0, as LSLib writes them
+    private static String format(double value) {
+
+        if(value == Math.rint(value) && Math.abs(value) < 1e15) return String.valueOf((long)value);
+        return String.valueOf(value);
+    }
+
+    private static String format(float value) {
+
+        if(value == Math.rint(value) && Math.abs(value) < 1e7f) return String.valueOf((long)value);
+        return String.valueOf(value);
+    }
+
+    private static boolean parseBool(String value) {
+
+        return value.trim().equalsIgnoreCase("true") || value.trim().equals("1");
+    }
+
+    private static String[] split(String value, int count) {
+
+        String[] ret = value.trim().split("\\s+");
+        if(ret.length != count) throw new NumberFormatException(String.format("expected %d components", count));
+        return ret;
+    }
+
+    private static String readGuid(ByteBuffer values, int offset) {
+
+        byte[] b = new byte[16];
+        values.get(offset, b);
+        StringBuilder builder = new StringBuilder(36);
+        // The first three groups are little endian, the rest swapped in pairs
+        int[] order = { 3, 2, 1, 0, -1, 5, 4, -1, 7, 6, -1, 9, 8, -1, 11, 10, 13, 12, 15, 14 };
+        for(int i : order) {
+
+            if(i < 0) builder.append('-');
+            else builder.append(Character.forDigit((b[i] >> 4) & 0xF, 16)).append(Character.forDigit(b[i] & 0xF, 16));
+        }
+        return builder.toString();
+    }
+
+    private static void writeGuid(String value, ByteBuffer buffer) {
+
+        String hex = value.trim().replace("-", "");
+        if(hex.length() != 32) throw new NumberFormatException("a guid has 32 digits");
+        byte[] b = new byte[16];
+        int[] order = { 3, 2, 1, 0, 5, 4, 7, 6, 9, 8, 11, 10, 13, 12, 15, 14 };
+        for(int i = 0; i < 16; i++) {
+
+            b[order[i]] = (byte)Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        buffer.put(b);
+    }
+
+    /**
+     * A little endian buffer which grows as it is written to
+     */
+    static class Buffer {
+
+        private ByteBuffer buffer = ByteBuffer.allocate(4096).order(java.nio.ByteOrder.LITTLE_ENDIAN);
+
+        /**
+         * @return the buffer, with room for at least the given number of bytes
+         */
+        ByteBuffer grow(int needed) {
+
+            if(buffer.remaining() < needed) {
+
+                ByteBuffer ret = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + needed)).order(java.nio.ByteOrder.LITTLE_ENDIAN);
+                buffer.flip();
+                ret.put(buffer);
+                buffer = ret;
+            }
+            return buffer;
+        }
+
+        int size() {
+
+            return buffer.position();
+        }
+
+        ByteBuffer raw() {
+
+            return buffer;
+        }
+
+        byte[] toArray() {
+
+            return Arrays.copyOf(buffer.array(), buffer.position());
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package uk.co.innoxium.baldursgate.bg3m.pak;
+
+import uk.co.innoxium.baldursgate.bg3m.lsx.LSXAttribute;
+import uk.co.innoxium.baldursgate.bg3m.lsx.LSXDocument;
+import uk.co.innoxium.baldursgate.bg3m.lsx.LSXNode;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+
+/**
+ * Writes an {@link LSXDocument} as an LSF file, in the layout described by {@link LSFReader}.
+ * - version 6, or 7 if any node has a key, with nodes and attributes which have sibling data
+ * - every name is written once to the string table, and referenced from there
+ * - the strings are a single LZ4 block, every other section an LZ4 frame
+ */
+public class LSFWriter {
+
+    private static final int VERSION = 6;
+    private static final int VERSION_NODE_KEYS = 7;
+    private static final int BUCKETS = 0x200;
+    // LZ4 at the default level
+    private static final int COMPRESSION = LSFReader.COMPRESSION_LZ4 | 0x20;
+
+    private final List<List<String>> buckets = new ArrayList<>();
+    private final Map<String, Integer> refs = new HashMap<>();
+    private final LSFTypes.Buffer nodes = new LSFTypes.Buffer();
+    private final LSFTypes.Buffer attributes = new LSFTypes.Buffer();
+    private final LSFTypes.Buffer values = new LSFTypes.Buffer();
+    private final LSFTypes.Buffer keys = new LSFTypes.Buffer();
+    private int nodeCount = 0;
+    private int attributeCount = 0;
+
+    private LSFWriter() {
+
+        for(int i = 0; i < BUCKETS; i++) buckets.add(new ArrayList<>());
+    }
+
+    public static void write(LSXDocument document, File file) throws IOException {
+
+        Files.write(file.toPath(), write(document));
+    }
+
+    /**
+     * @throws IOException if an attribute has a type LSF does not have, or a value which is not valid for its type
+     */
+    public static byte[] write(LSXDocument document) throws IOException {
+
+        LSFWriter writer = new LSFWriter();
+        int previous = -1;
+        for(LSXNode region : document.getRegions().values()) {
+
+            int index = writer.writeNode(region, -1);
+            if(previous >= 0) writer.nodes.raw().putInt(previous * 16 + 8, index);
+            previous = index;
+        }
+        return writer.finish(document);
+    }
+
+    // Writes the node, its attributes, then its children, and returns its index
+    private int writeNode(LSXNode node, int parent) throws IOException {
+
+        int index = nodeCount++;
+        Collection<LSXAttribute> list = node.getAttributes();
+        nodes.grow(16).putInt(name(node.getId())).putInt(parent).putInt(-1).putInt(list.isEmpty() ? -1 : attributeCount);
+        if(node.getTagAttribute("key") != null) keys.grow(8).putInt(index).putInt(name(node.getTagAttribute("key")));
+
+        int remaining = list.size();
+        for(LSXAttribute attribute : list) {
+
+            int type = LSFTypes.getId(attribute.getType());
+            int offset = values.size();
+            int length = LSFTypes.write(attribute, type, values);
+            if(length >= 1 << 26) throw new IOException(String.format("%s is too long for LSF", attribute.getId()));
+            attributeCount++;
+            attributes.grow(16).putInt(name(attribute.getId())).putInt(length << 6 | type).putInt(--remaining > 0 ? attributeCount : -1).putInt(offset);
+        }
+
+        int previous = -1;
+        for(LSXNode child : node.getChildren()) {
+
+            int childIndex = writeNode(child, index);
+            if(previous >= 0) nodes.raw().putInt(previous * 16 + 8, childIndex);
+            previous = childIndex;
+        }
+        return index;
+    }
+
+    // Interns the name in the string table
+    private int name(String name) throws IOException {
+
+        Integer ret = refs.get(name);
+        if(ret != null) return ret;
+
+        int hash = name.hashCode();
+        int bucket = (hash & 0x1FF) ^ ((hash >>> 9) & 0x1FF) ^ ((hash >>> 18) & 0x1FF) ^ ((hash >>> 27) & 0x1FF);
+        List<String> chain = buckets.get(bucket);
+        if(chain.size() >= 0xFFFF) throw new IOException("Too many names for an LSF string table");
+        ret = bucket << 16 | chain.size();
+        chain.add(name);
+        refs.put(name, ret);
+        return ret;
+    }
+
+    private byte[] finish(LSXDocument document) throws IOException {
+
+        LSFTypes.Buffer strings = new LSFTypes.Buffer();
+        strings.grow(4).putInt(BUCKETS);
+        for(List<String> chain : buckets) {
+
+            strings.grow(2).putShort((short)chain.size());
+            for(String name : chain) {
+
+                byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+                if(bytes.length > 0xFFFF) throw new IOException(String.format("The name %s is too long for LSF", name));
+                strings.grow(2 + bytes.length).putShort((short)bytes.length).put(bytes);
+            }
+        }
+
+        byte[][] sections = {
+
+                LZ4.compress(strings.toArray(), 0, strings.size()),
+                compress(keys),
+                compress(nodes),
+                compress(attributes),
+                compress(values)
+        };
+        int[] sizes = { strings.size(), keys.size(), nodes.size(), attributes.size(), values.size() };
+
+        int total = 8 + 8 + sizes.length * 8 + 8;
+        for(byte[] section : sections) total += section.length;
+        ByteBuffer ret = ByteBuffer.allocate(total).order(ByteOrder.LITTLE_ENDIAN);
+        ret.putInt(LSFReader.SIGNATURE);
+        ret.putInt(keys.size() > 0 ? VERSION_NODE_KEYS : VERSION);
+        ret.putLong((long)(document.getVersion("major") & 0x7F) << 55 | (long)(document.getVersion("minor") & 0xFF) << 47
+                | (long)(document.getVersion("revision") & 0xFFFF) << 31 | (document.getVersion("build") & 0x7FFFFFFFL));
+        for(int i = 0; i < sections.length; i++) {
+
+            ret.putInt(sizes[i]);
+            ret.putInt(sections[i].length);
+        }
+        ret.put((byte)COMPRESSION);
+        ret.put((byte)0);
+        ret.putShort((short)0);
+        // Nodes have sibling data
+        ret.putInt(1);
+        // On disk in a different order from the sizes
+        for(int i : new int[] { 0, 2, 3, 4, 1 }) ret.put(sections[i]);
+        return ret.array();
+    }
+
+    private static byte[] compress(LSFTypes.Buffer section) {
+
+        if(section.size() == 0) return new byte[0];
+        return LZ4.compressFrame(section.raw().array(), 0, section.size());
+    }
+}
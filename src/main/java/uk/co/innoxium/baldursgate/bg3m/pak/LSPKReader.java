@@ -0,0 +1,341 @@
+package uk.co.innoxium.baldursgate.bg3m.pak;
+
+import com.google.gson.JsonObject;
+import uk.co.innoxium.baldursgate.bg3m.MetaInfo;
+import uk.co.innoxium.baldursgate.bg3m.lsx.LSXScanner;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads Larian LSPK paks, versions 15, 16 and 18.
+ * Only the header and the file table are read when the pak is opened, each with a positional read
+ * of just that region, so even multi-GB paks are never read whole.
+ * File contents are read and decompressed one at a time, when asked for.
+ * Nothing is memory mapped: on Windows a mapped pak cannot be deleted or replaced until the mapping
+ * is garbage collected, even after the reader is closed, which would break uninstalling or switching it.
+ *
+ * The layout, all little endian:
+ * - "LSPK", then the header: version, file table offset and size, flags, priority, MD5, and from 16 the number of parts
+ * - at the file table offset: the number of files, the compressed size, then the LZ4 compressed table
+ * - version 18 entries are 272 bytes, with a 48 bit offset and 32 bit sizes
+ * - version 15 and 16 entries are 296 bytes, with 64 bit offsets and sizes
+ */
+public class LSPKReader implements Closeable {
+
+    private static final int SIGNATURE = 0x4B50534C; // LSPK
+    private static final int NAME_LENGTH = 256;
+    private static final int ENTRY_SIZE_V15 = 296;
+    private static final int ENTRY_SIZE_V18 = 272;
+
+    private final File file;
+    private final FileChannel channel;
+    private final int version;
+    private final int flags;
+    private final int priority;
+    private final int parts;
+    private final List<PakEntry> entries;
+    private final Map<String, PakEntry> byName = new HashMap<>();
+
+    private LSPKReader(File file, FileChannel channel) throws IOException {
+
+        this.file = file;
+        this.channel = channel;
+
+        ByteBuffer header = read(channel, 0, (int)Math.min(40, channel.size()));
+        if(header.limit() < 38 || header.getInt(0) != SIGNATURE) throw new IOException(String.format("%s is not an LSPK pak", file.getName()));
+        this.version = header.getInt(4);
+        if(version != 15 && version != 16 && version != 18) throw new IOException(String.format("%s is LSPK version %d, only 15, 16 and 18 are supported", file.getName(), version));
+
+        long fileListOffset = header.getLong(8);
+        this.flags = header.get(20) & 0xFF;
+        this.priority = header.get(21) & 0xFF;
+        this.parts = version >= 16 && header.limit() >= 40 ? header.getShort(38) & 0xFFFF : 1;
+        this.entries = Collections.unmodifiableList(readFileList(fileListOffset));
+        entries.forEach(entry -> byName.put(entry.getName().toLowerCase(Locale.ROOT), entry));
+    }
+
+    /**
+     * Opens a pak, reading its header and file table
+     * @throws IOException if the file is not a supported pak
+     */
+    public static LSPKReader open(File file) throws IOException {
+
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+
+            return new LSPKReader(file, channel);
+        } catch (IOException | RuntimeException e) {
+
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Reads the mod described by the meta.lsx inside a pak
+     * @return the mod, or null if the pak is not a supported pak, or has no meta.lsx
+     */
+    public static MetaInfo readMetaInfo(File pak) {
+
+        try(LSPKReader reader = open(pak)) {
+
+            return reader.readMetaInfo();
+        } catch (IOException e) {
+
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    public File getFile() {
+
+        return file;
+    }
+
+    public int getVersion() {
+
+        return version;
+    }
+
+    public int getFlags() {
+
+        return flags;
+    }
+
+    public int getPriority() {
+
+        return priority;
+    }
+
+    public int getParts() {
+
+        return parts;
+    }
+
+    public List<PakEntry> getEntries() {
+
+        return entries;
+    }
+
+    /**
+     * @return the entry with the path, ignoring case, or null if the pak has no such file
+     */
+    public PakEntry getEntry(String name) {
+
+        return byName.get(name.replace('\\', '/').toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Reads and decompresses a file from the pak
+     * @throws IOException if the file is too large to hold in memory, or uses an unsupported compression
+     */
+    public byte[] read(PakEntry entry) throws IOException {
+
+        if(entry.getSize() > Integer.MAX_VALUE - 8 || entry.getSizeOnDisk() > Integer.MAX_VALUE - 8) {
+
+            throw new IOException(String.format("%s is too large to read into memory", entry.getName()));
+        }
+
+        byte[] compressed;
+        if(entry.getArchivePart() == 0) {
+
+            compressed = read(channel, entry.getOffset(), (int)entry.getSizeOnDisk()).array();
+        } else {
+
+            try(FileChannel part = FileChannel.open(getPartFile(entry.getArchivePart()).toPath(), StandardOpenOption.READ)) {
+
+                compressed = read(part, entry.getOffset(), (int)entry.getSizeOnDisk()).array();
+            }
+        }
+
+        int size = (int)entry.getSize();
+        return switch(entry.getCompression()) {
+
+            case PakEntry.COMPRESSION_NONE -> compressed;
+            case PakEntry.COMPRESSION_LZ4 -> LZ4.decompress(compressed, 0, compressed.length, size);
+            case PakEntry.COMPRESSION_ZLIB -> inflate(compressed, size);
+            default -> throw new IOException(String.format("%s uses an unsupported compression method %d", entry.getName(), entry.getCompression()));
+        };
+    }
+
+    /**
+     * Reads the ModuleInfo of the first Mods/&lt;Folder&gt;/meta.lsx in the pak
+     * @return the mod, or null if the pak has no meta.lsx
+     */
+    public MetaInfo readMetaInfo() throws IOException {
+
+        for(PakEntry entry : entries) {
+
+            String[] path = entry.getName().split("/");
+            if(path.length == 3 && path[0].equalsIgnoreCase("Mods") && path[2].equalsIgnoreCase("meta.lsx")) {
+
+                byte[] lsx = read(entry);
+                Map<String, String> info = readModuleInfo(lsx);
+                if(info.isEmpty()) continue;
+
+                JsonObject obj = new JsonObject();
+                obj.addProperty("Name", info.getOrDefault("Name", path[1]));
+                obj.addProperty("Author", info.getOrDefault("Author", ""));
+                obj.addProperty("Description", info.getOrDefault("Description", ""));
+                obj.addProperty("Version", info.getOrDefault("Version", info.getOrDefault("Version64", "0")));
+                obj.addProperty("Folder", info.getOrDefault("Folder", path[1]));
+                obj.addProperty("UUID", info.getOrDefault("UUID", ""));
+                if(obj.get("UUID").getAsString().isEmpty()) continue;
+                MetaInfo ret = new MetaInfo(MetaInfo.MetaType.V3).fromJson(obj);
+                return ret != null ? ret.setDependencies(readDependencies(lsx)) : null;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void close() throws IOException {
+
+        channel.close();
+    }
+
+    private List<PakEntry> readFileList(long offset) throws IOException {
+
+        ByteBuffer counts = read(channel, offset, 8);
+        int count = counts.getInt(0);
+        int compressedSize = counts.getInt(4);
+        int entrySize = version == 18 ? ENTRY_SIZE_V18 : ENTRY_SIZE_V15;
+        if(count < 0 || compressedSize < 0 || (long)count * entrySize > Integer.MAX_VALUE) throw new IOException(String.format("%s has a malformed file table", file.getName()));
+
+        byte[] compressed = read(channel, offset + 8, compressedSize).array();
+        ByteBuffer table = ByteBuffer.wrap(LZ4.decompress(compressed, 0, compressedSize, count * entrySize)).order(ByteOrder.LITTLE_ENDIAN);
+
+        List<PakEntry> ret = new ArrayList<>(count);
+        byte[] name = new byte[NAME_LENGTH];
+        for(int i = 0; i < count; i++) {
+
+            int position = i * entrySize;
+            table.get(position, name);
+            int length = 0;
+            while(length < NAME_LENGTH && name[length] != 0) length++;
+            String path = new String(name, 0, length, StandardCharsets.UTF_8).replace('\\', '/');
+
+            int fields = position + NAME_LENGTH;
+            if(version == 18) {
+
+                long entryOffset = (table.getInt(fields) & 0xFFFFFFFFL) | (long)(table.getShort(fields + 4) & 0xFFFF) << 32;
+                int part = table.get(fields + 6) & 0xFF;
+                int entryFlags = table.get(fields + 7) & 0xFF;
+                long sizeOnDisk = table.getInt(fields + 8) & 0xFFFFFFFFL;
+                long uncompressedSize = table.getInt(fields + 12) & 0xFFFFFFFFL;
+                ret.add(new PakEntry(path, entryOffset, sizeOnDisk, uncompressedSize, part, entryFlags));
+            } else {
+
+                long entryOffset = table.getLong(fields);
+                long sizeOnDisk = table.getLong(fields + 8);
+                long uncompressedSize = table.getLong(fields + 16);
+                int part = table.getInt(fields + 24);
+                int entryFlags = table.getInt(fields + 28);
+                ret.add(new PakEntry(path, entryOffset, sizeOnDisk, uncompressedSize, part, entryFlags));
+            }
+        }
+        return ret;
+    }
+
+    // Split paks continue in Name_1.pak, Name_2.pak...
+    private File getPartFile(int part) {
+
+        String name = file.getName();
+        String base = name.toLowerCase(Locale.ROOT).endsWith(".pak") ? name.substring(0, name.length() - 4) : name;
+        return new File(file.getParentFile(), String.format("%s_%d.pak", base, part));
+    }
+
+    // The attributes directly inside node id="ModuleInfo"
+    private static Map<String, String> readModuleInfo(byte[] lsx) throws IOException {
+
+        Map<String, String> ret = new HashMap<>();
+        LSXScanner scanner = new LSXScanner(new InputStreamReader(new ByteArrayInputStream(lsx), StandardCharsets.UTF_8));
+        int depth = -1;
+        LSXScanner.Token token;
+        while((token = scanner.next()) != LSXScanner.Token.EOF) {
+
+            if(depth < 0) {
+
+                if(token == LSXScanner.Token.START && scanner.name().equals("node") && "ModuleInfo".equals(scanner.attribute("id"))) depth = 0;
+                continue;
+            }
+            if(depth == 0 && scanner.name() != null && scanner.name().equals("attribute") && (token == LSXScanner.Token.EMPTY || token == LSXScanner.Token.START)) {
+
+                ret.put(scanner.attribute("id"), scanner.attribute("value"));
+            }
+            if(token == LSXScanner.Token.START) depth++;
+            if(token == LSXScanner.Token.END && depth-- == 0) break;
+        }
+        return ret;
+    }
+
+    // The UUID of each ModuleShortDesc inside node id="Dependencies"
+    private static List<String> readDependencies(byte[] lsx) throws IOException {
+
+        List<String> ret = new ArrayList<>();
+        LSXScanner scanner = new LSXScanner(new InputStreamReader(new ByteArrayInputStream(lsx), StandardCharsets.UTF_8));
+        int depth = -1;
+        LSXScanner.Token token;
+        while((token = scanner.next()) != LSXScanner.Token.EOF) {
+
+            if(depth < 0) {
+
+                if(token == LSXScanner.Token.START && scanner.name().equals("node") && "Dependencies".equals(scanner.attribute("id"))) depth = 0;
+                continue;
+            }
+            // Directly inside a ModuleShortDesc, which is inside children
+            if(depth == 2 && scanner.name() != null && scanner.name().equals("attribute") && "UUID".equals(scanner.attribute("id")) && scanner.attribute("value") != null) {
+
+                ret.add(scanner.attribute("value"));
+            }
+            if(token == LSXScanner.Token.START) depth++;
+            if(token == LSXScanner.Token.END && depth-- == 0) break;
+        }
+        return ret;
+    }
+
+    static byte[] inflate(byte[] compressed, int size) throws IOException {
+
+        Inflater inflater = new Inflater();
+        try {
+
+            inflater.setInput(compressed);
+            byte[] ret = new byte[size];
+            int written = 0;
+            while(written < size && !inflater.finished()) {
+
+                int count = inflater.inflate(ret, written, size - written);
+                if(count == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+                written += count;
+            }
+            if(written != size) throw new IOException(String.format("Inflated to %d bytes, expected %d", written, size));
+            return ret;
+        } catch (DataFormatException e) {
+
+            throw new IOException(e);
+        } finally {
+
+            inflater.end();
+        }
+    }
+
+    // Reads a region into a heap buffer, without moving the channel's position
+    private static ByteBuffer read(FileChannel channel, long position, int size) throws IOException {
+
+        if(position < 0 || position + size > channel.size()) throw new EOFException("Pak region is past the end of the file");
+        ByteBuffer ret = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        while(ret.hasRemaining()) {
+
+            if(channel.read(ret, position + ret.position()) < 0) throw new EOFException("Pak region is past the end of the file");
+        }
+        return ret.clear();
+    }
+}
@@ -0,0 +1,291 @@
+package uk.co.innoxium.baldursgate.bg3m.pak;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A codec for raw LZ4 blocks, as used by Larian for pak file tables and file contents, and for LZ4 frames, as used by LSF.
+ * Each sequence is a token, literals, then a back reference:
+ * - the high nibble of the token is the literal length, the low nibble the match length minus 4
+ * - a nibble of 15 continues into following bytes, each added until one is not 255
+ * - the back reference is a 2 byte little endian offset into what has already been written
+ * The last sequence of a block has literals only.
+ *
+ * A frame is the magic number, a descriptor with its checksum, then blocks each prefixed with their size,
+ * the high bit of which is set if the block is stored uncompressed, ending with an empty block.
+ */
+public class LZ4 {
+
+    private static final int MIN_MATCH = 4;
+    // The last match has to start this far before the end of the block, and the last literals be at least this long
+    private static final int MF_LIMIT = 12;
+    private static final int LAST_LITERALS = 5;
+    private static final int MAX_OFFSET = 65535;
+    private static final int HASH_LOG = 14;
+
+    private static final int FRAME_MAGIC = 0x184D2204;
+    private static final int FRAME_BLOCK_SIZE = 65536;
+
+    /**
+     * Decompresses a block
+     * @param src - The compressed data
+     * @param srcOff - Where the block starts
+     * @param srcLen - The length of the block
+     * @param dest - The buffer to decompress into
+     * @param destOff - Where to start writing
+     * @param destLen - The space available in the buffer
+     * @return the number of bytes written
+     * @throws IOException if the block is malformed, or does not fit in the buffer
+     */
+    public static int decompress(byte[] src, int srcOff, int srcLen, byte[] dest, int destOff, int destLen) throws IOException {
+
+        return decompress(src, srcOff, srcLen, dest, destOff, destOff, destLen);
+    }
+
+    // Back references may reach as far as windowStart, for the dependent blocks of a frame
+    private static int decompress(byte[] src, int srcOff, int srcLen, byte[] dest, int windowStart, int destOff, int destLen) throws IOException {
+
+        int sp = srcOff;
+        int srcEnd = srcOff + srcLen;
+        int dp = destOff;
+        int destEnd = destOff + destLen;
+
+        while(sp < srcEnd) {
+
+            int token = src[sp++] & 0xFF;
+
+            int literals = token >>> 4;
+            if(literals == 15) {
+
+                int b;
+                do {
+
+                    if(sp >= srcEnd) throw malformed("literal length runs past the end of the block");
+                    b = src[sp++] & 0xFF;
+                    literals += b;
+                } while(b == 255);
+            }
+            if(sp + literals > srcEnd) throw malformed("literals run past the end of the block");
+            if(dp + literals > destEnd) throw malformed("output is larger than expected");
+            System.arraycopy(src, sp, dest, dp, literals);
+            sp += literals;
+            dp += literals;
+
+            // The last sequence stops after its literals
+            if(sp >= srcEnd) break;
+
+            if(sp + 2 > srcEnd) throw malformed("match offset runs past the end of the block");
+            int offset = (src[sp] & 0xFF) | (src[sp + 1] & 0xFF) << 8;
+            sp += 2;
+            if(offset == 0 || dp - offset < windowStart) throw malformed("match offset is outside of the output");
+
+            int match = token & 0x0F;
+            if(match == 15) {
+
+                int b;
+                do {
+
+                    if(sp >= srcEnd) throw malformed("match length runs past the end of the block");
+                    b = src[sp++] & 0xFF;
+                    match += b;
+                } while(b == 255);
+            }
+            match += MIN_MATCH;
+            if(dp + match > destEnd) throw malformed("output is larger than expected");
+
+            int from = dp - offset;
+            if(offset >= match) {
+
+                System.arraycopy(dest, from, dest, dp, match);
+                dp += match;
+            } else {
+
+                // Overlapping, the match repeats bytes it is writing
+                for(int i = 0; i < match; i++) {
+
+                    dest[dp++] = dest[from++];
+                }
+            }
+        }
+        return dp - destOff;
+    }
+
+    /**
+     * Decompresses a block whose decompressed size is known
+     * @throws IOException if the block is malformed, or does not decompress to exactly the size given
+     */
+    public static byte[] decompress(byte[] src, int srcOff, int srcLen, int size) throws IOException {
+
+        byte[] ret = new byte[size];
+        int written = decompress(src, srcOff, srcLen, ret, 0, size);
+        if(written != size) throw malformed(String.format("decompressed to %d bytes, expected %d", written, size));
+        return ret;
+    }
+
+    /**
+     * Compresses data into a single block, finding matches with a hash of every 4 bytes
+     */
+    public static byte[] compress(byte[] src, int srcOff, int srcLen) {
+
+        byte[] dest = new byte[srcLen + srcLen / 255 + 16];
+        int dp = 0;
+        int end = srcOff + srcLen;
+        int anchor = srcOff;
+
+        if(srcLen > MF_LIMIT) {
+
+            int matchLimit = end - LAST_LITERALS;
+            int mfLimit = end - MF_LIMIT;
+            int[] table = new int[1 << HASH_LOG];
+            Arrays.fill(table, -1);
+            int sp = srcOff;
+            // Skips ahead faster the longer nothing matches, so incompressible data is not searched byte by byte
+            int misses = 0;
+            while(sp < mfLimit) {
+
+                int sequence = readInt(src, sp);
+                int hash = (sequence * -1640531535) >>> (32 - HASH_LOG);
+                int ref = table[hash];
+                table[hash] = sp;
+                if(ref < 0 || sp - ref > MAX_OFFSET || readInt(src, ref) != sequence) {
+
+                    sp += 1 + (misses++ >> 6);
+                    continue;
+                }
+                misses = 0;
+                while(sp > anchor && ref > srcOff && src[sp - 1] == src[ref - 1]) {
+
+                    sp--;
+                    ref--;
+                }
+                int length = MIN_MATCH;
+                while(sp + length < matchLimit && src[sp + length] == src[ref + length]) length++;
+
+                dp = writeLiterals(dest, dp, src, anchor, sp - anchor, length - MIN_MATCH);
+                dest[dp++] = (byte)(sp - ref);
+                dest[dp++] = (byte)((sp - ref) >>> 8);
+                if(length - MIN_MATCH >= 15) dp = writeLength(dest, dp, length - MIN_MATCH - 15);
+                sp += length;
+                anchor = sp;
+            }
+        }
+        dp = writeLiterals(dest, dp, src, anchor, end - anchor, 0);
+        return Arrays.copyOf(dest, dp);
+    }
+
+    // Writes the token and literals of a sequence
+    private static int writeLiterals(byte[] dest, int dp, byte[] src, int from, int literals, int match) {
+
+        dest[dp++] = (byte)(Math.min(literals, 15) << 4 | Math.min(match, 15));
+        if(literals >= 15) dp = writeLength(dest, dp, literals - 15);
+        System.arraycopy(src, from, dest, dp, literals);
+        return dp + literals;
+    }
+
+    private static int writeLength(byte[] dest, int dp, int length) {
+
+        while(length >= 255) {
+
+            dest[dp++] = (byte)255;
+            length -= 255;
+        }
+        dest[dp++] = (byte)length;
+        return dp;
+    }
+
+    private static int readInt(byte[] src, int offset) {
+
+        return (src[offset] & 0xFF) | (src[offset + 1] & 0xFF) << 8 | (src[offset + 2] & 0xFF) << 16 | (src[offset + 3] & 0xFF) << 24;
+    }
+
+    /**
+     * Decompresses a frame whose decompressed size is known. Block and content checksums are skipped, not checked.
+     * @throws IOException if the frame is malformed, or does not decompress to exactly the size given
+     */
+    public static byte[] decompressFrame(byte[] src, int srcOff, int srcLen, int size) throws IOException {
+
+        int end = srcOff + srcLen;
+        if(srcLen < 7 || readInt(src, srcOff) != FRAME_MAGIC) throw malformed("not an LZ4 frame");
+        int flags = src[srcOff + 4] & 0xFF;
+        if((flags >>> 6) != 1) throw malformed(String.format("frame version %d is not supported", flags >>> 6));
+        if((flags & 0x01) != 0) throw malformed("frames with a dictionary are not supported");
+        boolean blockChecksum = (flags & 0x10) != 0;
+        // The descriptor is the flags, block size and content size if present, then a byte of its checksum
+        int descriptor = 2 + ((flags & 0x08) != 0 ? 8 : 0);
+        int sp = srcOff + 4;
+        if(sp + descriptor >= end) throw malformed("frame descriptor runs past the end");
+        if((src[sp + descriptor] & 0xFF) != ((XXHash32.hash(src, sp, descriptor, 0) >>> 8) & 0xFF)) throw malformed("frame descriptor checksum does not match");
+        sp += descriptor + 1;
+
+        byte[] ret = new byte[size];
+        int dp = 0;
+        while(true) {
+
+            if(sp + 4 > end) throw malformed("frame ends without an end mark");
+            int blockSize = readInt(src, sp);
+            sp += 4;
+            if(blockSize == 0) break;
+            int length = blockSize & 0x7FFFFFFF;
+            if(sp + length > end) throw malformed("block runs past the end of the frame");
+            if(blockSize < 0) {
+
+                if(dp + length > size) throw malformed("output is larger than expected");
+                System.arraycopy(src, sp, ret, dp, length);
+                dp += length;
+            } else {
+
+                dp += decompress(src, sp, length, ret, 0, dp, size - dp);
+            }
+            sp += length + (blockChecksum ? 4 : 0);
+        }
+        if(dp != size) throw malformed(String.format("decompressed to %d bytes, expected %d", dp, size));
+        return ret;
+    }
+
+    /**
+     * Compresses data into a frame of independent 64 KiB blocks, with no checksums but the descriptor's
+     */
+    public static byte[] compressFrame(byte[] src, int srcOff, int srcLen) {
+
+        byte[] dest = new byte[srcLen + srcLen / 255 + 16 + (srcLen / FRAME_BLOCK_SIZE + 1) * 4 + 11];
+        writeInt(dest, 0, FRAME_MAGIC);
+        // Version 1, independent blocks
+        dest[4] = 0x60;
+        // 64 KiB blocks
+        dest[5] = 0x40;
+        dest[6] = (byte)(XXHash32.hash(dest, 4, 2, 0) >>> 8);
+        int dp = 7;
+        for(int offset = srcOff; offset < srcOff + srcLen; offset += FRAME_BLOCK_SIZE) {
+
+            int length = Math.min(FRAME_BLOCK_SIZE, srcOff + srcLen - offset);
+            byte[] block = compress(src, offset, length);
+            if(block.length < length) {
+
+                writeInt(dest, dp, block.length);
+                System.arraycopy(block, 0, dest, dp + 4, block.length);
+                dp += 4 + block.length;
+            } else {
+
+                // Stored as it is, it did not get any smaller
+                writeInt(dest, dp, length | 0x80000000);
+                System.arraycopy(src, offset, dest, dp + 4, length);
+                dp += 4 + length;
+            }
+        }
+        writeInt(dest, dp, 0);
+        return Arrays.copyOf(dest, dp + 4);
+    }
+
+    private static void writeInt(byte[] dest, int offset, int value) {
+
+        dest[offset] = (byte)value;
+        dest[offset + 1] = (byte)(value >>> 8);
+        dest[offset + 2] = (byte)(value >>> 16);
+        dest[offset + 3] = (byte)(value >>> 24);
+    }
+
+    private static IOException malformed(String message) {
+
+        return new IOException("Malformed LZ4 block, " + message);
+    }
+}
@@ -0,0 +1,76 @@
+package uk.co.innoxium.baldursgate.bg3m.pak;
+
+/**
+ * A file in the file table of a pak
+ */
+public class PakEntry {
+
+    public static final int COMPRESSION_MASK = 0x0F;
+    public static final int COMPRESSION_NONE = 0;
+    public static final int COMPRESSION_ZLIB = 1;
+    public static final int COMPRESSION_LZ4 = 2;
+    public static final int COMPRESSION_ZSTD = 3;
+
+    private final String name;
+    private final long offset;
+    private final long sizeOnDisk;
+    private final long uncompressedSize;
+    private final int archivePart;
+    private final int flags;
+
+    PakEntry(String name, long offset, long sizeOnDisk, long uncompressedSize, int archivePart, int flags) {
+
+        this.name = name;
+        this.offset = offset;
+        this.sizeOnDisk = sizeOnDisk;
+        this.uncompressedSize = uncompressedSize;
+        this.archivePart = archivePart;
+        this.flags = flags;
+    }
+
+    /**
+     * @return the path of the file inside the pak, always using '/'
+     */
+    public String getName() {
+
+        return name;
+    }
+
+    public long getOffset() {
+
+        return offset;
+    }
+
+    public long getSizeOnDisk() {
+
+        return sizeOnDisk;
+    }
+
+    /**
+     * @return the size of the file once decompressed
+     */
+    public long getSize() {
+
+        // Stored files record an uncompressed size of 0
+        return uncompressedSize == 0 ? sizeOnDisk : uncompressedSize;
+    }
+
+    /**
+     * @return which part of a split pak the file is in, 0 for the pak itself
+     */
+    public int getArchivePart() {
+
+        return archivePart;
+    }
+
+    public int getCompression() {
+
+        return uncompressedSize == 0 ? COMPRESSION_NONE : flags & COMPRESSION_MASK;
+    }
+
+    @Override
+    public String toString() {
+
+        return name;
+    }
+}
@@ -0,0 +1,66 @@
+package uk.co.innoxium.baldursgate.bg3m.pak;
+
+/**
+ * The 32 bit xxHash, which LZ4 frames use for their checksums.
+ * Input is consumed in 16 byte stripes over four accumulators, then the rest 4 bytes and 1 byte at a time.
+ */
+public class XXHash32 {
+
+    private static final int PRIME1 = 0x9E3779B1;
+    private static final int PRIME2 = 0x85EBCA77;
+    private static final int PRIME3 = 0xC2B2AE3D;
+    private static final int PRIME4 = 0x27D4EB2F;
+    private static final int PRIME5 = 0x165667B1;
+
+    public static int hash(byte[] bytes, int offset, int length, int seed) {
+
+        int end = offset + length;
+        int p = offset;
+        int ret;
+        if(length >= 16) {
+
+            int v1 = seed + PRIME1 + PRIME2;
+            int v2 = seed + PRIME2;
+            int v3 = seed;
+            int v4 = seed - PRIME1;
+            for(; p <= end - 16; p += 16) {
+
+                v1 = round(v1, readInt(bytes, p));
+                v2 = round(v2, readInt(bytes, p + 4));
+                v3 = round(v3, readInt(bytes, p + 8));
+                v4 = round(v4, readInt(bytes, p + 12));
+            }
+            ret = Integer.rotateLeft(v1, 1) + Integer.rotateLeft(v2, 7) + Integer.rotateLeft(v3, 12) + Integer.rotateLeft(v4, 18);
+        } else {
+
+            ret = seed + PRIME5;
+        }
+        ret += length;
+
+        for(; p <= end - 4; p += 4) {
+
+            ret = Integer.rotateLeft(ret + readInt(bytes, p) * PRIME3, 17) * PRIME4;
+        }
+        for(; p < end; p++) {
+
+            ret = Integer.rotateLeft(ret + (bytes[p] & 0xFF) * PRIME5, 11) * PRIME1;
+        }
+
+        ret ^= ret >>> 15;
+        ret *= PRIME2;
+        ret ^= ret >>> 13;
+        ret *= PRIME3;
+        ret ^= ret >>> 16;
+        return ret;
+    }
+
+    private static int round(int accumulator, int input) {
+
+        return Integer.rotateLeft(accumulator + input * PRIME2, 13) * PRIME1;
+    }
+
+    private static int readInt(byte[] bytes, int offset) {
+
+        return (bytes[offset] & 0xFF) | (bytes[offset + 1] & 0xFF) << 8 | (bytes[offset + 2] & 0xFF) << 16 | (bytes[offset + 3] & 0xFF) << 24;
+    }
+}
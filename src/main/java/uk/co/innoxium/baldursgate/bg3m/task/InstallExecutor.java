@@ -0,0 +1,86 @@
+package uk.co.innoxium.baldursgate.bg3m.task;
+
+import java.awt.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs installs and uninstalls off the Swing thread, on a small bounded pool.
+ * The work is mostly disk I/O, so a few threads are enough to let independent mods
+ * proceed in parallel without them fighting over the same disk.
+ * Changes to modsettings.lsx are serialized by {@link uk.co.innoxium.baldursgate.bg3m.lsx.ModSettingsBatch}.
+ */
+public class InstallExecutor {
+
+    private static final int THREADS = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    private static final ThreadPoolExecutor executor = createExecutor();
+
+    /**
+     * Runs the work on the install pool
+     * @param task - Tracks the work, cancelling the returned future cancels the task
+     * @param work - The work to run
+     * @return a future completed with the result, or exceptionally with whatever the work threw
+     */
+    public static <T> CompletableFuture<T> submit(InstallTask task, Callable<T> work) {
+
+        CompletableFuture<T> ret = new CompletableFuture<>();
+        Future<?> running = executor.submit(() -> {
+
+            try {
+
+                task.checkCancelled();
+                ret.complete(work.call());
+            } catch (Throwable throwable) {
+
+                ret.completeExceptionally(throwable);
+            }
+        });
+        ret.whenComplete((result, throwable) -> {
+
+            if(throwable instanceof CancellationException) {
+
+                task.cancel();
+                // Still queued, it never needs to start
+                running.cancel(false);
+            }
+        });
+        return ret;
+    }
+
+    /**
+     * Waits for the future. On the Swing thread, events keep being dispatched while waiting,
+     * so the window does not freeze for callers which can only return a result.
+     * @return the result, or the value if the future failed or was cancelled
+     */
+    public static <T> T await(CompletableFuture<T> future, T onFailure) {
+
+        if(EventQueue.isDispatchThread() && !future.isDone()) {
+
+            SecondaryLoop loop = Toolkit.getDefaultToolkit().getSystemEventQueue().createSecondaryLoop();
+            future.whenComplete((result, throwable) -> loop.exit());
+            if(!future.isDone()) loop.enter();
+        }
+        try {
+
+            return future.join();
+        } catch (CompletionException | CancellationException e) {
+
+            e.printStackTrace();
+            return onFailure;
+        }
+    }
+
+    private static ThreadPoolExecutor createExecutor() {
+
+        AtomicInteger count = new AtomicInteger();
+        ThreadPoolExecutor ret = new ThreadPoolExecutor(THREADS, THREADS, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+
+            Thread thread = new Thread(runnable, "bg3-install-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Let the pool empty out while nothing is being installed
+        ret.allowCoreThreadTimeOut(true);
+        return ret;
+    }
+}
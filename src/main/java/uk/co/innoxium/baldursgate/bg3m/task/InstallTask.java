@@ -0,0 +1,95 @@
+package uk.co.innoxium.baldursgate.bg3m.task;
+
+import uk.co.innoxium.candor.util.Logger;
+
+import java.util.Locale;
+import java.util.concurrent.CancellationException;
+
+/**
+ * Tracks a single mod's install or uninstall as it moves through its phases,
+ * and lets it be cancelled between steps. Each phase is written to the log.
+ */
+public class InstallTask {
+
+    public enum Phase {
+
+        QUEUED,
+        EXTRACT, // Opening the archive and reading info.json
+        INDEX, // Reading the mods described by info.json
+        DEPLOY, // Placing or removing paks in the Mods folder
+        WRITE_XML, // Writing modsettings.lsx
+        VERIFY, // Checking deployed paks and modsettings.lsx against what was installed
+        DONE
+    }
+
+    private final String name;
+    private volatile Phase phase = Phase.QUEUED;
+    private volatile double progress = 0;
+    private volatile boolean cancelled = false;
+
+    public InstallTask(String name) {
+
+        this.name = name;
+    }
+
+    public String getName() {
+
+        return name;
+    }
+
+    public Phase getPhase() {
+
+        return phase;
+    }
+
+    /**
+     * @return how far through the current phase the task is, from 0 to 1
+     */
+    public double getProgress() {
+
+        return progress;
+    }
+
+    /**
+     * Moves the task into the next phase
+     * @throws CancellationException if the task has been cancelled, unless it is moving to DONE
+     */
+    public void phase(Phase phase) {
+
+        // Once finished there is nothing left to cancel
+        if(phase != Phase.DONE) checkCancelled();
+        this.phase = phase;
+        this.progress = phase == Phase.DONE ? 1 : 0;
+        Logger.info(String.format("%s: %s", name, phase.name().toLowerCase(Locale.ROOT).replace('_', ' ')));
+    }
+
+    /**
+     * Reports progress through the current phase
+     * @param done - The steps completed
+     * @param total - The steps in this phase
+     * @throws CancellationException if the task has been cancelled
+     */
+    public void progress(int done, int total) {
+
+        checkCancelled();
+        this.progress = total > 0 ? (double)done / total : 1;
+    }
+
+    /**
+     * Asks the task to stop at its next step. Anything it has already deployed is removed.
+     */
+    public void cancel() {
+
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+
+        return cancelled;
+    }
+
+    public void checkCancelled() {
+
+        if(cancelled) throw new CancellationException(String.format("%s was cancelled", name));
+    }
+}
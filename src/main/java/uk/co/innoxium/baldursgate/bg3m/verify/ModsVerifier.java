@@ -0,0 +1,468 @@
+package uk.co.innoxium.baldursgate.bg3m.verify;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import org.apache.commons.io.FileUtils;
+import uk.co.innoxium.baldursgate.BG3Settings;
+import uk.co.innoxium.baldursgate.bg3m.MetaInfo;
+import uk.co.innoxium.baldursgate.bg3m.deploy.DeployMode;
+import uk.co.innoxium.baldursgate.bg3m.deploy.Deployer;
+import uk.co.innoxium.baldursgate.bg3m.deploy.PakStore;
+import uk.co.innoxium.baldursgate.bg3m.hash.PakHash;
+import uk.co.innoxium.baldursgate.bg3m.io.AtomicFile;
+import uk.co.innoxium.baldursgate.bg3m.lsx.LSXNode;
+import uk.co.innoxium.baldursgate.bg3m.lsx.ModRegistry;
+import uk.co.innoxium.baldursgate.bg3m.lsx.ModSettingsBatch;
+import uk.co.innoxium.baldursgate.bg3m.manifest.InstallManifest;
+import uk.co.innoxium.baldursgate.bg3m.pak.LSPKReader;
+import uk.co.innoxium.baldursgate.bg3m.task.InstallTask;
+import uk.co.innoxium.candor.util.Logger;
+import uk.co.innoxium.candor.util.Resources;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks the Mods folder and a profile's modsettings.lsx still match what was installed,
+ * after a game patch or a crash.
+ * - paks recorded by an install manifest which are missing, truncated or modified
+ * - paks with a meta.lsx which modsettings.lsx does not register
+ * - mods installed for the profile which modsettings.lsx no longer registers
+ * - modsettings.lsx entries which no pak provides
+ *
+ * Only files whose size or modified time changed since they were last hashed are read,
+ * see {@link PakHash}, and the meta.lsx of paks Candor did not install is cached the same way,
+ * so checking an unchanged folder only stats each pak. Paks are checked in parallel.
+ */
+public class ModsVerifier {
+
+    private static final int VERSION = 1;
+    // Modules the game ships, registered in modsettings.lsx with no pak in the Mods folder
+    private static final Set<String> BASE_FOLDERS = Set.of("gustav", "gustavdev", "gustavx", "shared", "shareddev", "honour", "honourx", "mainui", "modbrowser");
+    // The meta.lsx of paks in the Mods folder, by path, with the size and modified time it was read at
+    private static final Map<String, JsonObject> snapshot = new ConcurrentHashMap<>();
+    private static boolean loaded = false;
+
+    private final File modsFolder;
+    private final File playerProfile;
+
+    public ModsVerifier(File modsFolder, File playerProfile) {
+
+        this.modsFolder = modsFolder;
+        this.playerProfile = playerProfile;
+    }
+
+    /**
+     * Checks every installed pak, and the profile's modsettings.lsx
+     * @throws java.util.concurrent.CancellationException if the task was cancelled
+     */
+    public Report verify(InstallTask task) throws IOException {
+
+        long start = System.nanoTime();
+        task.phase(InstallTask.Phase.INDEX);
+        List<InstallManifest> manifests = InstallManifest.loadAll().stream().filter(InstallManifest::isInstalled).toList();
+        File modSettings = new File(playerProfile, "modsettings.lsx");
+        ModRegistry registry = modSettings.isFile() ? ModRegistry.load(modSettings) : null;
+
+        // Loose files another mod has since been installed over, by mod and path
+        Set<String> shadowed = new HashSet<>();
+        for(InstallManifest manifest : manifests) {
+
+            for(JsonElement element : manifest.getFiles()) {
+
+                if(element.isJsonObject() && element.getAsJsonObject().has("replaced")) shadowed.add(shadowKey(element.getAsJsonObject().get("replaced").getAsString(), element.getAsJsonObject()));
+            }
+        }
+
+        List<Deployed> deployed = new ArrayList<>();
+        Set<String> managed = new HashSet<>();
+        for(InstallManifest manifest : manifests) {
+
+            for(JsonElement element : manifest.getFiles()) {
+
+                if(!element.isJsonObject() || shadowed.contains(shadowKey(manifest.getId(), element.getAsJsonObject()))) continue;
+                // Merged from several mods, so it matches none of them
+                if(element.getAsJsonObject().has("merge")) continue;
+                Deployed pak = new Deployed(manifest, element.getAsJsonObject());
+                deployed.add(pak);
+                managed.add(pak.file.getAbsolutePath());
+            }
+        }
+        File[] found = modsFolder.listFiles((dir, name) -> name.toLowerCase(Locale.ROOT).endsWith(".pak"));
+        List<File> unmanaged = found == null ? List.of() : Arrays.stream(found).filter(pak -> !managed.contains(pak.getAbsolutePath())).toList();
+
+        task.phase(InstallTask.Phase.VERIFY);
+        load();
+        int total = deployed.size() + unmanaged.size();
+        AtomicInteger done = new AtomicInteger();
+        AtomicInteger rehashed = new AtomicInteger();
+        List<Problem> problems = new ArrayList<>(deployed.parallelStream().map(pak -> {
+
+            Problem ret = check(pak, rehashed);
+            task.progress(done.incrementAndGet(), total);
+            return ret;
+        }).filter(Objects::nonNull).toList());
+        Map<File, MetaInfo> unmanagedMods = new ConcurrentHashMap<>();
+        unmanaged.parallelStream().forEach(pak -> {
+
+            MetaInfo mod = readMetaInfo(pak);
+            if(mod != null) unmanagedMods.put(pak, mod);
+            task.progress(done.incrementAndGet(), total);
+        });
+        save();
+        PakHash.save();
+
+        if(registry != null) {
+
+            Set<String> provided = new HashSet<>();
+            for(InstallManifest manifest : manifests) {
+
+                boolean forProfile = manifest.getPlayerProfile().getAbsoluteFile().equals(playerProfile.getAbsoluteFile());
+                for(MetaInfo mod : manifest.getMods()) {
+
+                    provided.add(mod.getUuid().toLowerCase(Locale.ROOT));
+                    if(forProfile && !registry.isInstalled(mod.getUuid())) problems.add(new Problem(Kind.UNREGISTERED, null, mod, manifest, null));
+                }
+            }
+            unmanagedMods.forEach((pak, mod) -> {
+
+                provided.add(mod.getUuid().toLowerCase(Locale.ROOT));
+                if(!registry.isInstalled(mod.getUuid())) problems.add(new Problem(Kind.ORPHANED, pak, mod, null, null));
+            });
+            for(LSXNode module : registry.getModules()) {
+
+                String uuid = module.getAttributeValue("UUID");
+                String folder = module.getAttributeValue("Folder");
+                if(uuid == null || provided.contains(uuid.toLowerCase(Locale.ROOT))) continue;
+                if(folder != null && BASE_FOLDERS.contains(folder.toLowerCase(Locale.ROOT))) continue;
+                problems.add(new Problem(Kind.DANGLING, null, null, null, null).entry(uuid, folder));
+            }
+        }
+        task.phase(InstallTask.Phase.DONE);
+
+        Report ret = new Report(problems, total, rehashed.get(), (System.nanoTime() - start) / 1_000_000);
+        Logger.info(ret.toString());
+        return ret;
+    }
+
+    /**
+     * Fixes what can be fixed without the mods' archives
+     * - deployed paks are linked again from the {@link PakStore}, if it still holds an intact copy
+     * - unregistered mods and orphaned paks are registered in modsettings.lsx
+     * - entries no pak provides are removed from modsettings.lsx
+     * @return the problems which could not be fixed, their mods need to be installed again
+     */
+    public List<Problem> repair(Report report) {
+
+        List<Problem> ret = new ArrayList<>();
+        ModSettingsBatch batch = new ModSettingsBatch(playerProfile);
+        PakStore store = PakStore.forModsFolder(modsFolder);
+        Deployer deployer = new Deployer(DeployMode.fromId(BG3Settings.deployMode), store);
+        Set<InstallManifest> changed = new HashSet<>();
+        for(Problem problem : report.getProblems()) {
+
+            switch(problem.kind) {
+
+                case MISSING, TRUNCATED, MODIFIED -> {
+
+                    if(relink(problem, store, deployer)) {
+
+                        changed.add(problem.manifest);
+                    } else {
+
+                        ret.add(problem);
+                    }
+                }
+                case UNREGISTERED, ORPHANED -> batch.add(problem.mod);
+                case DANGLING -> batch.remove(problem.uuid, problem.folder);
+            }
+        }
+        for(InstallManifest manifest : changed) {
+
+            try {
+
+                manifest.save();
+            } catch (IOException e) {
+
+                e.printStackTrace();
+            }
+        }
+        PakHash.save();
+        deployer.save();
+        if(!batch.apply()) {
+
+            report.getProblems().stream().filter(problem -> problem.kind.isRegistration()).forEach(ret::add);
+        }
+        return ret;
+    }
+
+    private Problem check(Deployed pak, AtomicInteger rehashed) {
+
+        if(!pak.file.isFile()) return new Problem(Kind.MISSING, pak.file, null, pak.manifest, pak.record);
+
+        long expected = pak.record.has("size") ? pak.record.get("size").getAsLong() : -1;
+        if(expected >= 0 && pak.file.length() != expected) {
+
+            return new Problem(Kind.TRUNCATED, pak.file, null, pak.manifest, pak.record).detail(String.format("%d bytes, expected %d", pak.file.length(), expected));
+        }
+        // Recorded before paks were hashed, the size is all there is to go on
+        if(!pak.record.has("hash")) return null;
+
+        try {
+
+            PakHash hash = PakHash.getCached(pak.file);
+            if(hash == null) {
+
+                rehashed.incrementAndGet();
+                hash = PakHash.of(pak.file);
+            }
+            if(!hash.getTree().equals(pak.record.get("hash").getAsString())) return new Problem(Kind.MODIFIED, pak.file, null, pak.manifest, pak.record);
+        } catch (IOException e) {
+
+            return new Problem(Kind.MODIFIED, pak.file, null, pak.manifest, pak.record).detail(e.getMessage());
+        }
+        return null;
+    }
+
+    // Links the pak again from the store, as long as the stored copy has not been written through a hard link
+    private static boolean relink(Problem problem, PakStore store, Deployer deployer) {
+
+        if(problem.record == null || !problem.record.has("hash")) return false;
+        String tree = problem.record.get("hash").getAsString();
+        File object = store.getObject(tree);
+        try {
+
+            if(!object.isFile()) return false;
+            PakHash hash = PakHash.of(object);
+            if(!hash.getTree().equals(tree)) return false;
+            if(!deployer.redeploy(problem.record, problem.manifest.getId())) return false;
+            PakHash.remember(problem.file, hash);
+            return true;
+        } catch (IOException e) {
+
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    // The mod in a pak Candor did not install, read again only once the pak changes
+    private static String shadowKey(String owner, JsonObject record) {
+
+        return owner + "|" + (record.has("relative") ? record.get("relative").getAsString().toLowerCase(Locale.ROOT) : record.get("path").getAsString());
+    }
+
+    private static MetaInfo readMetaInfo(File pak) {
+
+        String key = pak.getAbsolutePath();
+        JsonObject cached = snapshot.get(key);
+        if(cached == null || cached.get("size").getAsLong() != pak.length() || cached.get("modified").getAsLong() != pak.lastModified()) {
+
+            MetaInfo mod = LSPKReader.readMetaInfo(pak);
+            cached = new JsonObject();
+            cached.addProperty("size", pak.length());
+            cached.addProperty("modified", pak.lastModified());
+            if(mod != null) cached.add("info", mod.toJson());
+            snapshot.put(key, cached);
+            return mod;
+        }
+        return cached.has("info") ? new MetaInfo(MetaInfo.MetaType.V3).fromJson(cached.getAsJsonObject("info")) : null;
+    }
+
+    private static File getSnapshotFile() {
+
+        return new File(Resources.CONFIG_PATH, "bg3/snapshot.json");
+    }
+
+    private static synchronized void load() {
+
+        if(loaded) return;
+        loaded = true;
+
+        File file = getSnapshotFile();
+        if(!file.isFile()) return;
+        try(Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+
+            JsonObject json = JsonParser.parseReader(reader).getAsJsonObject();
+            if(json.get("version").getAsInt() != VERSION) return;
+            json.getAsJsonObject("paks").entrySet().forEach(entry -> snapshot.put(entry.getKey(), entry.getValue().getAsJsonObject()));
+        } catch (IOException | JsonParseException | IllegalStateException | NullPointerException e) {
+
+            // Only a cache, every pak will be read again
+            e.printStackTrace();
+        }
+    }
+
+    private static synchronized void save() {
+
+        JsonObject paks = new JsonObject();
+        snapshot.forEach((key, value) -> {
+
+            // Forget paks which have been deleted
+            if(new File(key).exists()) paks.add(key, value);
+        });
+        JsonObject json = new JsonObject();
+        json.addProperty("version", VERSION);
+        json.add("paks", paks);
+
+        File file = getSnapshotFile();
+        File temp = null;
+        try {
+
+            FileUtils.forceMkdirParent(file);
+            temp = AtomicFile.createTemp(file);
+            Files.writeString(temp.toPath(), json.toString(), StandardCharsets.UTF_8);
+            AtomicFile.replace(temp, file);
+        } catch (IOException e) {
+
+            e.printStackTrace();
+        } finally {
+
+            FileUtils.deleteQuietly(temp);
+        }
+    }
+
+    public enum Kind {
+
+        MISSING("is missing"),
+        TRUNCATED("has the wrong size"),
+        MODIFIED("has been modified"),
+        ORPHANED("is not registered in modsettings.lsx"),
+        UNREGISTERED("is installed but not registered in modsettings.lsx"),
+        DANGLING("is registered in modsettings.lsx but no pak provides it");
+
+        private final String description;
+
+        Kind(String description) {
+
+            this.description = description;
+        }
+
+        /**
+         * @return true for problems with modsettings.lsx rather than the paks themselves
+         */
+        public boolean isRegistration() {
+
+            return this == ORPHANED || this == UNREGISTERED || this == DANGLING;
+        }
+    }
+
+    /**
+     * A single difference, with what is needed to repair it
+     */
+    public static class Problem {
+
+        private final Kind kind;
+        private final File file;
+        private final MetaInfo mod;
+        private final InstallManifest manifest;
+        private final JsonObject record;
+        private String uuid;
+        private String folder;
+        private String detail;
+
+        private Problem(Kind kind, File file, MetaInfo mod, InstallManifest manifest, JsonObject record) {
+
+            this.kind = kind;
+            this.file = file;
+            this.mod = mod;
+            this.manifest = manifest;
+            this.record = record;
+            if(mod != null) entry(mod.getUuid(), mod.getFolder());
+        }
+
+        private Problem entry(String uuid, String folder) {
+
+            this.uuid = uuid;
+            this.folder = folder;
+            return this;
+        }
+
+        private Problem detail(String detail) {
+
+            this.detail = detail;
+            return this;
+        }
+
+        public Kind getKind() {
+
+            return kind;
+        }
+
+        /**
+         * @return the pak, or null for problems which only concern modsettings.lsx
+         */
+        public File getFile() {
+
+            return file;
+        }
+
+        @Override
+        public String toString() {
+
+            String subject = file != null ? file.getName() : String.format("%s (%s)", folder, uuid);
+            return String.format("%s %s%s", subject, kind.description, detail != null ? ", " + detail : "");
+        }
+    }
+
+    public static class Report {
+
+        private final List<Problem> problems;
+        private final int checked;
+        private final int rehashed;
+        private final long millis;
+
+        private Report(List<Problem> problems, int checked, int rehashed, long millis) {
+
+            this.problems = Collections.unmodifiableList(problems);
+            this.checked = checked;
+            this.rehashed = rehashed;
+            this.millis = millis;
+        }
+
+        public List<Problem> getProblems() {
+
+            return problems;
+        }
+
+        public boolean isClean() {
+
+            return problems.isEmpty();
+        }
+
+        /**
+         * @return the number of paks which had changed since they were last hashed
+         */
+        public int getRehashed() {
+
+            return rehashed;
+        }
+
+        @Override
+        public String toString() {
+
+            StringBuilder builder = new StringBuilder(String.format("Checked %d paks in %dms, %d re-hashed, %d problems", checked, millis, rehashed, problems.size()));
+            problems.forEach(problem -> builder.append("\n- ").append(problem));
+            return builder.toString();
+        }
+    }
+
+    private static class Deployed {
+
+        private final InstallManifest manifest;
+        private final JsonObject record;
+        private final File file;
+
+        private Deployed(InstallManifest manifest, JsonObject record) {
+
+            this.manifest = manifest;
+            this.record = record;
+            this.file = new File(record.get("path").getAsString());
+        }
+    }
+}
@@ -0,0 +1,11 @@
+/**
+ * The assertion shared by the tests, which are run from their main methods.
+ * Nothing is printed for a check which passes, a failing one ends the test.
+ */
+public class Checks {
+
+    public static void check(boolean condition, String message) {
+
+        if(!condition) throw new AssertionError(message);
+    }
+}
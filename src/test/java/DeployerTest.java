@@ -0,0 +1,145 @@
+import com.google.gson.JsonObject;
+import org.apache.commons.io.FileUtils;
+import uk.co.innoxium.baldursgate.bg3m.archive.ModArchive;
+import uk.co.innoxium.baldursgate.bg3m.deploy.DeployMode;
+import uk.co.innoxium.baldursgate.bg3m.deploy.Deployer;
+import uk.co.innoxium.baldursgate.bg3m.deploy.PakStore;
+import uk.co.innoxium.baldursgate.bg3m.hash.PakHasher;
+import uk.co.innoxium.baldursgate.bg3m.io.AtomicFile;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Predicate;
+import java.util.zip.CRC32;
+
+public class DeployerTest {
+
+    public static void main(String... args) throws Exception {
+
+        File root = Files.createTempDirectory("bg3deploy").toFile();
+        File modsFolder = new File(root, "Mods");
+        byte[] pak = new byte[PakHasher.CHUNK_SIZE + 12345];
+        new Random(1).nextBytes(pak);
+
+        CRC32 crc = new CRC32();
+        crc.update(pak);
+        StringBuilder md5 = new StringBuilder();
+        for(byte b : MessageDigest.getInstance("MD5").digest(pak)) md5.append(String.format("%02x", b));
+
+        PakStore store = PakStore.forModsFolder(modsFolder);
+        File target = new File(modsFolder, "Mod.pak");
+        for(DeployMode mode : DeployMode.values()) {
+
+            // Like a 7z or rar archive, the entry is moved out of the extracted directory when it is deployed
+            File extracted = new File(root, "extracted-" + mode.getId());
+            FileUtils.writeByteArrayToFile(new File(extracted, "Mod.pak"), pak);
+            try(ModArchive archive = new MovingArchive(new File(root, mode.getId() + ".7z"), extracted)) {
+
+                Deployer deployer = new Deployer(mode, store);
+                JsonObject record = deployer.deploy(archive, "Mod.pak", target, archive.getFile().getName());
+                Checks.check(!new File(extracted, "Mod.pak").exists(), mode.getId() + ": entry moved out of the archive");
+                Checks.check(record.get("crc").getAsLong() == crc.getValue(), mode.getId() + ": crc from the hashing pass");
+                Checks.check(record.get("md5").getAsString().equals(md5.toString()), mode.getId() + ": md5 recorded");
+                Checks.check(record.get("size").getAsLong() == pak.length && Arrays.equals(FileUtils.readFileToByteArray(target), pak), mode.getId() + ": pak deployed");
+                if(mode == DeployMode.COPY) {
+
+                    // Written once, straight to the target, until a mod set keeps it
+                    Checks.check(!record.has("source") && !store.getObject(record.get("hash").getAsString()).isFile(), mode.getId() + ": pak not stored");
+                    Checks.check(store.putCopy(target, record.get("hash").getAsString(), "modset"), mode.getId() + ": pak kept by a mod set");
+                }
+                Checks.check(store.getObject(record.get("hash").getAsString()).isFile(), mode.getId() + ": pak stored");
+
+                // Re-enabling places the stored pak again, without the archive
+                Deployer.undeploy(record);
+                Checks.check(!target.exists(), mode.getId() + ": pak undeployed");
+                Checks.check(deployer.redeploy(record, archive.getFile().getName()) && Arrays.equals(FileUtils.readFileToByteArray(target), pak), mode.getId() + ": pak redeployed from the store");
+                Deployer.undeploy(record);
+                deployer.release(archive.getFile().getName());
+            }
+        }
+        Checks.check(store.collect() == 0, "pak kept by the mod set");
+        store.release("modset");
+        Checks.check(store.collect() == pak.length && !target.exists(), "unowned pak collected");
+        FileUtils.deleteQuietly(root);
+    }
+
+    /**
+     * An archive already extracted to a directory, which moves entries out of it when they are extracted to a file,
+     * the same as the 7z and rar reader
+     */
+    private static class MovingArchive extends ModArchive {
+
+        private final File directory;
+
+        MovingArchive(File file, File directory) {
+
+            super(file);
+            this.directory = directory;
+        }
+
+        @Override
+        public List<String> getEntries() {
+
+            List<String> ret = new ArrayList<>();
+            for(File found : FileUtils.listFiles(directory, null, true)) {
+
+                ret.add(directory.toPath().relativize(found.toPath()).toString().replace(File.separatorChar, '/'));
+            }
+            return ret;
+        }
+
+        @Override
+        public InputStream openEntry(String name) throws IOException {
+
+            File entry = new File(directory, name);
+            return entry.isFile() ? new FileInputStream(entry) : null;
+        }
+
+        @Override
+        public List<File> extract(File outputDirectory, Predicate<String> filter) throws IOException {
+
+            List<File> ret = new ArrayList<>();
+            for(String name : getEntries()) {
+
+                if(!filter.test(name)) continue;
+                File output = new File(outputDirectory, name);
+                FileUtils.copyFile(new File(directory, name), output);
+                ret.add(output);
+            }
+            return ret;
+        }
+
+        @Override
+        public void extractTo(String name, File target, PakHasher hasher) throws IOException {
+
+            File entry = new File(directory, name);
+            if(!entry.isFile()) throw new FileNotFoundException(String.format("%s not found in %s", name, file.getName()));
+            FileUtils.forceMkdirParent(target);
+            File temp = AtomicFile.createTemp(target);
+            try {
+
+                Files.move(entry.toPath(), temp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                if(hasher != null) hasher.update(temp);
+                AtomicFile.replace(temp, target);
+            } finally {
+
+                FileUtils.deleteQuietly(temp);
+            }
+        }
+
+        @Override
+        public void close() {
+
+        }
+    }
+}
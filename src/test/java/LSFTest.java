@@ -0,0 +1,71 @@
+import org.apache.commons.io.FileUtils;
+import uk.co.innoxium.baldursgate.bg3m.lsx.LSXDocument;
+import uk.co.innoxium.baldursgate.bg3m.pak.LSFReader;
+import uk.co.innoxium.baldursgate.bg3m.pak.LSFWriter;
+import uk.co.innoxium.baldursgate.bg3m.pak.LZ4;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+public class LSFTest {
+
+    public static void main(String... args) throws IOException {
+
+        String lsx = FileUtils.readFileToString(new File("src/test/resources/stats.lsx"), StandardCharsets.UTF_8);
+        LSXDocument document = LSXDocument.read(new StringReader(lsx));
+        String written = toString(document);
+        Checks.check(written.equals(lsx.replace("\n", "\r\n")), "LSX read and written back");
+
+        byte[] lsf = LSFWriter.write(document);
+        Checks.check(new String(lsf, 0, 4, StandardCharsets.US_ASCII).equals("LSOF"), "LSF written");
+        // Node keys are only in version 7
+        Checks.check(ByteBuffer.wrap(lsf).order(ByteOrder.LITTLE_ENDIAN).getInt(4) == 7, "LSF version with node keys");
+        LSXDocument read = LSFReader.read(ByteBuffer.wrap(lsf).order(ByteOrder.LITTLE_ENDIAN));
+        Checks.check(toString(read).equals(written), "LSX -> LSF -> LSX unchanged");
+        Checks.check(Arrays.equals(LSFWriter.write(read), lsf), "LSF written the same again");
+
+        Random random = new Random(1);
+        byte[] text = lsx.repeat(50).getBytes(StandardCharsets.UTF_8);
+        byte[] noise = new byte[200_000];
+        random.nextBytes(noise);
+        byte[] mixed = Arrays.copyOf(text, text.length + noise.length);
+        System.arraycopy(noise, 0, mixed, text.length, noise.length);
+        for(byte[] data : new byte[][] { new byte[0], "tiny".getBytes(StandardCharsets.UTF_8), new byte[12], text, noise, mixed }) {
+
+            byte[] block = LZ4.compress(data, 0, data.length);
+            Checks.check(Arrays.equals(LZ4.decompress(block, 0, block.length, data.length), data), data.length + " bytes through an LZ4 block");
+            byte[] frame = LZ4.compressFrame(data, 0, data.length);
+            Checks.check(Arrays.equals(LZ4.decompressFrame(frame, 0, frame.length, data.length), data), data.length + " bytes through an LZ4 frame");
+        }
+        byte[] block = LZ4.compress(text, 0, text.length);
+        Checks.check(block.length < text.length / 10, "repeated text compressed");
+        // An incompressible block is stored as it is in a frame, so the frame only adds its headers
+        byte[] frame = LZ4.compressFrame(noise, 0, noise.length);
+        Checks.check(frame.length == 7 + noise.length + (noise.length / 65536 + 1) * 4 + 4, "incompressible blocks stored");
+        block = LZ4.compress(noise, 0, noise.length);
+
+        boolean rejected = false;
+        try {
+
+            LZ4.decompress(block, 0, block.length / 2, noise.length);
+        } catch (IOException e) {
+
+            rejected = true;
+        }
+        Checks.check(rejected, "truncated block rejected");
+    }
+
+    private static String toString(LSXDocument document) throws IOException {
+
+        StringWriter ret = new StringWriter();
+        document.write(ret);
+        return ret.toString();
+    }
+}
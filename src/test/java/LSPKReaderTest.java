@@ -0,0 +1,51 @@
+import uk.co.innoxium.baldursgate.bg3m.MetaInfo;
+import uk.co.innoxium.baldursgate.bg3m.pak.LSPKReader;
+import uk.co.innoxium.baldursgate.bg3m.pak.PakEntry;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Reads the fixture paks in src/test/resources/pak, one per supported version, each holding:
+ * - Mods/FixtureMod/meta.lsx, LZ4 compressed, with one dependency
+ * - Public/FixtureMod/readme.txt, zlib compressed
+ * - Public/FixtureMod/stored.txt, not compressed
+ */
+public class LSPKReaderTest {
+
+    public static void main(String... args) throws IOException {
+
+        for(int version : new int[] { 15, 16, 18 }) {
+
+            File pak = new File("src/test/resources/pak/v" + version + ".pak");
+            try(LSPKReader reader = LSPKReader.open(pak)) {
+
+                Checks.check(reader.getVersion() == version && reader.getParts() == 1 && reader.getPriority() == 21, "v" + version + ": header read");
+                Checks.check(reader.getEntries().size() == 3 && reader.getEntry("mods\\fixturemod\\META.LSX").getCompression() == PakEntry.COMPRESSION_LZ4, "v" + version + ": file table read");
+
+                PakEntry readme = reader.getEntry("Public/FixtureMod/readme.txt");
+                Checks.check(readme.getCompression() == PakEntry.COMPRESSION_ZLIB && new String(reader.read(readme), StandardCharsets.UTF_8).equals("Fixture pak for LSPKReader. ".repeat(40)), "v" + version + ": zlib entry read");
+                PakEntry stored = reader.getEntry("Public/FixtureMod/stored.txt");
+                Checks.check(stored.getCompression() == PakEntry.COMPRESSION_NONE && new String(reader.read(stored), StandardCharsets.UTF_8).equals("stored as is"), "v" + version + ": stored entry read");
+            }
+
+            MetaInfo meta = LSPKReader.readMetaInfo(pak);
+            Checks.check(meta != null && meta.getName().equals("Fixture Mod") && meta.getFolder().equals("FixtureMod") && meta.getAuthor().equals("Fixture Author"), "v" + version + ": meta.lsx read");
+            // The ModuleInfo's own Version64, not PublishVersion's
+            Checks.check(meta.getUuid().equals("0c6b1d8e-3f0a-4d6e-b1a2-7e9c4f2a8d10") && meta.getVersion().equals("36028797018963969"), "v" + version + ": UUID and version");
+            Checks.check(meta.getDependencies().equals(List.of("5d5ea5b4-7a71-4a83-9e5c-0f3a6b3f6c01")), "v" + version + ": dependencies read");
+        }
+
+        boolean rejected = false;
+        try {
+
+            LSPKReader.open(new File("src/test/resources/modsettings.lsx")).close();
+        } catch (IOException e) {
+
+            rejected = true;
+        }
+        Checks.check(rejected, "non-pak rejected");
+    }
+}
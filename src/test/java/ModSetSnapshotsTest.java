@@ -0,0 +1,181 @@
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import org.apache.commons.io.FileUtils;
+import uk.co.innoxium.baldursgate.bg3m.MetaInfo;
+import uk.co.innoxium.baldursgate.bg3m.deploy.DeployMode;
+import uk.co.innoxium.baldursgate.bg3m.deploy.Deployer;
+import uk.co.innoxium.baldursgate.bg3m.deploy.PakStore;
+import uk.co.innoxium.baldursgate.bg3m.hash.PakHash;
+import uk.co.innoxium.baldursgate.bg3m.lsx.ModRegistry;
+import uk.co.innoxium.baldursgate.bg3m.lsx.ModSettingsBatch;
+import uk.co.innoxium.baldursgate.bg3m.manifest.InstallManifest;
+import uk.co.innoxium.baldursgate.bg3m.modset.ModSetSnapshots;
+import uk.co.innoxium.candor.util.Resources;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Switches a profile between two sets of 150 pak mods, which share 20 of them:
+ * - set a is mods 0 to 149, set b is mods 130 to 279
+ * - each switch links 130 paks from the store and unlinks 130, with the default copy mode
+ *
+ * The mods are installed the way the installer leaves them, a manifest and stored paks, without archives.
+ */
+public class ModSetSnapshotsTest {
+
+    private static final int MODS = 280;
+    private static final int PAK_SIZE = 64 * 1024;
+
+    public static void main(String... args) throws IOException {
+
+        File root = Files.createTempDirectory("bg3modsets").toFile();
+        File profile = new File(root, root.getName());
+        File modsFolder = new File(root, "Mods");
+        try {
+
+            FileUtils.copyFile(new File("src/test/resources/modsettings.lsx"), new File(profile, "modsettings.lsx"));
+            PakStore store = PakStore.forModsFolder(modsFolder);
+            // The fixture pak, made unique by what follows it, so the conflict index can read each one
+            byte[] fixture = FileUtils.readFileToByteArray(new File("src/test/resources/pak/v18.pak"));
+            Random random = new Random(1);
+
+            JsonArray[] files = new JsonArray[MODS];
+            MetaInfo[] mods = new MetaInfo[MODS];
+            for(int i = 0; i < MODS; i++) {
+
+                byte[] tail = new byte[PAK_SIZE];
+                random.nextBytes(tail);
+                byte[] pak = Arrays.copyOf(fixture, fixture.length + tail.length);
+                System.arraycopy(tail, 0, pak, fixture.length, tail.length);
+                File incoming = new File(root, "incoming/Mod" + i + ".pak");
+                FileUtils.writeByteArrayToFile(incoming, pak);
+                PakHash hash = store.putFile(incoming, getId(i));
+
+                JsonObject record = new JsonObject();
+                record.addProperty("path", new File(modsFolder, "Mod" + i + ".pak").getAbsolutePath());
+                record.addProperty("mode", DeployMode.COPY.getId());
+                record.addProperty("source", store.getObject(hash.getTree()).getAbsolutePath());
+                record.addProperty("size", pak.length);
+                record.addProperty("crc", hash.getCrc());
+                record.addProperty("md5", hash.getMd5());
+                record.addProperty("hash", hash.getTree());
+                files[i] = new JsonArray();
+                files[i].add(record);
+
+                JsonObject info = new JsonObject();
+                info.addProperty("modName", "Mod " + i);
+                info.addProperty("folderName", "Mod" + i);
+                info.addProperty("version", "1");
+                info.addProperty("UUID", String.format("00000000-0000-4000-8000-%012d", i));
+                mods[i] = new MetaInfo(MetaInfo.MetaType.V1).fromJson(info);
+                writeManifest(i, profile, mods[i], files[i]);
+            }
+
+            // Set b is saved first, then the mods it does not share are swapped for the rest of set a
+            setInstalled(130, MODS, true, profile, mods, files);
+            ModSetSnapshots.save(profile, modsFolder, "b");
+            setInstalled(150, MODS, false, profile, mods, files);
+            setInstalled(0, 130, true, profile, mods, files);
+            ModSetSnapshots.save(profile, modsFolder, "a");
+            Checks.check(ModSetSnapshots.list(profile).equals(List.of("b", "a")), "both sets saved");
+            Checks.check(verify(profile, 0, 150), "set a installed");
+
+            for(int round = 1; round <= 3; round++) {
+
+                Checks.check(ModSetSnapshots.activate(profile, modsFolder, "b").isEmpty(), round + ": switched to b");
+                Checks.check(verify(profile, 130, MODS), round + ": only set b in place");
+                Checks.check(ModSetSnapshots.activate(profile, modsFolder, "a").isEmpty(), round + ": switched to a");
+                Checks.check(verify(profile, 0, 150), round + ": only set a in place");
+            }
+
+            ModSetSnapshots.delete(profile, modsFolder, "a");
+            ModSetSnapshots.delete(profile, modsFolder, "b");
+        } finally {
+
+            // The manifests and sets are in the config directory, not under the temporary one
+            for(int i = 0; i < MODS; i++) {
+
+                FileUtils.deleteQuietly(new File(InstallManifest.getDirectory(), getId(i) + ".json"));
+            }
+            FileUtils.deleteQuietly(new File(Resources.CONFIG_PATH, "bg3/modsets/" + profile.getName() + ".json"));
+            FileUtils.deleteQuietly(root);
+        }
+    }
+
+    // Deploys or removes mods from..to, as installing or uninstalling them would
+    private static void setInstalled(int from, int to, boolean installed, File profile, MetaInfo[] mods, JsonArray[] files) throws IOException {
+
+        ModSettingsBatch batch = new ModSettingsBatch(profile);
+        for(int i = from; i < to; i++) {
+
+            for(JsonElement element : files[i]) {
+
+                JsonObject record = element.getAsJsonObject();
+                if(installed) {
+
+                    Deployer.link(new File(record.get("source").getAsString()), new File(record.get("path").getAsString()), DeployMode.COPY);
+                } else {
+
+                    Deployer.undeploy(record);
+                }
+            }
+            if(installed) {
+
+                batch.add(mods[i]);
+            } else {
+
+                batch.remove(mods[i]);
+            }
+            InstallManifest.load(getId(i)).setInstalled(installed).save();
+        }
+        Checks.check(batch.apply(), String.format("mods %d to %d %s", from, to - 1, installed ? "installed" : "uninstalled"));
+    }
+
+    // Whether exactly mods from..to have their pak in place, an installed manifest and a modsettings.lsx entry
+    private static boolean verify(File profile, int from, int to) throws IOException {
+
+        ModRegistry registry = ModRegistry.load(new File(profile, "modsettings.lsx"));
+        for(int i = 0; i < MODS; i++) {
+
+            boolean expected = i >= from && i < to;
+            InstallManifest manifest = InstallManifest.load(getId(i));
+            File pak = new File(manifest.getFiles().get(0).getAsJsonObject().get("path").getAsString());
+            if(pak.isFile() != expected || manifest.isInstalled() != expected) return false;
+            if(registry.isInstalled(String.format("00000000-0000-4000-8000-%012d", i)) != expected) return false;
+        }
+        return true;
+    }
+
+    private static void writeManifest(int i, File profile, MetaInfo mod, JsonArray files) throws IOException {
+
+        JsonObject info = new JsonObject();
+        info.addProperty("type", mod.getType().name());
+        info.add("info", mod.toJson());
+        JsonArray mods = new JsonArray();
+        mods.add(info);
+
+        JsonObject json = new JsonObject();
+        json.addProperty("version", InstallManifest.VERSION);
+        json.addProperty("archive", new File(profile.getParentFile(), getId(i)).getAbsolutePath());
+        json.addProperty("type", "PAK");
+        json.addProperty("profile", profile.getAbsolutePath());
+        json.addProperty("installed", false);
+        json.add("mods", mods);
+        json.add("files", files);
+        File file = new File(InstallManifest.getDirectory(), getId(i) + ".json");
+        FileUtils.forceMkdirParent(file);
+        Files.writeString(file.toPath(), json.toString(), StandardCharsets.UTF_8);
+    }
+
+    private static String getId(int i) {
+
+        return "ModSetSnapshotsTest-Mod" + i + ".zip";
+    }
+}
@@ -0,0 +1,94 @@
+import com.google.gson.JsonParser;
+import org.apache.commons.io.FileUtils;
+import uk.co.innoxium.baldursgate.bg3m.MetaInfo;
+import uk.co.innoxium.baldursgate.bg3m.lsx.ModRegistry;
+import uk.co.innoxium.baldursgate.bg3m.lsx.LSXNode;
+import uk.co.innoxium.baldursgate.bg3m.lsx.ModSettingsBatch;
+import uk.co.innoxium.baldursgate.bg3m.lsx.ModSettingsJournal;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.stream.Collectors;
+
+public class ModSettingsBatchTest {
+
+    public static void main(String... args) throws IOException {
+
+        File profile = Files.createTempDirectory("bg3profile").toFile();
+        File modSettings = new File(profile, "modsettings.lsx");
+        FileUtils.copyFile(new File("src/test/resources/modsettings.lsx"), modSettings);
+
+        String info = FileUtils.readFileToString(new File("src/test/resources/info.json"), StandardCharsets.UTF_8);
+        MetaInfo mod = new MetaInfo(MetaInfo.MetaType.V2).fromJson(
+                JsonParser.parseString(info).getAsJsonObject().getAsJsonArray("mods").get(0).getAsJsonObject());
+
+        Checks.check(new ModSettingsBatch(profile).add(mod).apply(), "install applied");
+        String installed = FileUtils.readFileToString(modSettings, StandardCharsets.UTF_8);
+        Checks.check(installed.contains("value=\"someName\""), "ModuleShortDesc added");
+        Checks.check(installed.contains("<node id=\"Module\">"), "ModOrder opened up and Module added");
+
+        // Reinstalling should replace, not duplicate
+        Checks.check(new ModSettingsBatch(profile).remove(mod).add(mod).apply(), "reinstall applied");
+        String reinstalled = FileUtils.readFileToString(modSettings, StandardCharsets.UTF_8);
+        Checks.check(reinstalled.split("<node id=\"ModuleShortDesc\">").length == 3, "no duplicate entry");
+
+        ModRegistry registry = ModRegistry.load(modSettings);
+        Checks.check(registry.isInstalled(mod.getUuid()) && registry.getByFolder("SOMENAME") != null, "registry indexes by UUID and Folder");
+        List<String> savedModules = registry.getModules().stream().map(LSXNode::getRaw).collect(Collectors.toList());
+        List<String> savedOrder = registry.getModOrder().stream().map(LSXNode::getRaw).collect(Collectors.toList());
+
+        // A file with the same mod twice should collapse to a single entry
+        String duplicated = reinstalled.replace("</children>\r\n                </node>\r\n            </children>",
+                registry.getByUuid(mod.getUuid()).getRaw() + "\r\n                    </children>\r\n                </node>\r\n            </children>");
+        FileUtils.writeStringToFile(modSettings, duplicated, StandardCharsets.UTF_8);
+        Checks.check(ModRegistry.load(modSettings).getDuplicates().size() == 1, "duplicate detected");
+
+        Checks.check(new ModSettingsBatch(profile).remove(mod).apply(), "uninstall applied");
+        String uninstalled = FileUtils.readFileToString(modSettings, StandardCharsets.UTF_8);
+        Checks.check(!uninstalled.contains("someName"), "mod removed");
+        Checks.check(uninstalled.contains("GustavDev") && uninstalled.contains("\r\n"), "untouched content kept");
+
+        // A transaction is logged before the file is replaced, and the journal goes once it is committed
+        File journalFile = new File(profile, "modsettings.journal");
+        ModSettingsJournal journal = new ModSettingsJournal(profile);
+        String tx = journal.begin(modSettings, List.of(ModSettingsJournal.Operation.remove(mod.getUuid(), mod.getFolder())));
+        List<String> lines = Files.readAllLines(journalFile.toPath(), StandardCharsets.UTF_8);
+        Checks.check(lines.size() == 2 && lines.get(0).contains("\"begin\"") && lines.get(1).contains("\"remove\""), "journal begin logged");
+        journal.commit(tx);
+        Checks.check(!journalFile.exists(), "journal removed on commit");
+
+        // Interrupted before the rename: the old file is still in place, so the change is rolled back
+        Checks.check(new ModSettingsBatch(profile).add(mod).apply(), "installed again");
+        String before = FileUtils.readFileToString(modSettings, StandardCharsets.UTF_8);
+        journal.begin(modSettings, List.of(ModSettingsJournal.Operation.remove(mod.getUuid(), mod.getFolder())));
+        File temp = new File(profile, "modsettings.lsx.1234.tmp");
+        FileUtils.writeStringToFile(temp, "<save", StandardCharsets.UTF_8);
+        Checks.check(journal.recover() && !journalFile.exists() && !temp.exists(), "interrupted write recovered");
+        Checks.check(before.equals(FileUtils.readFileToString(modSettings, StandardCharsets.UTF_8)), "unwritten change rolled back");
+
+        // Interrupted after the rename, with the last line cut short: the change is replayed
+        journal.begin(modSettings, List.of(ModSettingsJournal.Operation.remove(mod.getUuid(), mod.getFolder())));
+        Files.writeString(journalFile.toPath(), "{\"tx\":\"", StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+        FileUtils.writeStringToFile(modSettings, before + "\r\n", StandardCharsets.UTF_8);
+        Checks.check(journal.recover() && !journalFile.exists(), "interrupted commit recovered");
+        Checks.check(!ModRegistry.load(modSettings).isInstalled(mod.getUuid()), "written change replayed");
+        FileUtils.writeStringToFile(modSettings, uninstalled, StandardCharsets.UTF_8);
+
+        // Restoring the saved entries gives back the installed file exactly
+        Checks.check(new ModSettingsBatch(profile).restore(savedModules, savedOrder).apply(), "restore applied");
+        Checks.check(reinstalled.equals(FileUtils.readFileToString(modSettings, StandardCharsets.UTF_8)), "restore matches saved file");
+
+        // A restore replayed from the journal, onto a file changed since it began
+        ModRegistry restored = ModRegistry.load(modSettings);
+        FileUtils.writeStringToFile(modSettings, uninstalled, StandardCharsets.UTF_8);
+        journal.begin(modSettings, List.of(ModSettingsJournal.Operation.restore(List.copyOf(restored.getModules()), List.copyOf(restored.getModOrder()))));
+        FileUtils.writeStringToFile(modSettings, uninstalled + "\r\n", StandardCharsets.UTF_8);
+        Checks.check(journal.recover() && ModRegistry.load(modSettings).isInstalled(mod.getUuid()), "restore replayed");
+
+        FileUtils.deleteQuietly(profile);
+    }
+}